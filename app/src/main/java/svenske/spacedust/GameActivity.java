@@ -41,6 +41,20 @@ public class GameActivity extends Activity {
         this.setContentView(this.gl_view);
     }
 
+    // Pauses the GameView (releasing its OpenGL ES context) along with this activity
+    @Override
+    protected void onPause() {
+        super.onPause();
+        this.gl_view.onPause();
+    }
+
+    // Resumes the GameView (re-creating its OpenGL ES context) along with this activity
+    @Override
+    protected void onResume() {
+        super.onResume();
+        this.gl_view.onResume();
+    }
+
     /**
      * This ~seems~ to get called anytime there is a threat of the OpenGL ES context being
      * destroyed. Thus I am using this to get any important continuous data from the GameView
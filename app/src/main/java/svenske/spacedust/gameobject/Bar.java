@@ -1,6 +1,7 @@
 package svenske.spacedust.gameobject;
 
 import svenske.spacedust.graphics.BlendMode;
+import svenske.spacedust.graphics.RenderQueue;
 import svenske.spacedust.graphics.ShaderProgram;
 import svenske.spacedust.graphics.Sprite;
 
@@ -75,6 +76,12 @@ public class Bar extends GameObject {
         });
     }
 
+    // Sets whether the bar's background and foreground are affected by lighting
+    public void set_lit(boolean lit) {
+        this.sprite.set_lit(lit);
+        this.foreground.set_lit(lit);
+    }
+
     // Responds to scale changes by reloading the bar
     @Override
     public void set_scale(float sx, float sy) {
@@ -88,4 +95,12 @@ public class Bar extends GameObject {
         super.render(sp);
         this.foreground.render(sp, this.x + this.foreground_offset_x, this.y, this.foreground_sx, this.sy, this.rot);
     }
+
+    // Queues the background, and the foreground on the layer just above it
+    @Override
+    void queue(RenderQueue rq) {
+        super.queue(rq);
+        rq.add(this.layer + 1, this.foreground, this.x + this.foreground_offset_x, this.y,
+                this.foreground_sx, this.sy, this.rot);
+    }
 }
@@ -1,5 +1,8 @@
 package svenske.spacedust.gameobject;
 
+import svenske.spacedust.graphics.AnimatedSprite;
+import svenske.spacedust.graphics.ParticleEmitter;
+import svenske.spacedust.graphics.RenderQueue;
 import svenske.spacedust.graphics.ShaderProgram;
 import svenske.spacedust.graphics.Sprite;
 import svenske.spacedust.physics.PhysicsObject;
@@ -31,12 +34,15 @@ public abstract class Entity extends GameObject implements PhysicsObject {
     private float hp_regen_cooldown;       // How long after being damaged can the entity regen?
     private float hp_regen_cooldown_timer; // Current timer for regen cooldown
 
-    // TODO: Particles
-    // private ParticleSpawner death_particles; // TODO
-    // private ParticleSpawner damaged_particles; // TODO
-    // private ParticleSpawner movement_particles; // TODO
-    // private float movement_particles_cooldown; // TODO
-    // private float movement_particles_cooldown_timer; // TODO
+    // Particle attributes (emitters may be null for none)
+    private ParticleEmitter death_particles;         // Emitted once when the entity dies
+    private ParticleEmitter damaged_particles;       // Emitted when the entity is damaged
+    private ParticleEmitter movement_particles;      // Emitted behind the entity as it moves
+    private float movement_particles_cooldown = 0.05f; // Time between movement emissions
+    private float movement_particles_cooldown_timer; // Current timer for movement emissions
+    private float damaged_particles_cooldown_timer;  // Current timer for damage emissions
+    public static final float DAMAGED_PARTICLES_COOLDOWN = 0.1f; // Limits continuous damage
+    public static final float MOVEMENT_PARTICLES_MIN_V = 0.5f;   // Slower entities don't emit
 
     /**
      * Constructs the Entity
@@ -59,7 +65,10 @@ public abstract class Entity extends GameObject implements PhysicsObject {
         // Save reference to world for obj creation/deletion
         this.world = world;
 
-        // TODO: save particles
+        // Use the world's default particles
+        this.death_particles = world.get_particle_emitter("death");
+        this.damaged_particles = world.get_particle_emitter("damaged");
+        this.movement_particles = world.get_particle_emitter("movement");
 
         // Create and position nameplate
         this.nameplate = new Plate(this.name, this.hp / this.max_hp, 0f, 0f, NAMEPLATE_PADDING);
@@ -77,7 +86,8 @@ public abstract class Entity extends GameObject implements PhysicsObject {
         // Update plate
         this.update_plate_position();
 
-        // TODO: Update movement particles
+        // Update particles
+        this.update_particles(dt);
 
         // Update health regeneration
         if (this.hp_regen_cooldown_timer > 0f) this.hp_regen_cooldown_timer -= dt;
@@ -92,6 +102,31 @@ public abstract class Entity extends GameObject implements PhysicsObject {
         this.kb_y *= 0.98f;
     }
 
+    // Ticks particle cooldowns and emits movement particles out the back of a moving entity
+    private void update_particles(float dt) {
+        if (this.damaged_particles_cooldown_timer > 0f) this.damaged_particles_cooldown_timer -= dt;
+        if (this.movement_particles == null) return;
+        this.movement_particles_cooldown_timer -= dt;
+        float v = this.get_full_v();
+        if (this.movement_particles_cooldown_timer > 0f || v < MOVEMENT_PARTICLES_MIN_V) return;
+        this.movement_particles_cooldown_timer = this.movement_particles_cooldown;
+        float back = this.get_size()[1] * 0.4f / v; // Scales velocity to the entity's rear
+        this.world.get_particles().emit(this.movement_particles, this.x - this.vx * back,
+                this.y - this.vy * back, (float)Math.atan2(-this.vy, -this.vx), 0f, 0f);
+    }
+
+    /**
+     * Sets the entity's particle emitters (null for none), replacing the world's defaults
+     * @param movement_cooldown the time between emissions of movement particles
+     */
+    public void set_particles(ParticleEmitter death, ParticleEmitter damaged,
+                              ParticleEmitter movement, float movement_cooldown) {
+        this.death_particles = death;
+        this.damaged_particles = damaged;
+        this.movement_particles = movement;
+        this.movement_particles_cooldown = movement_cooldown;
+    }
+
     // Updates the entity's overhead health bar's position if there is one
     private void update_plate_position() {
         if (this.nameplate != null) {
@@ -108,13 +143,32 @@ public abstract class Entity extends GameObject implements PhysicsObject {
         if (this.nameplate != null) this.nameplate.render(sp);
     }
 
+    // Queues the entity and its plate if it has one
+    @Override
+    void queue(RenderQueue rq) {
+        super.queue(rq);
+        if (this.nameplate != null) this.nameplate.queue(rq);
+    }
+
+    // Releases the entity's plate (and animation) once it's removed from the world
+    @Override
+    void destroy() {
+        if (this.sprite instanceof AnimatedSprite) ((AnimatedSprite)this.sprite).release();
+        if (this.nameplate != null) this.nameplate.destroy();
+        this.nameplate = null;
+    }
+
     // Deal the given amount of damage to the ship's health
     public void damage(float hp) {
         if (hp < 0f) this.heal(-hp); // Count as healing if damage is negative
         else {
             this.set_health(this.hp - hp);
             this.hp_regen_cooldown_timer = this.hp_regen_cooldown; // Reset regeneration counter
-            // TODO: Spawn damage particles
+            if (this.damaged_particles != null && this.damaged_particles_cooldown_timer <= 0f) {
+                this.damaged_particles_cooldown_timer = DAMAGED_PARTICLES_COOLDOWN;
+                this.world.get_particles().emit(this.damaged_particles, this.x, this.y,
+                        (float)(Math.random() * Math.PI * 2), this.vx, this.vy);
+            }
         }
     }
 
@@ -135,7 +189,9 @@ public abstract class Entity extends GameObject implements PhysicsObject {
     // Called when the entity dies. By default, just deletes the entity
     protected void died() {
         this.world.on_object_delete(this);
-        // TODO: Spawn death particles
+        if (this.death_particles != null)
+            this.world.get_particles().emit(this.death_particles, this.x, this.y, 0f,
+                    this.vx, this.vy);
     }
 
     // Handles collision with other entities
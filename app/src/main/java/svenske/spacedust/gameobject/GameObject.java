@@ -1,5 +1,6 @@
 package svenske.spacedust.gameobject;
 
+import svenske.spacedust.graphics.RenderQueue;
 import svenske.spacedust.graphics.ShaderProgram;
 import svenske.spacedust.graphics.Sprite;
 
@@ -30,6 +31,7 @@ public class GameObject {
     protected float sx, sy;  // The scale of the GameObject
     protected float vx, vy;  // The velocity of the GameObject in units / second
     protected float rot;     // The rotation of the GameObject in radians
+    protected int layer = RenderQueue.LAYER_ENTITY; // The layer to queue the Sprite on
 
     // Constructs the GameObject with the given Sprite (may be null) and position.
     public GameObject(Sprite sprite, float x, float y) {
@@ -52,6 +54,21 @@ public class GameObject {
         if (this.sprite != null) this.sprite.render(sp, this.x, this.y, this.sx, this.sy, this.rot);
     }
 
+    // Queues the GameObject's sprite at its position onto its layer of the given RenderQueue
+    void queue(RenderQueue rq) {
+        if (this.sprite != null)
+            rq.add(this.layer, this.sprite, this.x, this.y, this.sx, this.sy, this.rot);
+    }
+
+    /**
+     * Called once the GameObject has been removed from the World, to release anything it holds
+     * onto (i.e., cached text). It may be called more than once. By default, does nothing.
+     */
+    void destroy() {}
+
+    // Sets the layer the GameObject's sprite is queued on (see RenderQueue)
+    public void set_layer(int layer) { this.layer = layer; }
+
     // Updates the GameObject's position
     public void set_pos(float x, float y) {
         this.x = x;
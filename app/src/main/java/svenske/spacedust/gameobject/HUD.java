@@ -9,6 +9,7 @@ import java.util.Map;
 
 import svenske.spacedust.R;
 import svenske.spacedust.graphics.ShaderProgram;
+import svenske.spacedust.graphics.ShaderVariants;
 import svenske.spacedust.graphics.Sprite;
 import svenske.spacedust.utils.Global;
 
@@ -61,7 +62,9 @@ public class HUD implements Sprite.ResizeCallback {
 
     // Constructs the HUD
     public HUD() {
-        this.sp               = new ShaderProgram(R.raw.vertex_hud, R.raw.fragment_hud);
+        ShaderVariants sv     = new ShaderVariants(R.raw.vertex_hud, R.raw.fragment_hud, false);
+        sv.warm_up();
+        this.sp               = sv;
         this.hud_object_roots = new ArrayList<>();
         this.go_to_ho         = new HashMap<>();
     }
@@ -77,11 +80,16 @@ public class HUD implements Sprite.ResizeCallback {
         for (GameObject go : this.go_to_ho.keySet()) go.update(dt);
     }
 
-    // Renders all HUD GameObjects using the HUD shaders.
+    // Renders all HUD GameObjects using the HUD shaders (left bound; GLState skips re-binds).
     public void render() {
         this.sp.bind();
         for (GameObject go : this.go_to_ho.keySet()) go.render(sp);
-        ShaderProgram.unbind_any_shader_program();
+    }
+
+    // Releases what HUD GameObjects hold onto on the GL thread (i.e., JoySticks' atlases)
+    public void release() {
+        for (GameObject go : this.go_to_ho.keySet())
+            if (go instanceof JoyStick) ((JoyStick)go).release();
     }
 
     // Updates the aspect ratio uniform in the shader programs and re-places the object hierarchy
@@ -81,6 +81,12 @@ public class JoyStick extends GameObject implements InputReceiver {
                 null, null);
     }
 
+    // Releases the atlases of the JoyStick's sprites. Call this on the GL thread when it's torn down.
+    public void release() {
+        this.inner_circle.get_atlas().release();
+        this.sprite.get_atlas().release();
+    }
+
     // Determines whether the given position is within the JoyStick's outer circle.
     private boolean point_in_outer_circle(float[] pos) {
         float dx = pos[0] - this.x;
@@ -5,6 +5,7 @@ import svenske.spacedust.gameobject.Projectile;
 import svenske.spacedust.gameobject.World;
 import svenske.spacedust.graphics.AnimatedSprite;
 import svenske.spacedust.graphics.Animation;
+import svenske.spacedust.graphics.AnimationSet;
 import svenske.spacedust.graphics.LightSource;
 import svenske.spacedust.utils.Global;
 
@@ -27,6 +28,9 @@ public class Marauder extends NPC implements LightEmitter, AnimatedSprite.FrameC
     private static final float MARAUDER_ENCIRCLE_RANGE  = 2.2f;
     private static final int   MARAUDER_LIGHT_INTERVAL  = 8;
 
+    // Animations shared by every Marauder
+    private static AnimationSet animations;
+
     // Attributes
     private LightSource light_source; // Marauder's light source
     private boolean moving;           // Whether the marauder is currently moving
@@ -39,9 +43,8 @@ public class Marauder extends NPC implements LightEmitter, AnimatedSprite.FrameC
 
     // Constructs the Marauder with arguments identical to superclass arguments
     public Marauder(float x, float y, World world) {
-        super(new AnimatedSprite(Global.ta,
-                        Animation.get_generic_ship_animations(2, MARAUDER_LIGHT_INTERVAL),
-                        "idle", null, null), x, y, MARAUDER_SPEED,
+        super(new AnimatedSprite(Global.ta, Marauder.get_animations(), Animation.IDLE,
+                        null, null), x, y, MARAUDER_SPEED,
                         "Marauder", MARAUDER_MAX_HP, MARAUDER_HP_REGEN_RATE,
                         MARAUDER_HP_REGEN_CD, world);
         ((AnimatedSprite)this.sprite).set_frame_change_callback(this);
@@ -51,6 +54,13 @@ public class Marauder extends NPC implements LightEmitter, AnimatedSprite.FrameC
         this.light_source = new LightSource(new float[] { 0f, 0f, 0f }, 5f, 4f, null);
     }
 
+    // Returns the animations shared by every Marauder, compiling them the first time
+    private static AnimationSet get_animations() {
+        if (animations == null) animations = new AnimationSet(Global.ta,
+                Animation.get_generic_ship_animations(2, MARAUDER_LIGHT_INTERVAL));
+        return animations;
+    }
+
     // Updates Marauder's AI
     @Override
     public void update(float dt) {
@@ -67,13 +77,13 @@ public class Marauder extends NPC implements LightEmitter, AnimatedSprite.FrameC
         // If just started moving, use thrust animation
         if ((this.vx > 0f || this.vy > 0f) && !this.moving) {
             this.moving = true;
-            ((AnimatedSprite)this.sprite).change_animation("thrust", true);
+            ((AnimatedSprite)this.sprite).change_animation(Animation.THRUST, true);
         }
 
         // If just stopped moving, use idle animation
         else if ((this.vx < 0.0001f || this.vy < 0.0001f) && this.moving) {
             this.moving = false;
-            ((AnimatedSprite)this.sprite).change_animation("idle", true);
+            ((AnimatedSprite)this.sprite).change_animation(Animation.IDLE, true);
         }
     }
 
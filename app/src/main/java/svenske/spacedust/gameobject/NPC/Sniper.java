@@ -7,6 +7,7 @@ import svenske.spacedust.gameobject.Projectile;
 import svenske.spacedust.gameobject.World;
 import svenske.spacedust.graphics.AnimatedSprite;
 import svenske.spacedust.graphics.Animation;
+import svenske.spacedust.graphics.AnimationSet;
 import svenske.spacedust.graphics.BlendMode;
 import svenske.spacedust.graphics.LightSource;
 import svenske.spacedust.utils.Global;
@@ -31,6 +32,10 @@ public class Sniper extends NPC implements AnimatedSprite.FrameChangeCallback, L
     private static final float SNIPER_SHOOT_CHANCE    = 0.4f; // Chance after erratic mvmt of shoot
     private static final int   SNIPER_LIGHT_INTERVAL  = 7;
 
+    // Animations shared by every sniper, and the name ID of the attacking animation
+    private static AnimationSet animations;
+    private static final int ATTACK = AnimationSet.intern("attack");
+
     // AI Attributes
     private enum AIState { IDLE, WANDERING, FOCUSED, ATTACKING }
     private Sniper.AIState ai_state;
@@ -43,7 +48,7 @@ public class Sniper extends NPC implements AnimatedSprite.FrameChangeCallback, L
 
     // Constructs the sniper with arguments from the superclass constructor
     public Sniper(float x, float y, World world) {
-        super(new AnimatedSprite(Global.ta, Sniper.get_animations(), "idle",
+        super(new AnimatedSprite(Global.ta, Sniper.get_animations(), Animation.IDLE,
                         null, null), x, y, SNIPER_SPEED, "Sniper",
                 SNIPER_MAX_HP, SNIPER_HP_REGEN_RATE, SNIPER_HP_REGEN_CD, world);
         ((AnimatedSprite)this.sprite).set_frame_change_callback(this);
@@ -52,14 +57,19 @@ public class Sniper extends NPC implements AnimatedSprite.FrameChangeCallback, L
         this.light_source = new LightSource(new float[] { 0f, 0f, 0f }, 5f, 4f, null);
     }
 
-    // Adds an attacking animation to the generic ship animations for the sniper
-    private static Map<String, Animation> get_animations() {
+    /**
+     * Returns the animations shared by every sniper, compiling them the first time: the generic
+     * ship animations plus an attacking animation
+     */
+    private static AnimationSet get_animations() {
+        if (animations != null) return animations;
         Map<String, Animation> anims = Animation.get_generic_ship_animations(4, SNIPER_LIGHT_INTERVAL);
         anims.put("attack", new Animation(0.12f, 9,
                 new int[]{6, 6, 6, 7, 7, 7, 7, 7, 7, 7},
                 new int[]{0, 1, 2, 0, 1, 0, 1, 0, 1, 0},
                 new float[][]{null}, new BlendMode[]{BlendMode.JUST_TEXTURE}));
-        return anims;
+        animations = new AnimationSet(Global.ta, anims);
+        return animations;
     }
 
     // Updates Sniper's AI and animation state
@@ -82,13 +92,13 @@ public class Sniper extends NPC implements AnimatedSprite.FrameChangeCallback, L
         // If just started moving, use thrust animation
         if ((this.vx > 0f || this.vy > 0f) && !this.moving) {
             this.moving = true;
-            ((AnimatedSprite)this.sprite).change_animation("thrust", true);
+            ((AnimatedSprite)this.sprite).change_animation(Animation.THRUST, true);
         }
 
         // If just stopped moving, use idle animation
         else if ((this.vx < 0.0001f || this.vy < 0.0001f) && this.moving) {
             this.moving = false;
-            ((AnimatedSprite)this.sprite).change_animation("idle", true);
+            ((AnimatedSprite)this.sprite).change_animation(Animation.IDLE, true);
         }
     }
 
@@ -140,7 +150,7 @@ public class Sniper extends NPC implements AnimatedSprite.FrameChangeCallback, L
             if (Math.random() < SNIPER_SHOOT_CHANCE) {
                 this.set_velocity(0f, 0f);
                 this.rot = rot;
-                ((AnimatedSprite)this.sprite).change_animation("attack", false);
+                ((AnimatedSprite)this.sprite).change_animation(ATTACK, false);
                 this.ai_state = AIState.ATTACKING;
 
             // Otherwise, initiate another erratic movement in the general direction of the target
@@ -192,7 +202,7 @@ public class Sniper extends NPC implements AnimatedSprite.FrameChangeCallback, L
                 this.shoot(this.get_target_info()[0]);
                 this.moving    = false;
                 this.ai_state  = AIState.FOCUSED;
-                ((AnimatedSprite)this.sprite).change_animation("idle", false);
+                ((AnimatedSprite)this.sprite).change_animation(Animation.IDLE, false);
             }
         } else {
             // If light is on in the sprite, add some yellowish light
@@ -1,9 +1,9 @@
 package svenske.spacedust.gameobject;
 
 import svenske.spacedust.graphics.BlendMode;
+import svenske.spacedust.graphics.RenderQueue;
 import svenske.spacedust.graphics.ShaderProgram;
 import svenske.spacedust.graphics.Sprite;
-import svenske.spacedust.graphics.TextSprite;
 import svenske.spacedust.utils.Global;
 
 /**
@@ -29,11 +29,16 @@ public class Plate {
      */
     public Plate(String name, float starting_fill, float x, float y, float inner_pad) {
 
-        // Create name sprite and health bar
-        this.name = new TextSprite(Global.font, new float[] {1f, 1f, 1f, 1f},
-                BlendMode.MULTIPLICATIVE, name).solidify();
+        // Create name sprite (a mesh shared by plates of the same name) and health bar
+        this.name = Global.text_cache.acquire(Global.font, new float[] {1f, 1f, 1f, 1f},
+                BlendMode.SDF, name, false);
         this.hp_bar = new Bar(new float[] {0f, 1f, 0f, 0.5f}, new float[] {1f, 0f, 0f, 1f},
                 new float[] {0.5f, 0.5f, 0.5f, 0.5f}, 1.3f, 0.08f, 0, 0);
+        this.hp_bar.set_layer(RenderQueue.LAYER_PLATE);
+
+        // Plates are overlays, so they're drawn with the unlit shader variants
+        this.name.set_lit(false); // Every plate's name is unlit, so sharing the mesh is fine
+        this.hp_bar.set_lit(false);
 
         // Save and calculation positions
         this.x = x;
@@ -61,6 +66,13 @@ public class Plate {
         this.name.render(sp, this.name_x, this.name_y, this.NAME_SCALE, this.NAME_SCALE, 0f);
     }
 
+    // Queues the plate's health bar and name onto the nameplate layers of the given RenderQueue
+    void queue(RenderQueue rq) {
+        this.hp_bar.queue(rq);
+        rq.add(RenderQueue.LAYER_PLATE_TEXT, this.name, this.name_x, this.name_y,
+                this.NAME_SCALE, this.NAME_SCALE, 0f);
+    }
+
     // Updates the fill of the health bar
     public void set_hp_bar_fill(float fill) {
         this.hp_bar.set_fill(fill);
@@ -73,6 +85,13 @@ public class Plate {
         this.calculate_positions();
     }
 
+    // Releases the plate's name back to the text cache. The plate must not be used after this.
+    public void destroy() {
+        if (this.name == null) return;
+        Global.text_cache.release(this.name);
+        this.name = null;
+    }
+
     // Calculates the size of the entire plate
     public float[] get_size() {
         float[] text_sz = this.name.get_size();
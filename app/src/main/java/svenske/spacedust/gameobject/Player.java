@@ -2,6 +2,7 @@ package svenske.spacedust.gameobject;
 
 import svenske.spacedust.graphics.AnimatedSprite;
 import svenske.spacedust.graphics.Animation;
+import svenske.spacedust.graphics.AnimationSet;
 import svenske.spacedust.graphics.LightSource;
 import svenske.spacedust.graphics.TextureAtlas;
 
@@ -22,6 +23,9 @@ public class Player extends Entity implements JoyStick.JoystickReceiver,
     public static final float PLAYER_SHOOT_COOLDOWN  = 0.35f;
     public static final int   PLAYER_LIGHT_INTERVAL  = 6;
 
+    // Animations shared by every player (the player is re-created with each context)
+    private static AnimationSet animations;
+
     // Movement info
     private float ax, ay;                   // Current player acceleration
     private float acceleration_angle;       // Current angle of acceleration (angle of left joystick)
@@ -35,28 +39,29 @@ public class Player extends Entity implements JoyStick.JoystickReceiver,
 
     // Other info
     private LightSource light_source; // Player's light source
-    private Bar hud_hp_bar;           // Reference to an HP bar on the HUD to update
 
     /**
      * Constructs the player
      * @param atlas the atlas containing the ship textures
-     * @param hp_bar a health bar (ideally displayed on the HUD) for the player to update
      * The rest of the attributes are the same as in the superclass constructor
      */
-    public Player(TextureAtlas atlas, float x, float y, Bar hp_bar, World world) {
+    public Player(TextureAtlas atlas, float x, float y, World world) {
 
         // Call super, setup animation and sprite
-        super(new AnimatedSprite(atlas,
-                Animation.get_generic_ship_animations(0, PLAYER_LIGHT_INTERVAL),
-                "idle", null, null), x, y, "Player",
+        super(new AnimatedSprite(atlas, Player.get_animations(atlas), Animation.IDLE, null, null),
+                x, y, "Player",
                 20f, 1f, 5f, world);
         ((AnimatedSprite)this.sprite).set_frame_change_callback(this);
 
         // Create light source
         this.light_source = new LightSource(new float[] { 0f, 0f, 0f }, 5f, 4f, null);
+    }
 
-        // Save reference to HUD HP bar
-        this.hud_hp_bar = hp_bar; // Use HUD health bar instead of overhead one
+    // Returns the player's animations, compiling them for the given atlas the first time
+    private static AnimationSet get_animations(TextureAtlas atlas) {
+        if (animations == null) animations = new AnimationSet(atlas,
+                Animation.get_generic_ship_animations(0, PLAYER_LIGHT_INTERVAL));
+        return animations;
     }
 
     // Responds to joystick input by updating movement or shooting activity
@@ -68,7 +73,7 @@ public class Player extends Entity implements JoyStick.JoystickReceiver,
 
             // Change animations if movement just started
             if (!this.accelerating)
-                ((AnimatedSprite)this.sprite).change_animation("thrust", true);
+                ((AnimatedSprite)this.sprite).change_animation(Animation.THRUST, true);
 
             // Set rotation angle to acceleration angle if not shooting
             this.acceleration_angle = (float)Math.atan2(y, x) - (float)(Math.PI / 2f);
@@ -131,7 +136,7 @@ public class Player extends Entity implements JoyStick.JoystickReceiver,
         if (id.equals("movement")) {// No longer accelerating
             this.accelerating = false;
             this.ax = this.ay = 0f;
-            ((AnimatedSprite)this.sprite).change_animation("idle", true);
+            ((AnimatedSprite)this.sprite).change_animation(Animation.IDLE, true);
 
             // Shooting stick lifted
         } else if (id.equals("shooting")) { // No longer shooting
@@ -171,14 +176,6 @@ public class Player extends Entity implements JoyStick.JoystickReceiver,
         this.light_source.set_intensity(intensity);
     }
 
-    // Sets the player's health and updates the HUD health bar's fill
-    @Override
-    public void set_health(float health) {
-        super.set_health(health);
-        if (this.hud_hp_bar != null)
-            this.hud_hp_bar.set_fill(this.get_hp() / this.get_max_hp());
-    }
-
     // Sets velocity bounded by player's maximum velocity
     @Override
     public void set_velocity(float vx, float vy) {
@@ -3,6 +3,7 @@ package svenske.spacedust.gameobject;
 import svenske.spacedust.gameobject.NPC.NPC;
 import svenske.spacedust.graphics.BlendMode;
 import svenske.spacedust.graphics.LightSource;
+import svenske.spacedust.graphics.RenderQueue;
 import svenske.spacedust.graphics.Sprite;
 import svenske.spacedust.physics.PhysicsObject;
 
@@ -53,6 +54,7 @@ public class Projectile extends GameObject implements LightEmitter, PhysicsObjec
     public Projectile(Sprite sprite, LightSource light_source, float x, float y, float v_angle,
                       float v_magnitude, World world, boolean hostile, float damage) {
         super(sprite, x, y);
+        this.layer = RenderQueue.LAYER_PROJECTILE;
 
         // Save/set attributes
         this.world        = world;
@@ -5,20 +5,26 @@ import android.view.MotionEvent;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import svenske.spacedust.R;
 import svenske.spacedust.gameobject.NPC.Marauder;
 import svenske.spacedust.gameobject.NPC.NPC;
 import svenske.spacedust.gameobject.NPC.Sniper;
-import svenske.spacedust.graphics.BlendMode;
+import svenske.spacedust.graphics.Background;
 import svenske.spacedust.graphics.Camera;
+import svenske.spacedust.graphics.LightClusterer;
+import svenske.spacedust.graphics.LightGrid;
+import svenske.spacedust.graphics.LightSelector;
+import svenske.spacedust.graphics.ParticleEmitter;
+import svenske.spacedust.graphics.ParticleSystem;
+import svenske.spacedust.graphics.RenderQueue;
 import svenske.spacedust.graphics.ShaderProgram;
-import svenske.spacedust.graphics.Sprite;
-import svenske.spacedust.graphics.TextSprite;
-import svenske.spacedust.graphics.TextureAtlas;
+import svenske.spacedust.graphics.ShaderVariants;
+import svenske.spacedust.graphics.SpriteInstancer;
+import svenske.spacedust.graphics.TextureManager;
 import svenske.spacedust.physics.PhysicsEngine;
 import svenske.spacedust.physics.PhysicsObject;
-import svenske.spacedust.stages.WorldStage;
 import svenske.spacedust.utils.Global;
 import svenske.spacedust.utils.Node;
 
@@ -30,12 +36,24 @@ public class World {
     public final float WORLD_HEIGHT = 75f;      // How tall is the world?
     public final float AMBIENT_LIGHT = 0.85f;   // An ambient light multiplier
     public final int MAX_LIGHTS = 64;           // This must be in-sync with the shader program
+    public final boolean TILED_LIGHTING = true; // Whether to bin lights per screen tile
+    public final float LIGHT_CLUSTER_SIZE = 2f; // Size of grid cells small lights merge within
+    public final float LIGHT_CLUSTER_REACH = 1f; // Lights reaching further are never merged
 
     // World attributes
     private ShaderProgram sp;                   // A shader program to render the world
     private Camera cam;                         // A camera to view into the world
     private PhysicsEngine physics_engine;       // A physics engine for projectiles, etc.
     private Player player;                      // The player in the world
+    private LightGrid light_grid;               // Bins lights per screen tile (if tiled)
+    private LightSelector light_selector;       // Culls and ranks lights to fill light slots
+    private LightClusterer light_clusterer;     // Merges dense groups of small lights
+    private SpriteInstancer instancer;          // Draws runs of quads (null if unsupported)
+    private RenderQueue render_queue;           // Render queue of the last snapshot rendered
+    private ParticleSystem particles;           // Simulates and draws every particle
+
+    // Particle emitters by name (loaded once, as they're never freed)
+    private static Map<String, ParticleEmitter> particle_emitters;
 
     // Enemy info
     private float current_enemies = 0f;         // Current amount of enemies present
@@ -49,7 +67,8 @@ public class World {
     private final float RELEVANCE_SCOPE_MUL = 1.4f;
 
     // World objects
-    private GameObject background;
+    private Background background;               // Tiled parallax background layers
+    private TextureManager.Texture backdrop, starfield; // Textures of the background layers
     private List<GameObject> world_objects;      // List of all objects in the world
     private List<PhysicsObject> physics_objects; // Sublist of world_objects for physics_objects
 
@@ -67,8 +86,22 @@ public class World {
     // Constructs the world with the given continuous data from a previous destruction of context.
     public World(Node continuous_data) {
 
-        // Setup shader program, camera, physics engine
-        this.sp = new ShaderProgram(R.raw.vertex_world, R.raw.fragment_world);
+        // Setup shader variants (and light grid if tiled lighting), camera, physics engine
+        ShaderVariants sv;
+        if (TILED_LIGHTING) {
+            sv = new ShaderVariants(R.raw.vertex_world, R.raw.fragment_world, true,
+                    "TILED_LIGHTING");
+            this.light_grid = new LightGrid();
+            this.light_selector = new LightSelector(LightGrid.MAX_LIGHTS);
+        } else {
+            sv = new ShaderVariants(R.raw.vertex_world, R.raw.fragment_world, true);
+            this.light_selector = new LightSelector(MAX_LIGHTS);
+        }
+        if (Global.INSTANCING_SUPPORTED) sv.enable_instancing();
+        sv.warm_up();
+        this.sp = sv;
+        this.light_clusterer = new LightClusterer(LIGHT_CLUSTER_SIZE, LIGHT_CLUSTER_REACH);
+        this.light_clusterer.set_measure_error(Global.MEASURE_LIGHT_CLUSTER_ERROR);
         this.cam = new Camera(0f, 0f, 1f);
         this.cam.set_bounds(-WORLD_WIDTH / 2f, WORLD_WIDTH / 2f,
                 -WORLD_HEIGHT / 2f, WORLD_HEIGHT / 2f);
@@ -80,12 +113,28 @@ public class World {
         this.to_add = new ArrayList<>();
         this.to_delete = new ArrayList<>();
 
-        // Create background
-        TextureAtlas background_atlas = new TextureAtlas(R.drawable.background, 1, 1);
-        Sprite background_sprite = new Sprite(background_atlas, 0, 0,
-                new float[] { 0.1f, 0f, 0.1f, 1f }, BlendMode.AVG, null, null);
-        this.background = new GameObject(background_sprite, 0f, 0f);
-        this.background.set_scale(WORLD_WIDTH, WORLD_HEIGHT);
+        /*
+         * Create background: the backdrop stretched once over the whole world with a layer of
+         * stars fixed to it, and two further star layers drifting behind at parallax. Background
+         * layers are unlit, so ambient light is baked into their brightness.
+         */
+        this.background = new Background();
+        this.backdrop = TextureManager.acquire(R.drawable.background,
+                TextureManager.CLAMP | TextureManager.MIPMAP);
+        this.starfield = Background.create_starfield_texture(512, 600, 1L);
+        int stars = this.starfield.id;
+        this.background.add_layer(this.backdrop, WORLD_WIDTH, WORLD_HEIGHT, 1f,
+                new float[] { 0.1f, 0f, 0.1f, 1f }, 0.5f, AMBIENT_LIGHT);
+        this.background.add_layer(stars, 8f, 8f, 1f, null, 0f, AMBIENT_LIGHT);
+        this.background.add_layer(stars, 11f, 11f, 0.5f, null, 0f, 0.6f * AMBIENT_LIGHT);
+        this.background.add_layer(stars, 14f, 14f, 0.25f, null, 0f, 0.35f * AMBIENT_LIGHT);
+        if (Global.INSTANCING_SUPPORTED) this.instancer = new SpriteInstancer();
+
+        // Create particle system
+        if (particle_emitters == null)
+            particle_emitters = ParticleEmitter.load(R.raw.particle_emitters);
+        this.particles = new ParticleSystem();
+        this.particles.set_gpu_enabled(Global.GPU_PARTICLES);
 
         // TODO: Restore state
         if (continuous_data !=  null) {}
@@ -104,7 +153,6 @@ public class World {
     public void update(float dt) {
 
         // Update world objects
-        this.background.update(dt);
         for (GameObject go : this.world_objects) go.update(dt);
 
         // Add or remove objects if created/deleted during other object updates
@@ -116,6 +164,9 @@ public class World {
         // Check for collisions
         this.physics_engine.check_collisions(this.physics_objects);
 
+        // Update particles (after anything that may have emitted them this frame)
+        this.particles.update(dt);
+
         // Manage projectiles every so often
         this.proj_mgmt_cooldown_timer -= dt;
         if (this.proj_mgmt_cooldown_timer <= 0f) {
@@ -158,47 +209,114 @@ public class World {
         if (to_remove.size() > 0) {
             this.world_objects.removeAll(to_remove);
             this.physics_objects.removeAll(to_remove);
+            for (Projectile b : to_remove) b.destroy();
         }
     }
 
-    // Uses the World's ShaderProgram to render all of the world objects
-    public void render() {
-        this.sp.bind();                                              // Bind
-        this.set_lighting_uniforms();                                // Set lighting uniforms
-        this.cam.set_uniforms(this.sp);                              // Set camera uniforms
-        this.background.render(this.sp);                             // Render background first
-        for (GameObject go : this.world_objects) go.render(this.sp); // Then render game objects
-        ShaderProgram.unbind_any_shader_program();                   // Unbind
+    // Creates a snapshot for capture() to fill in. Snapshots must only be rendered by this World.
+    public WorldSnapshot create_snapshot() {
+        RenderQueue rq = new RenderQueue(256);
+        rq.set_instancer(this.instancer); // Shared, as only one snapshot is rendered at a time
+        return new WorldSnapshot(rq);
+    }
+
+    /**
+     * Captures everything needed to render the World as it is now into the given snapshot. World
+     * objects are queued onto their layers of the snapshot's render queue (which culls anything out
+     * of the camera's view), and lights and particles are copied. No GL calls are made, so this
+     * can be called on a simulation thread (see SimulationThread).
+     */
+    public void capture(WorldSnapshot s) {
+        s.cam.copy_from(this.cam);
+        s.render_queue.begin(s.cam);
+        s.light_count = 0;
+        for (GameObject go : this.world_objects) {
+            go.queue(s.render_queue);
+            if (go instanceof LightEmitter && ((LightEmitter)go).get_light() != null)
+                s.add_light(((LightEmitter)go).get_light(), go.x, go.y);
+        }
+        this.particles.capture(s.particles);
+        s.score = this.score;
+    }
+
+    /**
+     * Draws the background and then uses the World's ShaderProgram to render the world objects of
+     * the given snapshot, sorted by its render queue rather than in the order they were added.
+     * Particles are drawn last, over everything else. A snapshot may be rendered more than once.
+     */
+    public void render(WorldSnapshot s) {
+        this.background.render(s.cam);                                  // Draw background
+        this.sp.bind();                                                 // Bind
+        this.set_lighting_uniforms(s);                                  // Set lighting uniforms
+        s.cam.set_uniforms(this.sp);                                    // Set camera uniforms
+        s.render_queue.render(this.sp);                                 // Sort and render
+        this.particles.render(s.particles, s.cam);                      // Draw particles
+        this.render_queue = s.render_queue;
     }
 
     // Sets lighting uniforms in the shader program pre-render
-    private void set_lighting_uniforms() {
+    private void set_lighting_uniforms(WorldSnapshot s) {
 
-        // Set lighting uniforms from generic GameObjects
-        this.sp.set_uniform("ambient_light", this.AMBIENT_LIGHT);
-        this.sp.set_uniform("max_brightness", 10f);
-        int i = 0;
-        for (GameObject go : this.world_objects) {
+        // Cull and rank the snapshot's lights
+        int selected = this.select_lights(s);
 
-            // Send all light-emitting game objects that actually have lights currently to shaders
-            if (go instanceof LightEmitter && ((LightEmitter)go).get_light() != null) {
-                if (i >= this.MAX_LIGHTS)
-                    Log.e("[spdt/world]",
-                            "Maximum light count exceeded! Ignoring remaining lights.");
-                else {
-                    float[] pos = go.get_pos();
-                    this.sp.set_light_uniform("lights", i, ((LightEmitter) go).get_light(),
-                            pos[0], pos[1]);
-                    i++;
-                }
-            }
+        // Tiled lighting bins lights into textures instead of the light uniform array
+        if (this.light_grid != null) {
+            this.set_tiled_lighting_uniforms(s, selected);
+            return;
         }
 
+        // Set lighting uniforms from the selected lights
+        this.sp.set_uniform("ambient_light", this.AMBIENT_LIGHT);
+        this.sp.set_uniform("max_brightness", 10f);
+        for (int i = 0; i < selected; i++)
+            this.sp.set_light_uniform("lights", i, this.light_selector.get_light(i),
+                    this.light_selector.get_x(i), this.light_selector.get_y(i));
+
         // Fill remaining light slots with null
-        for (int j = i; j < MAX_LIGHTS; j++)
+        for (int j = selected; j < MAX_LIGHTS; j++)
             this.sp.set_light_uniform("lights", j, null, -1, -1);
     }
 
+    /**
+     * Sends all of the snapshot's lights (those of light-emitting game objects that had lights) to
+     * the light clusterer, which merges dense groups of small lights, and then to the light
+     * selector, which culls those out of view and ranks the rest by importance.
+     * @return how many lights were selected to fill the available light slots
+     */
+    private int select_lights(WorldSnapshot s) {
+        this.light_selector.begin(s.cam);
+        this.light_clusterer.begin();
+        for (int i = 0; i < s.light_count; i++)
+            this.light_clusterer.add(s.lights[i], s.light_xs[i], s.light_ys[i]);
+
+        // Merge dense groups of small lights before they compete for slots
+        int clustered = this.light_clusterer.cluster();
+        for (int i = 0; i < clustered; i++)
+            this.light_selector.add(this.light_clusterer.get_light(i),
+                    this.light_clusterer.get_x(i), this.light_clusterer.get_y(i));
+        return this.light_selector.select();
+    }
+
+    // Bins the selected lights into the light grid and sets its uniforms pre-render
+    private void set_tiled_lighting_uniforms(WorldSnapshot s, int selected) {
+        this.sp.set_uniform("ambient_light", this.AMBIENT_LIGHT);
+        this.sp.set_uniform("max_brightness", 10f);
+        this.light_grid.begin(s.cam);
+        for (int i = 0; i < selected; i++)
+            this.light_grid.add_light(this.light_selector.get_light(i),
+                    this.light_selector.get_x(i), this.light_selector.get_y(i));
+        this.light_grid.upload();
+        this.light_grid.set_uniforms(this.sp);
+    }
+
+    // Releases the background's cache and textures. Call this on the GL thread when torn down.
+    public void release() {
+        this.background.release();
+        TextureManager.release(this.backdrop);
+        TextureManager.release(this.starfield);
+    }
+
     /**
      * Responds to a resize by:
      * - updating aspect ratio uniform in shader program
@@ -212,9 +330,10 @@ public class World {
                 ((float) Global.VIEWPORT_WIDTH / (float)Global.VIEWPORT_HEIGHT));
         ShaderProgram.unbind_any_shader_program();
 
-        // Notify camera and physics engine
+        // Notify camera, physics engine and background
         this.cam.update_bounds();
         this.physics_engine.resized();
+        this.background.resized();
     }
 
     // Add a new GameObject to the World
@@ -231,6 +350,7 @@ public class World {
         boolean removed = this.world_objects.remove(go);
         if (!removed)
             Log.e("spdt/world", "attempted to remove an object not present in the World");
+        else go.destroy();
         if (go instanceof PhysicsObject) this.physics_objects.remove(go);
     }
 
@@ -243,10 +363,30 @@ public class World {
         if (to_delete instanceof NPC) {
             this.score++;
             this.current_enemies--;
-            ((TextSprite)WorldStage.score_text.get_sprite()).set_text("Score: " + this.score);
         }
     }
 
+    // Returns how many enemies have been killed
+    public int get_score() { return this.score; }
+
+    // Returns how many lights were in view but didn't fit in a light slot during the last render
+    public int get_dropped_lights() { return this.light_selector.get_dropped(); }
+
+    // Returns the World's light clusterer (i.e., to measure its error against per-light lighting)
+    public LightClusterer get_light_clusterer() { return this.light_clusterer; }
+
+    /**
+     * Returns the render queue of the last snapshot rendered (i.e., to check state switches or
+     * visible/culled counts), or null if none has been rendered yet
+     */
+    public RenderQueue get_render_queue() { return this.render_queue; }
+
+    // Returns the World's particle system (i.e., to emit particles or check its budget)
+    public ParticleSystem get_particles() { return this.particles; }
+
+    // Returns the particle emitter with the given name (see particle_emitters.node), or null
+    public ParticleEmitter get_particle_emitter(String name) { return particle_emitters.get(name); }
+
     // Returns the World's camera
     public Camera get_camera() { return this.cam; }
 
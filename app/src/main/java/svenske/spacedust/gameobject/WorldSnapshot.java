@@ -0,0 +1,64 @@
+package svenske.spacedust.gameobject;
+
+import java.util.Arrays;
+
+import svenske.spacedust.graphics.Camera;
+import svenske.spacedust.graphics.LightSource;
+import svenske.spacedust.graphics.ParticleSystem;
+import svenske.spacedust.graphics.RenderQueue;
+
+/**
+ * Everything needed to render a World as of one update, captured by World.capture() and rendered
+ * by World.render(): the camera's view, every visible draw (with its transform and a copy of its
+ * sprite), the lights and their positions, and the particles. Once captured, a snapshot
+ * doesn't depend on the World's objects changing, so the World can go on updating on a simulation
+ * thread while the GL thread renders a snapshot (see TripleBuffer and SimulationThread).
+ *
+ * Snapshots are reused, so every part of one is overwritten by each capture.
+ */
+public class WorldSnapshot {
+
+    // View and draws
+    final Camera cam = new Camera(0f, 0f, 1f);
+    final RenderQueue render_queue;
+
+    // Copies of the lights (which change as they update, i.e., by flickering) and their positions
+    LightSource[] lights = new LightSource[16];
+    float[] light_xs = new float[16], light_ys = new float[16];
+    int light_count;
+
+    // Particles
+    final ParticleSystem.Snapshot particles = new ParticleSystem.Snapshot();
+
+    // Score and player health (as a portion of the maximum) at the time of the snapshot (shown on
+    // the HUD)
+    int score;
+    float player_health;
+
+    // Constructs the WorldSnapshot with the given render queue to capture draws into
+    WorldSnapshot(RenderQueue render_queue) { this.render_queue = render_queue; }
+
+    // Adds a copy of the given light at the given position
+    void add_light(LightSource ls, float x, float y) {
+        int i = this.light_count++;
+        if (i == this.lights.length) {
+            this.lights = Arrays.copyOf(this.lights, i * 2);
+            this.light_xs = Arrays.copyOf(this.light_xs, i * 2);
+            this.light_ys = Arrays.copyOf(this.light_ys, i * 2);
+        }
+        if (this.lights[i] == null) this.lights[i] = new LightSource(new float[3], 0f, 0f, null);
+        LightSource copy = this.lights[i];
+        System.arraycopy(ls.get_glow(), 0, copy.get_glow(), 0, 3);
+        copy.set_intensity(ls.get_intensity());
+        copy.set_reach(ls.get_reach());
+        this.light_xs[i] = x;
+        this.light_ys[i] = y;
+    }
+
+    // Returns the score at the time of the snapshot
+    public int get_score() { return this.score; }
+
+    // Sets and returns the player's health (as a portion of the maximum) at the time of the snapshot
+    public void set_player_health(float player_health) { this.player_health = player_health; }
+    public float get_player_health() { return this.player_health; }
+}
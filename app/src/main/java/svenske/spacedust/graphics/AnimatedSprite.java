@@ -1,11 +1,13 @@
 package svenske.spacedust.graphics;
 
-import java.util.Map;
-
 /**
  * Extends Sprite by supporting Animations. It's not super computationally complex, but static
  * objects that can be represented by normal Sprites should continue to be. The one restriction to
  * note for AnimatedSprites is that all textures used must be on the same atlas.
+ *
+ * Animations are compiled and shared (see AnimationSet), and animation state lives in the Animator,
+ * which advances every AnimatedSprite at once. An AnimatedSprite must be released when it's no
+ * longer used, to free its slot there.
  */
 public class AnimatedSprite extends Sprite {
 
@@ -16,93 +18,73 @@ public class AnimatedSprite extends Sprite {
     // Assign a frame change callback
     public void set_frame_change_callback(FrameChangeCallback fcc) { this.fcc = fcc; }
 
-    /**
-     * A map from strings (animation) names to actual Animation info.
-     * e.g., a ship could have "idle", "shooting", etc. different animations.
-     */
-    private Map<String, Animation> anims;
-    private Animation current_anim; // currently active animation
-
-    // Current frame and how many seconds it has left
-    private int current_frame;
-    private float time_left;
+    // The (shared) animations, and this sprite's slot in the Animator (-1 once released)
+    private AnimationSet animations;
+    int slot;
 
     /**
-     * Creates the AnimatedSprite with the given atlas and animation info (mapped from name to
-     * animation).
-     * @param starting_anim the name of the animation to start with
+     * Creates the AnimatedSprite with the given atlas and compiled animations
+     * @param starting_anim the name ID of the animation to start with (see AnimationSet.intern())
      * The rest of the arguments follow from the superclass constructor.
      */
-    public AnimatedSprite(TextureAtlas atlas, Map<String, Animation> anims, String starting_anim,
+    public AnimatedSprite(TextureAtlas atlas, AnimationSet animations, int starting_anim,
                           float[] vertex_positions, short[] draw_order) {
-        super(atlas,
-                anims.get(starting_anim).atlas_rows != null ? anims.get(starting_anim).atlas_rows[0] : null,
-                anims.get(starting_anim).atlas_cols != null ? anims.get(starting_anim).atlas_cols[0] : null,
-                anims.get(starting_anim).colors != null ? anims.get(starting_anim).colors[0] : null,
-                anims.get(starting_anim).blend_modes[0],
+        super(atlas, 0, 0,
+                AnimationSet.colors[AnimationSet.first_frames[animations.get(starting_anim)]],
+                AnimationSet.blend_modes[AnimationSet.first_frames[animations.get(starting_anim)]],
                 vertex_positions, draw_order);
+        if (!animations.fits(atlas))
+            throw new RuntimeException("[spdt/animatedsprite] " +
+                    "animations were compiled for an atlas of a different shape");
+
+        // Save data and start animating
+        this.animations = animations;
+        this.slot = Animator.add(this, animations.get(starting_anim));
+        this.apply_frame();
+    }
 
-        // Save data
-        this.anims = anims;
-        this.current_anim = this.anims.get(starting_anim);
-        this.current_frame = 0;
-        this.time_left = this.current_anim.frame_time;
+    // Shows the current frame of the Animator slot: its atlas frame, color and blend mode
+    private void apply_frame() {
+        int f = AnimationSet.first_frames[Animator.get_anim(this.slot)] +
+                Animator.get_frame(this.slot);
+        this.frame = AnimationSet.atlas_frames[f];
+        this.color = AnimationSet.colors[f];
+        this.blend_mode = AnimationSet.blend_modes[f];
     }
 
-    // Checks for necessary frame changes
-    @Override
-    public void update(float dt) {
-        super.update(dt);
-        this.time_left -= dt;
-        while (this.time_left < 0f) {
-            this.time_left += this.current_anim.frame_time;
-            this.switch_frames(this.current_frame + 1);
-        }
+    // Called by the Animator when the sprite's frame advanced
+    void on_frame_advanced() {
+        this.apply_frame();
+        if (this.fcc != null) this.fcc.on_frame_change(Animator.get_frame(this.slot));
     }
 
     // Switches the currently active frame
     public void switch_frames(int frame) {
-        this.current_frame = frame % this.current_anim.frames;
-
-        // Update atlas row
-        int atlas_row = -1;
-        if (this.current_anim.atlas_rows != null)
-            atlas_row = this.current_anim.atlas_rows[
-                    this.current_frame % this.current_anim.atlas_rows.length];
-
-        // Update atlas column
-        int atlas_col = -1;
-        if (this.current_anim.atlas_cols != null)
-            atlas_col = this.current_anim.atlas_cols[
-                    this.current_frame % this.current_anim.atlas_cols.length];
-
-        // Update color
-        this.color = null;
-        if (this.current_anim.colors != null)
-            this.color = this.current_anim.colors[
-                    this.current_frame % this.current_anim.colors.length];
-
-        // Update blend mode
-        this.blend_mode = this.current_anim.blend_modes[
-                this.current_frame % this.current_anim.blend_modes.length];
-
-        // Update texture coordinates buffer
-        this.texture_coordinates = TextureAtlas.get_tex_coords_buffer(
-                this.atlas, atlas_row, atlas_col);
-
-        // Call callback if there is one
-        if (this.fcc != null) this.fcc.on_frame_change(this.current_frame);
+        Animator.set_frame(this.slot, frame);
+        this.on_frame_advanced();
     }
 
     /**
      * Changes the currently active animation on the Sprite
-     * @param animation_name the name of the new animation
+     * @param animation the name ID of the new animation (see AnimationSet.intern())
      * @param carry_over if `true`, an attempt to keep the same frame will be made (modulo will be
      *                   used, so this is a safe operation)
      */
+    public void change_animation(int animation, boolean carry_over) {
+        Animator.set(this.slot, this.animations.get(animation),
+                carry_over ? Animator.get_frame(this.slot) : 0);
+        this.on_frame_advanced();
+    }
+
+    // Changes the currently active animation by name (this looks the name up; prefer name IDs)
     public void change_animation(String animation_name, boolean carry_over) {
-        this.current_anim = this.anims.get(animation_name);
-        this.time_left = this.current_anim.frame_time;
-        this.switch_frames(carry_over ? this.current_frame : 0);
+        this.change_animation(AnimationSet.intern(animation_name), carry_over);
+    }
+
+    // Stops animating the sprite, freeing its slot in the Animator. It must not be used after this.
+    public void release() {
+        if (this.slot == -1) return;
+        Animator.remove(this.slot);
+        this.slot = -1;
     }
 }
@@ -9,14 +9,12 @@ import svenske.spacedust.R;
 import svenske.spacedust.utils.Global;
 import svenske.spacedust.utils.Utils;
 
-import static android.opengl.GLES20.GL_FRAMEBUFFER;
 import static android.opengl.GLES20.glDeleteFramebuffers;
-import static android.opengl.GLES20.glViewport;
 
 /**
  * A TextSprite that can be animated. Just like TextSprite, these can be solidified, but into
- * AnimatedSprites. This is highly advised when possible as those will be less computationally
- * expensive to update and render.
+ * AnimatedSprites, which only pays off for bitmap fonts: with distance field fonts, every frame is
+ * drawn from the shared font texture with no GPU memory of its own (see TextSprite).
  */
 public class AnimatedTextSprite extends TextSprite {
 
@@ -93,6 +91,13 @@ public class AnimatedTextSprite extends TextSprite {
         if (buffers_need_updated) this.update_buffers();
     }
 
+    // Returns whether every font of every animation is a distance field
+    private boolean uses_only_sdf_fonts() {
+        for (TextAnimation anim : this.anims.values())
+            for (Font font : anim.fonts) if (!font.is_sdf()) return false;
+        return true;
+    }
+
     /**
      * Changes the currently active animation on the Sprite
      * @param animation_name the name of the new animation
@@ -107,10 +112,13 @@ public class AnimatedTextSprite extends TextSprite {
 
     /**
      * Converts the AnimatedTextSprite into a normal TextSprite using FBOs. Note the resulting
-     * AnimatedSprite will start at frame 0 of the starting animation.
+     * AnimatedSprite will start at frame 0 of the starting animation. If every animation uses
+     * only distance field fonts, no texture is allocated and the AnimatedTextSprite itself is
+     * returned (see TextSprite.solidify()).
      */
     @Override
     public Sprite solidify() {
+        if (this.uses_only_sdf_fonts()) return this;
 
         // Save previous current frame and animation to revert to at the end
         int previous_frame = this.current_frame;
@@ -193,11 +201,10 @@ public class AnimatedTextSprite extends TextSprite {
 
         // Cleanup
         ShaderProgram.unbind_any_shader_program();
-        GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        GLState.restore_render_target();
         glDeleteFramebuffers(1, ids, 0);
 
         // Revert to old viewport, clear color, animation, and frame
-        glViewport(0, 0, Global.VIEWPORT_WIDTH, Global.VIEWPORT_HEIGHT);
         GLES20.glClearColor(Global.CLEAR_COLOR[0], Global.CLEAR_COLOR[1], Global.CLEAR_COLOR[2],
                 Global.CLEAR_COLOR[3]);
         this.current_anim = previous_animation;
@@ -206,7 +213,8 @@ public class AnimatedTextSprite extends TextSprite {
         // Create the new texture and AnimatedSprite and return them
         TextureAtlas new_atlas = new TextureAtlas(ids[1], this.anims.size(), max_frames,
                 new_texture_width, new_texture_height);
-        return new AnimatedSprite(new_atlas, new_anims, this.starting_anim,
+        return new AnimatedSprite(new_atlas, new AnimationSet(new_atlas, new_anims),
+                AnimationSet.intern(this.starting_anim),
                 new float[] {
                     -max_width / 2f,  0.5f, // top left
                     -max_width / 2f, -0.5f, // bottom left
@@ -5,9 +5,16 @@ import android.util.Log;
 import java.util.HashMap;
 import java.util.Map;
 
-// An encapsulation for customizable animation data.
+/**
+ * An encapsulation for customizable animation data. Animations are compiled into an AnimationSet
+ * to be played.
+ */
 public class Animation {
 
+    // Name IDs of the generic ship animations (see AnimationSet.intern())
+    public static final int IDLE   = AnimationSet.intern("idle");
+    public static final int THRUST = AnimationSet.intern("thrust");
+
     // Returns standard animation data for ships
     public static Map<String, Animation> get_generic_ship_animations(int idle_atlas_row, int light_interval) {
         Map<String, Animation> anims = new HashMap<>();
@@ -0,0 +1,115 @@
+package svenske.spacedust.graphics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of named Animations compiled into flat frame tables, to be shared (as a flyweight) by every
+ * AnimatedSprite using them, i.e., every Marauder, instead of each resolving an Animation's
+ * parallel arrays whenever it changes frames. Each frame of each animation is resolved once into
+ * an atlas frame ID, a color, and a blend mode.
+ *
+ * The animations of every set live in the same static tables, indexed by animation, so that
+ * Animator can advance every AnimatedSprite in one loop over primitive arrays. Animation names are
+ * interned into int IDs (see intern()), which callers should look up once and keep.
+ *
+ * Sets are never freed, so they should be compiled once (i.e., per ship type) and kept. Frame IDs
+ * only depend on the atlas' shape, so a set may be used with any atlas of the same shape.
+ */
+public class AnimationSet {
+
+    // Interned animation names
+    private static Map<String, Integer> name_ids = new HashMap<>();
+
+    // Compiled animations of every set, by animation index
+    static int animation_count;
+    static float[] frame_times = new float[16];
+    static int[] frame_counts  = new int[16];
+    static int[] first_frames  = new int[16]; // Index of each animation's first frame below
+
+    // Compiled frames of every animation
+    static int frame_count;
+    static int[] atlas_frames         = new int[64]; // Atlas frame ID, or -1 for no texture
+    static float[][] colors           = new float[64][];
+    static BlendMode[] blend_modes    = new BlendMode[64];
+
+    // This set's animation indices by name ID (-1 where it has none), and its atlas' shape
+    private int[] by_name;
+    private int atlas_rows, atlas_cols;
+
+    // Returns the ID of the given animation name, interning it if it's new
+    public static int intern(String name) {
+        Integer id = name_ids.get(name);
+        if (id == null) {
+            id = name_ids.size();
+            name_ids.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Compiles the given animations
+     * @param atlas the atlas the animations' rows and columns are on (or one of the same shape)
+     * @param anims the animations by name
+     */
+    public AnimationSet(TextureAtlas atlas, Map<String, Animation> anims) {
+        if (atlas != null) {
+            this.atlas_rows = atlas.rows;
+            this.atlas_cols = atlas.cols;
+        }
+        this.by_name = new int[0];
+        for (Map.Entry<String, Animation> entry : anims.entrySet()) {
+            int name_id = AnimationSet.intern(entry.getKey());
+            if (name_id >= this.by_name.length) {
+                int old_length = this.by_name.length;
+                this.by_name = Arrays.copyOf(this.by_name, name_id + 1);
+                Arrays.fill(this.by_name, old_length, this.by_name.length, -1);
+            }
+            this.by_name[name_id] = AnimationSet.compile(atlas, entry.getValue());
+        }
+    }
+
+    // Compiles an animation into the static tables, returning its index
+    private static int compile(TextureAtlas atlas, Animation anim) {
+        int index = animation_count++;
+        if (index == frame_times.length) {
+            frame_times = Arrays.copyOf(frame_times, index * 2);
+            frame_counts = Arrays.copyOf(frame_counts, index * 2);
+            first_frames = Arrays.copyOf(first_frames, index * 2);
+        }
+        frame_times[index] = anim.frame_time;
+        frame_counts[index] = anim.frames;
+        first_frames[index] = frame_count;
+
+        // Resolve each frame, repeating shorter arrays as Animation describes
+        if (frame_count + anim.frames > atlas_frames.length) {
+            int capacity = Math.max(atlas_frames.length * 2, frame_count + anim.frames);
+            atlas_frames = Arrays.copyOf(atlas_frames, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+            blend_modes = Arrays.copyOf(blend_modes, capacity);
+        }
+        for (int i = 0; i < anim.frames; i++) {
+            int row = anim.atlas_rows == null ? -1 : anim.atlas_rows[i % anim.atlas_rows.length];
+            int col = anim.atlas_cols == null ? -1 : anim.atlas_cols[i % anim.atlas_cols.length];
+            atlas_frames[frame_count] = (atlas == null || row == -1 || col == -1) ? -1 :
+                    atlas.get_frame(row, col);
+            colors[frame_count] = anim.colors == null ? null : anim.colors[i % anim.colors.length];
+            blend_modes[frame_count] = anim.blend_modes[i % anim.blend_modes.length];
+            frame_count++;
+        }
+        return index;
+    }
+
+    // Returns the index of this set's animation with the given name ID
+    int get(int name_id) {
+        if (name_id < 0 || name_id >= this.by_name.length || this.by_name[name_id] == -1)
+            throw new RuntimeException("[spdt/animationset] no animation with name ID " + name_id);
+        return this.by_name[name_id];
+    }
+
+    // Returns whether the set's frame IDs are valid for the given atlas
+    boolean fits(TextureAtlas atlas) {
+        return atlas == null || (atlas.rows == this.atlas_rows && atlas.cols == this.atlas_cols);
+    }
+}
@@ -0,0 +1,96 @@
+package svenske.spacedust.graphics;
+
+import java.util.Arrays;
+
+/**
+ * Holds the animation state of every AnimatedSprite (which animation it's playing, which frame it's
+ * on, and how long that frame has left) in parallel primitive arrays, so that all of them are
+ * advanced in one tight loop per update (see advance()). Animations are looked up in the shared
+ * tables of AnimationSet. Each AnimatedSprite owns a slot here until it's released.
+ */
+public class Animator {
+
+    // Per-slot animation state
+    private static int count;
+    private static int[] anims           = new int[32];
+    private static int[] frames          = new int[32];
+    private static float[] times_left    = new float[32];
+    private static AnimatedSprite[] sprites = new AnimatedSprite[32];
+
+    // Forgets every slot. Call this whenever the sprites using them are discarded.
+    public static void reset() {
+        Arrays.fill(sprites, 0, count, null);
+        count = 0;
+    }
+
+    // Gives the given sprite a slot, starting the given animation (by index). Returns the slot.
+    static int add(AnimatedSprite sprite, int anim) {
+        if (count == sprites.length) {
+            anims = Arrays.copyOf(anims, count * 2);
+            frames = Arrays.copyOf(frames, count * 2);
+            times_left = Arrays.copyOf(times_left, count * 2);
+            sprites = Arrays.copyOf(sprites, count * 2);
+        }
+        sprites[count] = sprite;
+        Animator.set(count, anim, 0);
+        return count++;
+    }
+
+    // Frees the given slot, moving the last slot into it
+    static void remove(int slot) {
+        int last = --count;
+        if (slot != last) {
+            anims[slot] = anims[last];
+            frames[slot] = frames[last];
+            times_left[slot] = times_left[last];
+            sprites[slot] = sprites[last];
+            sprites[slot].slot = slot;
+        }
+        sprites[last] = null;
+    }
+
+    // Starts the given animation (by index) at the given frame in the given slot
+    static void set(int slot, int anim, int frame) {
+        anims[slot] = anim;
+        frames[slot] = frame % AnimationSet.frame_counts[anim];
+        times_left[slot] = AnimationSet.frame_times[anim];
+    }
+
+    // Moves the given slot to the given frame of its animation, without restarting the frame's time
+    static void set_frame(int slot, int frame) {
+        frames[slot] = frame % AnimationSet.frame_counts[anims[slot]];
+    }
+
+    // Accessors for slot state
+    static int get_anim(int slot) { return anims[slot]; }
+    static int get_frame(int slot) { return frames[slot]; }
+
+    /**
+     * Advances every animation by the given time. Sprites are only touched when their frame
+     * changes, in which case they're told once per frame passed (as frame change callbacks may
+     * depend on seeing every frame).
+     */
+    public static void advance(float dt) {
+        float[] frame_times = AnimationSet.frame_times;
+        int[] frame_counts = AnimationSet.frame_counts;
+        for (int i = 0; i < count; i++) {
+            float t = times_left[i] - dt;
+            times_left[i] = t;
+            while (t < 0f) {
+                int anim = anims[i];
+                if (frame_times[anim] <= 0f) { // Would never catch up
+                    times_left[i] = 0f;
+                    break;
+                }
+                times_left[i] = t + frame_times[anim];
+                int frame = frames[i] + 1;
+                frames[i] = frame == frame_counts[anim] ? 0 : frame;
+                sprites[i].on_frame_advanced(); // May change animation (and so times_left)
+                t = times_left[i];
+            }
+        }
+    }
+
+    // Returns how many AnimatedSprites are being animated
+    public static int get_count() { return count; }
+}
@@ -0,0 +1,290 @@
+package svenske.spacedust.graphics;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import svenske.spacedust.R;
+import svenske.spacedust.utils.Global;
+import svenske.spacedust.utils.Utils;
+
+/**
+ * Renders a World's background as a stack of tiled, repeating layers with a cheap unlit shader
+ * (vertex_background.glsl/fragment_background.glsl), each of which is a single full-screen quad.
+ * Layers scroll with the camera by their parallax factor: 1 is fixed to the world, and anything
+ * lower appears further away.
+ *
+ * Layers fixed to the world (parallax 1) don't depend on lighting or on each other, so when there
+ * is more than one they are rendered once into a cache (an FBO covering the view plus a margin
+ * on every side) and the cache is drawn instead. The cache is only re-rendered when the camera has
+ * moved far enough that the margin would run out, the zoom or viewport has changed, or a cached
+ * layer's texture has finished loading (see TextureLoader). Parallax layers move relative to the
+ * world, so they are always drawn live on top of the cache.
+ */
+public class Background {
+
+    // Cache settings
+    private static final float CACHE_MARGIN    = 0.25f; // Margin per side, relative to the view
+    private static final float CACHE_THRESHOLD = 0.9f;  // Portion of the margin moved to re-render
+    private static final float CACHE_SCALE     = 0.5f;  // Cache resolution relative to the screen
+
+    // Shader program
+    private ShaderProgram sp;
+
+    // Layers
+    private List<Layer> cached_layers;          // Layers fixed to the world
+    private List<Layer> live_layers;            // Layers drawn every frame (in order added)
+
+    // Cache info
+    private int[] cache_ids;                    // [ fbo_id, texture_id ], or null if none yet
+    private TextureManager.Texture cache_texture; // The cache's texture, as tracked
+    private int cache_width, cache_height;      // Size of the cache in pixels
+    private float cache_x, cache_y;             // World position at the center of the cache
+    private float cache_w, cache_h;             // World size the cache covers
+    private float cache_zoom;                   // Camera zoom the cache was rendered at
+    private boolean cache_dirty = true;         // Whether the cache must be re-rendered
+    private Layer cache_layer;                  // A layer to draw the cache with
+    private int cache_renders;                  // How many times the cache has been rendered
+
+    // Scratch array for vec2 uniforms
+    private float[] scratch = new float[2];
+
+    // Constructs the Background with no layers
+    public Background() {
+        this.sp = new ShaderProgram(R.raw.vertex_background, R.raw.fragment_background);
+        this.cached_layers = new ArrayList<>();
+        this.live_layers = new ArrayList<>();
+        this.cache_layer = new Layer(0, 0f, 0f, 1f, null, 0f, 1f);
+    }
+
+    /**
+     * Adds a layer on top of all layers added before. Layers fixed to the world (parallax 1) are
+     * always drawn beneath parallax layers, as they are drawn from the cache.
+     * @param texture_id the texture to tile. It should use clamp wrapping (tiling is done in the
+     *                   shader, so that non-power-of-two textures can be tiled as well)
+     * @param tile_w the width of one tile in world units
+     * @param tile_h the height of one tile in world units
+     * @param parallax how much the layer moves with the world (1 is fixed to the world, 0 is fixed
+     *                 to the screen)
+     * @param tint a color to mix into the texture, or null for none
+     * @param tint_mix how much of the tint to mix in (0.5 is the same as BlendMode.AVG)
+     * @param brightness a multiplier applied to the layer's color
+     */
+    public void add_layer(int texture_id, float tile_w, float tile_h, float parallax,
+                          float[] tint, float tint_mix, float brightness) {
+        this.add_layer(texture_id, null, tile_w, tile_h, parallax, tint, tint_mix, brightness);
+    }
+
+    /**
+     * Adds a layer tiling a texture from the TextureManager (see add_layer() above). If the texture
+     * is still loading, the cache is re-rendered once its image is uploaded.
+     */
+    public void add_layer(TextureManager.Texture texture, float tile_w, float tile_h,
+                          float parallax, float[] tint, float tint_mix, float brightness) {
+        this.add_layer(texture.id, texture, tile_w, tile_h, parallax, tint, tint_mix, brightness);
+    }
+
+    // Adds a layer, tracking its texture's uploads if it's from the TextureManager
+    private void add_layer(int texture_id, TextureManager.Texture texture, float tile_w,
+                           float tile_h, float parallax, float[] tint, float tint_mix,
+                           float brightness) {
+        Layer layer = new Layer(texture_id, tile_w, tile_h, parallax, tint, tint_mix, brightness);
+        layer.texture = texture;
+        layer.texture_version = texture == null ? 0 : texture.version;
+        if (parallax == 1f) this.cached_layers.add(layer);
+        else this.live_layers.add(layer);
+        this.cache_dirty = true;
+    }
+
+    // Renders the background as seen by the given camera
+    public void render(Camera cam) {
+        this.sp.bind();
+        GLState.set_attrib_arrays(1 << this.sp.get_attribute_location("vertex_position"));
+        GLState.attrib_pointer(this.sp.get_attribute_location("vertex_position"), 2,
+                Sprite.get_square_vertex_positions_buffer());
+        float[] view_size = cam.get_view_size(1f);
+
+        // A cache of a single layer would cost as much to draw as the layer itself
+        if (this.cached_layers.size() > 1) {
+            if (this.cache_needs_render(cam, view_size)) this.render_cache(cam, view_size);
+            this.cache_layer.texture_id = this.cache_ids[1];
+            this.cache_layer.tile_w = this.cache_w;
+            this.cache_layer.tile_h = this.cache_h;
+            this.draw_layer(this.cache_layer, this.cache_x, this.cache_y,
+                    cam.get_x(), cam.get_y(), view_size[0], view_size[1]);
+        } else for (Layer layer : this.cached_layers)
+            this.draw_layer(layer, 0f, 0f, cam.get_x(), cam.get_y(), view_size[0], view_size[1]);
+
+        // Draw parallax layers live
+        for (Layer layer : this.live_layers) {
+            float lag = 1f - layer.parallax; // How much the layer follows the camera
+            this.draw_layer(layer, cam.get_x() * lag, cam.get_y() * lag,
+                    cam.get_x(), cam.get_y(), view_size[0], view_size[1]);
+        }
+    }
+
+    // Return whether the cache no longer covers the camera's view or is out of date
+    private boolean cache_needs_render(Camera cam, float[] view_size) {
+        for (Layer layer : this.cached_layers) { // A placeholder may have been baked in
+            if (layer.texture == null || layer.texture.version == layer.texture_version) continue;
+            layer.texture_version = layer.texture.version;
+            this.cache_dirty = true;
+        }
+        if (this.cache_dirty || this.cache_zoom != cam.get_zoom()) return true;
+        float threshold_x = view_size[0] * CACHE_MARGIN * CACHE_THRESHOLD;
+        float threshold_y = view_size[1] * CACHE_MARGIN * CACHE_THRESHOLD;
+        return Math.abs(cam.get_x() - this.cache_x) > threshold_x ||
+               Math.abs(cam.get_y() - this.cache_y) > threshold_y;
+    }
+
+    // Renders the layers fixed to the world into the cache, centered on the camera
+    private void render_cache(Camera cam, float[] view_size) {
+
+        // (Re)create the cache at the right size for the viewport
+        int width = Math.max(1, (int)(Global.VIEWPORT_WIDTH * (1f + 2f * CACHE_MARGIN) *
+                CACHE_SCALE));
+        int height = Math.max(1, (int)(Global.VIEWPORT_HEIGHT * (1f + 2f * CACHE_MARGIN) *
+                CACHE_SCALE));
+        if (this.cache_ids == null || width != this.cache_width || height != this.cache_height) {
+            this.free_cache();
+            this.cache_ids = Utils.get_new_fbo_and_bound_texture(width, height);
+            GLState.bind_texture(0, this.cache_ids[1]); // Never wrapped (NPOT textures can't be)
+            TextureManager.set_parameters(TextureManager.CLAMP);
+            this.cache_texture = TextureManager.register("background cache", this.cache_ids[1],
+                    width, height, width * height * 4);
+            this.cache_width = width;
+            this.cache_height = height;
+        }
+
+        // Cover the view plus the margin
+        this.cache_x = cam.get_x();
+        this.cache_y = cam.get_y();
+        this.cache_w = view_size[0] * (1f + 2f * CACHE_MARGIN);
+        this.cache_h = view_size[1] * (1f + 2f * CACHE_MARGIN);
+        this.cache_zoom = cam.get_zoom();
+
+        /*
+         * Render. The region is flipped vertically so that the cache's rows run top-down like any
+         * other texture's, letting it be drawn as an ordinary layer.
+         */
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, this.cache_ids[0]);
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClearColor(0f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        for (Layer layer : this.cached_layers)
+            this.draw_layer(layer, 0f, 0f, this.cache_x, this.cache_y, this.cache_w, -this.cache_h);
+        GLState.restore_render_target();
+        GLES20.glClearColor(Global.CLEAR_COLOR[0], Global.CLEAR_COLOR[1], Global.CLEAR_COLOR[2],
+                Global.CLEAR_COLOR[3]);
+        this.cache_dirty = false;
+        this.cache_renders++;
+    }
+
+    /**
+     * Draws one layer over the whole render target
+     * @param offset_x the world x offset of the layer's tiles
+     * @param offset_y the world y offset of the layer's tiles
+     * @param x the world x at the center of the render target
+     * @param y the world y at the center of the render target
+     * @param w the world width across the render target
+     * @param h the world height across the render target (negative to flip)
+     */
+    private void draw_layer(Layer layer, float offset_x, float offset_y,
+                            float x, float y, float w, float h) {
+        GLState.bind_texture(0, layer.texture_id);
+        this.sp.set_uniform("texture_sampler", 0);
+        this.sp.set_uniform("region_center", this.vec2(x, y));
+        this.sp.set_uniform("region_size", this.vec2(w, h));
+        this.sp.set_uniform("layer_offset", this.vec2(offset_x, offset_y));
+        this.sp.set_uniform("tile_size", this.vec2(layer.tile_w, layer.tile_h));
+        this.sp.set_uniform("tint", layer.tint);
+        this.sp.set_uniform("tint_mix", layer.tint_mix);
+        this.sp.set_uniform("brightness", layer.brightness);
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, Sprite.SQUARE_VERTEX_COUNT,
+                GLES20.GL_UNSIGNED_SHORT, Sprite.get_square_draw_order_buffer());
+    }
+
+    // Fills and returns the scratch vec2 (uniform values are copied, so one array can be reused)
+    private float[] vec2(float x, float y) {
+        this.scratch[0] = x;
+        this.scratch[1] = y;
+        return this.scratch;
+    }
+
+    // Responds to a resize by re-rendering the cache (at the new size) before it's next drawn
+    public void resized() { this.cache_dirty = true; }
+
+    // Frees the cache's FBO and texture, if there are any
+    private void free_cache() {
+        if (this.cache_ids == null) return;
+        GLES20.glDeleteFramebuffers(1, this.cache_ids, 0);
+        TextureManager.release(this.cache_texture);
+        this.cache_ids = null;
+    }
+
+    // Frees the cache. Layers' textures belong to whoever added them, so they aren't released.
+    public void release() { this.free_cache(); }
+
+    // Return how many times the cache has been rendered (i.e., to check it's rarely re-rendered)
+    public int get_cache_renders() { return this.cache_renders; }
+
+    /**
+     * Generates a square, tileable starfield texture: transparent, with white stars of random
+     * brightness. A few stars are drawn larger than one texel.
+     * @param size the width and height of the texture in texels (a power of two)
+     * @param stars how many stars to scatter
+     * @param seed a seed for the random generator, so the same starfield is generated every time
+     * @return the generated texture, tracked by the TextureManager (release it when done with)
+     */
+    public static TextureManager.Texture create_starfield_texture(int size, int stars, long seed) {
+
+        // Scatter stars (wrapping around the edges, so the texture tiles seamlessly)
+        ByteBuffer pixels = ByteBuffer.allocateDirect(size * size * 4).order(ByteOrder.nativeOrder());
+        Random random = new Random(seed);
+        for (int i = 0; i < stars; i++) {
+            int x = random.nextInt(size), y = random.nextInt(size);
+            int extent = random.nextFloat() < 0.1f ? 2 : 1; // Some stars are bigger
+            byte alpha = (byte)(64 + random.nextInt(192));
+            for (int dx = 0; dx < extent; dx++) {
+                for (int dy = 0; dy < extent; dy++) {
+                    int idx = (((y + dy) % size) * size + ((x + dx) % size)) * 4;
+                    pixels.put(idx, (byte)255).put(idx + 1, (byte)255).put(idx + 2, (byte)255);
+                    pixels.put(idx + 3, alpha);
+                }
+            }
+        }
+
+        // Upload
+        int[] id = new int[1];
+        GLES20.glGenTextures(1, id, 0);
+        GLState.bind_texture(0, id[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, size, size, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        TextureManager.set_parameters(TextureManager.CLAMP);
+        return TextureManager.register("starfield", id[0], size, size, size * size * 4);
+    }
+
+    // A single tiled background layer
+    private static class Layer {
+        int texture_id;
+        TextureManager.Texture texture; // Null if not from the TextureManager
+        int texture_version;            // The texture's version when last drawn into the cache
+        float tile_w, tile_h, parallax;
+        float[] tint;
+        float tint_mix, brightness;
+        Layer(int texture_id, float tile_w, float tile_h, float parallax, float[] tint,
+              float tint_mix, float brightness) {
+            this.texture_id = texture_id;
+            this.tile_w = tile_w;
+            this.tile_h = tile_h;
+            this.parallax = parallax;
+            this.tint = tint == null ? new float[] { 0f, 0f, 0f, 0f } : tint;
+            this.tint_mix = tint == null ? 0f : tint_mix;
+            this.brightness = brightness;
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package svenske.spacedust.graphics;
 
-// Describes how a color and texture interact. They're pretty self-explanatory.
+/**
+ * Describes how a color and texture interact. They're pretty self-explanatory, except for SDF:
+ * the texture is a signed distance field (see DistanceField), and the color is shown wherever it
+ * is inside the shape, with anti-aliased edges.
+ */
 public enum BlendMode {
-    JUST_COLOR, JUST_TEXTURE, ADDITIVE, SUBTRACTIVE, MULTIPLICATIVE, AVG
+    JUST_COLOR, JUST_TEXTURE, ADDITIVE, SUBTRACTIVE, MULTIPLICATIVE, AVG, SDF
 }
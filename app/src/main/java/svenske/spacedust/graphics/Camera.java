@@ -28,6 +28,22 @@ public class Camera {
         shader_program.set_uniform("cam_zoom", this.zoom);
     }
 
+    // Makes this camera a copy of the given one (i.e., to keep a camera's view in a snapshot)
+    public void copy_from(Camera other) {
+        this.x = other.x;
+        this.y = other.y;
+        this.zoom = other.zoom;
+        this.min_x = other.min_x;
+        this.max_x = other.max_x;
+        this.min_y = other.min_y;
+        this.max_y = other.max_y;
+        this.min_c_x = other.min_c_x;
+        this.max_c_x = other.max_c_x;
+        this.min_c_y = other.min_c_y;
+        this.max_c_y = other.max_c_y;
+        this.bounded = other.bounded;
+    }
+
     // Accessors
     public float get_x() { return this.x; }
     public float get_y() { return this.y; }
@@ -87,6 +103,16 @@ public class Camera {
         return new float[] { view_width, view_height };
     }
 
+    /**
+     * Returns the camera's view (multiplied by some given scalar) as a world-space rectangle
+     * @return a length-4 array [min_x, min_y, max_x, max_y]
+     */
+    public float[] get_view_rect(float mul) {
+        float[] view_size = this.get_view_size(mul);
+        return new float[] { this.x - view_size[0] / 2, this.y - view_size[1] / 2,
+                             this.x + view_size[0] / 2, this.y + view_size[1] / 2 };
+    }
+
     // Return if the given position is out of the camera's view (scaled by the given scalar)
     public boolean out_of_view(float x, float y, float mul) {
 
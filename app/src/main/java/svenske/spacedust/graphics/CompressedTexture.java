@@ -0,0 +1,187 @@
+package svenske.spacedust.graphics;
+
+import android.opengl.ETC1;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import svenske.spacedust.GameActivity;
+import svenske.spacedust.utils.Global;
+
+/**
+ * A compressed texture read from a raw resource: either an ETC1 .pkm file or a .ktx file (i.e.,
+ * ETC2, possibly with mipmaps). These are produced from drawable images by the compressTextures
+ * build step, and named after the image they were made from: the ETC2 version of background.png is
+ * raw/background_etc2.ktx, and its ETC1 version is raw/background_etc1.pkm. Only opaque images are
+ * compressed to ETC1, as ETC1 has no alpha.
+ *
+ * TextureManager loads these instead of the original image whenever the context supports them
+ * (see find_variant()), taking a half (ETC1, ETC2 RGB) or a quarter (ETC2 RGBA) of the memory.
+ */
+public class CompressedTexture {
+
+    // File identifiers
+    private static final byte[] PKM_MAGIC = { 'P', 'K', 'M', ' ', '1', '0' };
+    private static final byte[] KTX_MAGIC = { (byte)0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte)0xBB,
+            '\r', '\n', 0x1A, '\n' };
+    private static final int HEADER_SIZE = 64; // Enough for either header
+
+    // Texture info and data
+    public final int format;   // The GL internal format
+    public final int width, height;
+    public final int levels;   // Mipmap levels
+    private ByteBuffer[] data; // Each mipmap level's data (null if only the header was read)
+
+    // Constructs the CompressedTexture with the given info, and data if read
+    private CompressedTexture(int format, int width, int height, int levels, ByteBuffer[] data) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+        this.data = data;
+    }
+
+    /**
+     * Finds the best compressed version of the image at the given resource ID that the context
+     * supports: ETC2 if possible, then ETC1.
+     * @return the resource ID of the compressed version, or 0 if there is none to use
+     */
+    public static int find_variant(int resource_id) {
+        String name = GameActivity.app_resources.getResourceEntryName(resource_id);
+        String pkg = GameActivity.app_resources.getResourcePackageName(resource_id);
+        int id = 0;
+        if (Global.ETC2_SUPPORTED)
+            id = GameActivity.app_resources.getIdentifier(name + "_etc2", "raw", pkg);
+        if (id == 0 && Global.ETC1_SUPPORTED)
+            id = GameActivity.app_resources.getIdentifier(name + "_etc1", "raw", pkg);
+        return id;
+    }
+
+    // Reads only the header of the compressed texture at the given resource ID (no data)
+    public static CompressedTexture read_info(int resource_id) { return read(resource_id, false); }
+
+    // Reads the compressed texture at the given resource ID, header and data
+    public static CompressedTexture read(int resource_id) { return read(resource_id, true); }
+
+    // Reads the compressed texture at the given resource ID, with its data if asked to
+    private static CompressedTexture read(int resource_id, boolean with_data) {
+        InputStream is = GameActivity.app_resources.openRawResource(resource_id);
+        ByteBuffer file;
+        try {
+            file = ByteBuffer.wrap(with_data ? read_fully(is) : read_header(is));
+        } catch (IOException e) {
+            throw new RuntimeException("[spdt/compressedtexture] unable to read compressed " +
+                    "texture: " + e.getMessage());
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                throw new RuntimeException("[spdt/compressedtexture] unable to read compressed " +
+                        "texture: " + e.getMessage());
+            }
+        }
+        if (starts_with(file, PKM_MAGIC)) return read_pkm(file, with_data);
+        if (starts_with(file, KTX_MAGIC)) return read_ktx(file, with_data);
+        throw new RuntimeException("[spdt/compressedtexture] resource " + resource_id +
+                " is neither a .pkm nor a .ktx file");
+    }
+
+    // Reads an ETC1 .pkm file: a big-endian header followed by one level of data
+    private static CompressedTexture read_pkm(ByteBuffer file, boolean with_data) {
+        file.order(ByteOrder.BIG_ENDIAN);
+        int width = file.getShort(12) & 0xFFFF, height = file.getShort(14) & 0xFFFF;
+        ByteBuffer[] data = null;
+        if (with_data) {
+            file.position(ETC1.ETC_PKM_HEADER_SIZE);
+            data = new ByteBuffer[] { to_direct(file, file.remaining()) };
+        }
+        return new CompressedTexture(ETC1.ETC1_RGB8_OES, width, height, 1, data);
+    }
+
+    /**
+     * Reads a .ktx file: a header (in the endianness of its writer), key/value data to skip, then
+     * each mipmap level's size and data, padded to four bytes
+     */
+    private static CompressedTexture read_ktx(ByteBuffer file, boolean with_data) {
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        if (file.getInt(12) != 0x04030201) file.order(ByteOrder.BIG_ENDIAN);
+        int format = file.getInt(28);
+        int width = file.getInt(36), height = file.getInt(40);
+        int levels = Math.max(1, file.getInt(56));
+        ByteBuffer[] data = null;
+        if (with_data) {
+            data = new ByteBuffer[levels];
+            file.position(HEADER_SIZE + file.getInt(60));
+            for (int i = 0; i < levels; i++) {
+                int size = file.getInt();
+                data[i] = to_direct(file, size);
+                file.position(file.position() + (3 - (size + 3) % 4)); // Padding
+            }
+        }
+        return new CompressedTexture(format, width, height, levels, data);
+    }
+
+    // Uploads the texture's levels to the bound texture. Must have been read with its data.
+    public void upload() {
+        int w = this.width, h = this.height;
+        for (int i = 0; i < this.levels; i++) {
+            GLES20.glCompressedTexImage2D(GLES20.GL_TEXTURE_2D, i, this.format, w, h, 0,
+                    this.data[i].capacity(), this.data[i]);
+            w = Math.max(1, w / 2);
+            h = Math.max(1, h / 2);
+        }
+        this.data = null; // No need to keep it around
+    }
+
+    // Returns the (estimated) GPU memory the texture takes, including mipmaps
+    public int get_bytes() {
+        int bits = this.format == GLES30.GL_COMPRESSED_RGBA8_ETC2_EAC ? 8 : 4; // Per texel
+        int bytes = 0, w = this.width, h = this.height;
+        for (int i = 0; i < this.levels; i++) {
+            bytes += ((w + 3) / 4) * ((h + 3) / 4) * 2 * bits;
+            w = Math.max(1, w / 2);
+            h = Math.max(1, h / 2);
+        }
+        return bytes;
+    }
+
+    // Copies the given amount of bytes from the buffer's position into a direct buffer
+    private static ByteBuffer to_direct(ByteBuffer src, int size) {
+        ByteBuffer out = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        ByteBuffer slice = src.slice();
+        slice.limit(size);
+        out.put(slice).position(0);
+        src.position(src.position() + size);
+        return out;
+    }
+
+    // Returns whether the buffer starts with the given bytes
+    private static boolean starts_with(ByteBuffer buffer, byte[] prefix) {
+        if (buffer.limit() < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) if (buffer.get(i) != prefix[i]) return false;
+        return true;
+    }
+
+    // Reads just enough of the stream to contain a header
+    private static byte[] read_header(InputStream is) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int read = 0, n;
+        while (read < HEADER_SIZE && (n = is.read(header, read, HEADER_SIZE - read)) != -1)
+            read += n;
+        return header;
+    }
+
+    // Reads the whole stream
+    private static byte[] read_fully(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[16384];
+        int n;
+        while ((n = is.read(chunk)) != -1) out.write(chunk, 0, n);
+        return out.toByteArray();
+    }
+}
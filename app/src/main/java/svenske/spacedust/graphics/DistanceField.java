@@ -0,0 +1,118 @@
+package svenske.spacedust.graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Generates signed distance fields from coverage images (i.e., a font atlas), for rendering with
+ * BlendMode.SDF. Each texel of the result stores, in its alpha, the distance from its center to
+ * the nearest edge of the shape: 0.5 is on the edge, above is inside and below is outside, with
+ * the full range covering the given spread on either side. Since the distance is linearly
+ * interpolated between texels, edges stay crisp at any magnification.
+ *
+ * Distances are exact euclidean distances, computed with the separable linear-time transform of
+ * Felzenszwalb and Huttenlocher. Each cell of an atlas is transformed separately so that glyphs
+ * never bleed into neighboring cells.
+ */
+public class DistanceField {
+
+    private static final float INF = 1e20f;
+
+    /**
+     * Generates the distance field of an atlas
+     * @param argb the atlas' pixels as ARGB ints (see Bitmap.getPixels()). A pixel is inside the
+     *             shape if its alpha is at least half
+     * @param cell_w the width of each atlas cell in pixels
+     * @param cell_h the height of each atlas cell in pixels
+     * @param spread the distance (in pixels) from the edge at which the field saturates
+     * @return the distance field as RGBA texels (white, with the distance in alpha)
+     */
+    public static ByteBuffer generate(int[] argb, int width, int height, int cell_w, int cell_h,
+                                      float spread) {
+        ByteBuffer out = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+
+        // Working memory, sized for one cell and re-used for every cell
+        int n = Math.max(cell_w, cell_h);
+        float[] to_inside = new float[cell_w * cell_h];
+        float[] to_outside = new float[cell_w * cell_h];
+        float[] f = new float[n], d = new float[n], z = new float[n + 1];
+        int[] v = new int[n];
+
+        // Transform each cell
+        for (int cy = 0; cy < height; cy += cell_h) {
+            for (int cx = 0; cx < width; cx += cell_w) {
+                int w = Math.min(cell_w, width - cx), h = Math.min(cell_h, height - cy);
+
+                // Seed: zero distance at features, infinite everywhere else
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        boolean inside = (argb[(cy + y) * width + cx + x] >>> 24) >= 128;
+                        to_inside[y * w + x] = inside ? 0f : INF;
+                        to_outside[y * w + x] = inside ? INF : 0f;
+                    }
+                }
+                transform(to_inside, w, h, f, d, z, v);
+                transform(to_outside, w, h, f, d, z, v);
+
+                // Combine into a signed distance, measured from the edge between pixels
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        float di = to_inside[y * w + x], dout = to_outside[y * w + x];
+                        float sd = di == 0f ? (float)Math.sqrt(dout) - 0.5f
+                                            : 0.5f - (float)Math.sqrt(di);
+                        float value = Math.min(1f, Math.max(0f, 0.5f + sd / (2f * spread)));
+                        int idx = ((cy + y) * width + cx + x) * 4;
+                        out.put(idx, (byte)255).put(idx + 1, (byte)255).put(idx + 2, (byte)255);
+                        out.put(idx + 3, (byte)Math.round(value * 255f));
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    // Transforms a grid of squared distances in place: first along columns, then along rows
+    private static void transform(float[] grid, int w, int h, float[] f, float[] d, float[] z,
+                                  int[] v) {
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) f[y] = grid[y * w + x];
+            transform_1d(f, h, d, z, v);
+            for (int y = 0; y < h; y++) grid[y * w + x] = d[y];
+        }
+        for (int y = 0; y < h; y++) {
+            System.arraycopy(grid, y * w, f, 0, w);
+            transform_1d(f, w, d, z, v);
+            System.arraycopy(d, 0, grid, y * w, w);
+        }
+    }
+
+    /**
+     * The one-dimensional squared distance transform: the lower envelope of the parabolas rooted
+     * at each sample of f.
+     * @param d filled with the squared distances
+     * @param z working memory: boundaries between parabolas of the envelope
+     * @param v working memory: roots of the parabolas of the envelope
+     */
+    private static void transform_1d(float[] f, int n, float[] d, float[] z, int[] v) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = -INF;
+        z[1] = INF;
+        for (int q = 1; q < n; q++) {
+            float s = ((f[q] + q * q) - (f[v[k]] + v[k] * v[k])) / (2 * q - 2 * v[k]);
+            while (s <= z[k]) {
+                k--;
+                s = ((f[q] + q * q) - (f[v[k]] + v[k] * v[k])) / (2 * q - 2 * v[k]);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k + 1] = INF;
+        }
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q) k++;
+            d[q] = (q - v[k]) * (q - v[k]) + f[v[k]];
+        }
+    }
+}
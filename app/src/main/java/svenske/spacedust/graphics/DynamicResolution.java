@@ -0,0 +1,171 @@
+package svenske.spacedust.graphics;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import svenske.spacedust.R;
+import svenske.spacedust.utils.Global;
+import svenske.spacedust.utils.Utils;
+
+/**
+ * Renders a pass (i.e., the World, which is fill-rate bound by its lit shader) into an offscreen
+ * FBO at a fraction of the screen's resolution and upscales it onto the screen, so that weak
+ * devices draw fewer fragments. Anything rendered after end() (i.e., the HUD) is at native
+ * resolution.
+ *
+ * The scale is adjusted from measured frame times (see update()) against a target frame time:
+ * - frames slower than the target by DOWN_THRESHOLD for DOWN_FRAMES frames in a row lower it
+ * - frames within UP_THRESHOLD of the target for a while raise it again. As frame times can't tell
+ *   how much headroom there is, raising is a probe: if the scale has to come straight back down,
+ *   the wait before the next probe is doubled (up to MAX_UP_FRAMES), so the scale doesn't flicker.
+ *
+ * The FBO is allocated once at the screen's size and rendered into a corner of, so changing the
+ * scale never reallocates anything. While it's bound, it's the render target (see GLState), so
+ * caches rendered mid-pass return to it and viewport-dependent uniforms use its scaled size.
+ */
+public class DynamicResolution {
+
+    // Scale settings
+    public static final float MIN_SCALE = 0.5f;
+    public static final float MAX_SCALE = 1f;
+    public static final float SCALE_STEP = 0.1f;
+
+    // Controller settings
+    private static final float SMOOTHING = 0.1f;      // Weight of each new frame time
+    private static final float DOWN_THRESHOLD = 1.15f; // Of the target frame time
+    private static final float UP_THRESHOLD = 1.05f;   // Of the target frame time
+    private static final int DOWN_FRAMES = 20;
+    private static final int MIN_UP_FRAMES = 180;
+    private static final int MAX_UP_FRAMES = 1800;
+    private static final int PROBE_FRAMES = 60;       // Frames after raising that count as a probe
+
+    // Shader program to upscale with
+    private ShaderProgram sp;
+
+    // FBO info
+    private int[] ids;                                // [ fbo_id, texture_id ], or null if none
+    private TextureManager.Texture texture;           // The FBO's texture, as tracked
+    private int width, height;                        // Size of the FBO in pixels
+    private int render_width, render_height;          // Size rendered at in pixels
+
+    // Controller state
+    private float target_frame_time;                  // In seconds
+    private float scale = MAX_SCALE;
+    private float avg_frame_time;                     // Smoothed frame time in seconds
+    private int slow_frames, fast_frames;             // Frames in a row past either threshold
+    private int up_frames = MIN_UP_FRAMES;            // Fast frames needed to raise the scale
+    private int frames_since_up = PROBE_FRAMES;       // Frames since the scale was last raised
+    private int changes;                              // How many times the scale has changed
+
+    // Scratch array for vec2 uniforms
+    private float[] scratch = new float[2];
+
+    /**
+     * Constructs the DynamicResolution
+     * @param target_fps the frame rate to keep (i.e., Global.TARGET_FPS)
+     */
+    public DynamicResolution(float target_fps) {
+        this.sp = new ShaderProgram(R.raw.vertex_upscale, R.raw.fragment_upscale);
+        this.set_target_fps(target_fps);
+    }
+
+    // Sets the frame rate to keep
+    public void set_target_fps(float target_fps) {
+        if (1f / target_fps == this.target_frame_time) return;
+        this.target_frame_time = 1f / target_fps;
+        this.avg_frame_time = this.target_frame_time;
+    }
+
+    // Measures a frame's time (in seconds) and adjusts the scale accordingly
+    public void update(float frame_time) {
+        if (frame_time <= 0f) return;
+        this.avg_frame_time += (frame_time - this.avg_frame_time) * SMOOTHING;
+        this.frames_since_up++;
+
+        // Count frames in a row past either threshold
+        if (this.avg_frame_time > this.target_frame_time * DOWN_THRESHOLD) this.slow_frames++;
+        else this.slow_frames = 0;
+        if (this.avg_frame_time < this.target_frame_time * UP_THRESHOLD) this.fast_frames++;
+        else this.fast_frames = 0;
+
+        // Lower the scale, backing off from probing if it was just raised
+        if (this.slow_frames >= DOWN_FRAMES && this.scale > MIN_SCALE) {
+            if (this.frames_since_up < PROBE_FRAMES)
+                this.up_frames = Math.min(this.up_frames * 2, MAX_UP_FRAMES);
+            this.set_scale(this.scale - SCALE_STEP);
+
+        // Probe a higher scale
+        } else if (this.fast_frames >= this.up_frames && this.scale < MAX_SCALE) {
+            this.set_scale(this.scale + SCALE_STEP);
+            this.frames_since_up = 0;
+        }
+    }
+
+    // Sets the scale (clamped), restarting the controller's counts
+    public void set_scale(float scale) {
+        scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, Math.round(scale * 100f) / 100f));
+        if (scale == this.scale) return;
+        this.scale = scale;
+        this.slow_frames = this.fast_frames = 0;
+        this.changes++;
+        Log.d("spdt/dynamicresolution", "scale changed to " + scale + " (frame time " +
+                (this.avg_frame_time * 1000f) + " ms)");
+    }
+
+    /**
+     * Makes the scaled-down FBO the render target and clears it. Everything rendered until end()
+     * is rendered at the current scale.
+     */
+    public void begin() {
+        if (this.ids == null || this.width != Global.VIEWPORT_WIDTH ||
+                this.height != Global.VIEWPORT_HEIGHT)
+            this.create_fbo();
+        this.render_width = Math.max(1, Math.round(this.width * this.scale));
+        this.render_height = Math.max(1, Math.round(this.height * this.scale));
+        GLState.set_render_target(this.ids[0], this.render_width, this.render_height);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+    }
+
+    // Makes the screen the render target again and upscales what was rendered since begin() onto it
+    public void end() {
+        GLState.set_render_target(0, Global.VIEWPORT_WIDTH, Global.VIEWPORT_HEIGHT);
+        this.sp.bind();
+        GLState.set_attrib_arrays(1 << this.sp.get_attribute_location("vertex_position"));
+        GLState.attrib_pointer(this.sp.get_attribute_location("vertex_position"), 2,
+                Sprite.get_square_vertex_positions_buffer());
+        GLState.bind_texture(0, this.ids[1]);
+        this.sp.set_uniform("texture_sampler", 0);
+        this.scratch[0] = (float)this.render_width / this.width;
+        this.scratch[1] = (float)this.render_height / this.height;
+        this.sp.set_uniform("uv_scale", this.scratch);
+        GLState.set_blend(false); // The render is opaque
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, Sprite.SQUARE_VERTEX_COUNT,
+                GLES20.GL_UNSIGNED_SHORT, Sprite.get_square_draw_order_buffer());
+        GLState.set_blend(true);
+    }
+
+    // (Re)creates the FBO at the screen's size
+    private void create_fbo() {
+        this.release();
+        this.width = Math.max(1, Global.VIEWPORT_WIDTH);
+        this.height = Math.max(1, Global.VIEWPORT_HEIGHT);
+        this.ids = Utils.get_new_fbo_and_bound_texture(this.width, this.height);
+        GLState.bind_texture(0, this.ids[1]); // Never wrapped (NPOT textures can't be)
+        TextureManager.set_parameters(TextureManager.CLAMP | TextureManager.LINEAR);
+        this.texture = TextureManager.register("dynamic resolution", this.ids[1],
+                this.width, this.height, this.width * this.height * 4);
+    }
+
+    // Frees the FBO and its texture, if there are any
+    public void release() {
+        if (this.ids == null) return;
+        GLES20.glDeleteFramebuffers(1, this.ids, 0);
+        TextureManager.release(this.texture);
+        this.ids = null;
+    }
+
+    // Accessors
+    public float get_scale() { return this.scale; }
+    public float get_avg_frame_time() { return this.avg_frame_time; }
+    public int get_changes() { return this.changes; }
+}
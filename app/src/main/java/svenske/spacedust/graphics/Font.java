@@ -1,5 +1,9 @@
 package svenske.spacedust.graphics;
 
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -12,6 +16,19 @@ public class Font extends TextureAtlas {
     private Map<Character, Integer> cutoffs;
     private int standard_cutoff = 0;
     private char starting_char  = 0;
+    private boolean sdf         = false; // Whether the texture is a signed distance field
+
+    // How far (in atlas pixels) from glyph edges the signed distance field reaches
+    private static final float SDF_SPREAD = 6f;
+
+    /**
+     * Per-glyph metrics, precomputed with cutoff applied and indexed by glyph (see get_glyph()) so
+     * that laying out text doesn't need any per-character arrays:
+     * - glyph_half_widths: half the width of each glyph's quad when its height is 1
+     * - glyph_tex_coords: left, top, right, and bottom texture coordinates of each glyph
+     */
+    private float[] glyph_half_widths;
+    private float[] glyph_tex_coords;
 
     /**
      * Creates the font
@@ -19,11 +36,28 @@ public class Font extends TextureAtlas {
      * @param info_resource_id the resource ID of the font info node file
      */
     public Font(int atlas_resource_id, int info_resource_id) {
-        super(atlas_resource_id, 0, 0);
-        Node font_data = Node.read_node(info_resource_id);
+        this(atlas_resource_id, info_resource_id, false);
+    }
+
+    /**
+     * Creates the font
+     * @param atlas_resource_id the resource ID of the atlas (the actual font Image)
+     * @param info_resource_id the resource ID of the font info node file
+     * @param sdf whether to convert the atlas into a signed distance field when loading it. Text
+     *            in such a font must be rendered with BlendMode.SDF, but is crisp at any scale
+     */
+    public Font(int atlas_resource_id, int info_resource_id, boolean sdf) {
+        this(atlas_resource_id, Node.read_node(info_resource_id), sdf);
+    }
+
+    // Creates the font from its already-read info node (see above)
+    private Font(int atlas_resource_id, Node font_data, boolean sdf) {
+        super(Font.load_texture(atlas_resource_id, font_data, sdf), 0, 0);
+        this.sdf = sdf;
         this.starting_char = (char)Integer.parseInt(font_data.get_child("starting_char").get_value());
         this.rows = Integer.parseInt(font_data.get_child("rows").get_value());
         this.cols = Integer.parseInt(font_data.get_child("cols").get_value());
+        this.build_frame_table();
 
         // Load all cutoffs
         this.cutoffs = new HashMap<>();
@@ -36,8 +70,91 @@ public class Font extends TextureAtlas {
                 this.cutoffs.put('#', Integer.parseInt(child.get_value()));
             else this.cutoffs.put(child.get_name().charAt(0), Integer.parseInt(child.get_value()));
         }
+        this.compute_glyph_metrics();
     }
 
+    /**
+     * Acquires the font's texture from the TextureManager. If sdf, the texture is a signed
+     * distance field of the atlas (see DistanceField), sampled linearly so that the distance is
+     * interpolated between texels. The field is generated in the background (see TextureLoader).
+     */
+    private static TextureManager.Texture load_texture(final int atlas_resource_id, Node font_data,
+                                                       boolean sdf) {
+        if (!sdf) return TextureManager.acquire(atlas_resource_id);
+        final int rows = Integer.parseInt(font_data.get_child("rows").get_value());
+        final int cols = Integer.parseInt(font_data.get_child("cols").get_value());
+        return TextureManager.acquire("sdf/" + atlas_resource_id, new TextureManager.Loader() {
+            @Override
+            public TextureManager.Texture load(String key) {
+                int[] size = TextureAtlas.decode_bounds(atlas_resource_id);
+                final int width = size[0], height = size[1];
+                final TextureManager.Texture texture = new TextureManager.Texture(key,
+                        TextureManager.create_placeholder(TextureManager.LINEAR |
+                                TextureManager.CLAMP), width, height, width * height * 4);
+                TextureLoader.submit(new TextureLoader.Job() {
+                    @Override
+                    public Object decode() {
+                        Bitmap bmp = TextureAtlas.decode_bitmap(atlas_resource_id);
+                        int[] pixels = new int[width * height];
+                        bmp.getPixels(pixels, 0, width, 0, 0, width, height);
+                        bmp.recycle();
+                        return DistanceField.generate(pixels, width, height, width / cols,
+                                height / rows, SDF_SPREAD);
+                    }
+
+                    @Override
+                    public void upload(Object result) {
+                        if (!TextureManager.is_in_use(texture)) return;
+                        GLState.bind_texture(0, texture.id);
+                        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width,
+                                height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                                (ByteBuffer)result);
+                        texture.version++;
+                    }
+                });
+                return texture;
+            }
+        });
+    }
+
+    // Return whether the font's texture is a signed distance field (see BlendMode.SDF)
+    public boolean is_sdf() { return this.sdf; }
+
+    // Precomputes the metrics of every glyph in the font (see glyph_half_widths/glyph_tex_coords)
+    private void compute_glyph_metrics() {
+        int glyphs = this.rows * this.cols;
+        this.glyph_half_widths = new float[glyphs];
+        this.glyph_tex_coords = new float[glyphs * 4];
+        float char_width = (float)this.width / (float)this.cols;
+        float char_height = (float)this.height / (float)this.rows;
+        for (int i = 0; i < glyphs; i++) {
+            int cutoff = this.get_cutoff((char)(this.starting_char + i));
+            float row = (float)(i / this.cols);
+            float col = (float)(i % this.cols);
+            float cutoff_factor = (float)cutoff / (float)this.width;
+            this.glyph_half_widths[i] = ((char_width - 2 * cutoff) / char_height) / 2f;
+            this.glyph_tex_coords[i * 4]     = col / this.cols + cutoff_factor;        // left
+            this.glyph_tex_coords[i * 4 + 1] = row / this.rows;                        // top
+            this.glyph_tex_coords[i * 4 + 2] = (col + 1f) / this.cols - cutoff_factor; // right
+            this.glyph_tex_coords[i * 4 + 3] = (row + 1f) / this.rows;                 // bottom
+        }
+    }
+
+    // Returns the glyph index of the given character, to be used with the glyph metric accessors
+    public int get_glyph(char c) {
+        this.check_char_validity(c);
+        return c - this.starting_char;
+    }
+
+    // Returns half the width of the given glyph's quad (with cutoff) when its height is 1
+    public float get_glyph_half_width(int glyph) { return this.glyph_half_widths[glyph]; }
+
+    /**
+     * Returns the texture coordinates of every glyph (with cutoff): left, top, right, and bottom
+     * for each glyph in order. This is the Font's own table, so it must not be modified.
+     */
+    public float[] get_glyph_tex_coords() { return this.glyph_tex_coords; }
+
     // Makes sure the given character can be represented by this font
     private void check_char_validity(char c) {
         // Check for out-of-bounds character
@@ -45,7 +162,7 @@ public class Font extends TextureAtlas {
             throw new RuntimeException("[spdt/font] " +
                     "the given chararacter '" + c + "' is before the starting character '" +
                     this.starting_char + "'");
-        else if (c > this.starting_char + this.rows * this.cols)
+        else if (c >= this.starting_char + this.rows * this.cols)
             throw new RuntimeException("[spdt/font]" +
                     "the given character '" + c + "' is after the ending character '" +
                     (this.starting_char + (this.rows * this.cols)) + "'");
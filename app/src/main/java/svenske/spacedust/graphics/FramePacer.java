@@ -0,0 +1,241 @@
+package svenske.spacedust.graphics;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
+
+import svenske.spacedust.utils.Global;
+
+/**
+ * Paces frames and works out the time step (dt) each frame simulates. Frames only ever reach the
+ * screen on a vsync, so a frame's real duration is a whole number of refresh periods, but timing
+ * it with a clock gives values jittering around that (and millisecond clocks are worse), which
+ * shows up as stutter when simulated. So each frame's measured time (System.nanoTime) is:
+ * - snapped to a whole number of refresh periods, when it's close to one
+ * - smoothed, with any difference from real time repaid over the following frames, so that the
+ *   total simulated time never drifts from real time
+ * - clamped, so that long stalls (i.e., after a pause) don't produce huge steps
+ *
+ * The refresh period starts from what the display reports and is refined by timing vsyncs with
+ * Choreographer, so displays running at 90 or 120 Hz (or changing rate) are paced correctly.
+ * Vsyncs are only timed until the period has converged, as each wakes the main thread. Timing
+ * starts again whenever the display changes (i.e., its refresh rate is switched), on devices with
+ * a DisplayManager.
+ *
+ * Frames can be capped (see Global.FRAME_RATE_CAP) to save battery. The cap is rounded down to a
+ * whole fraction of the refresh rate (i.e., a cap of 90 on a 120 Hz display gives 60), so that
+ * frames stay evenly spaced, and frames due too soon are slept off before they start.
+ */
+public class FramePacer implements Choreographer.FrameCallback {
+
+    // Settings
+    private static final float MAX_DT = 0.1f;             // Longest time step (in seconds)
+    private static final float SNAP_TOLERANCE = 0.2f;     // Portion of a period dt snaps within
+    private static final float SMOOTHING = 0.25f;         // Weight of each new frame's time
+    private static final float DRIFT_CORRECTION = 0.1f;   // Portion of drift repaid per frame
+    private static final float RATE_SMOOTHING = 0.05f;    // Weight of each new vsync interval
+    private static final long SLEEP_MARGIN_NS = 2000000L; // Wake this early for capped frames
+    private static final float CONVERGENCE = 0.002f;      // Portion of a period counted as stable
+    private static final int CONVERGED_VSYNCS = 120;      // Stable vsyncs before timing stops
+
+    // Refresh period (measured on the main thread, read on the GL thread)
+    private volatile long refresh_period_ns;
+    private long last_vsync;       // Timestamp of the last vsync seen, or 0 if none yet
+    private boolean watching;      // Whether started (vsyncs are timed until converged)
+    private boolean timing;        // Whether vsyncs are being timed
+    private int stable_vsyncs;     // Vsyncs in a row within CONVERGENCE of the period
+
+    // Listens for display changes (main thread, null if unsupported or not started)
+    private DisplayWatcher display_watcher;
+
+    // Pacing state (GL thread)
+    private long last_frame = -1;  // When the last frame started, or -1 before the first
+    private float smoothed_dt;
+    private double drift;          // Real time passed minus time simulated, in seconds
+    private int vsyncs_per_frame = 1;
+
+    /**
+     * Constructs the FramePacer
+     * @param refresh_rate the refresh rate the display reports, to start from
+     */
+    public FramePacer(float refresh_rate) {
+        if (refresh_rate < 10f) refresh_rate = 60f; // Some devices report nonsense
+        this.refresh_period_ns = (long)(1e9 / refresh_rate);
+    }
+
+    /**
+     * Starts timing vsyncs, and listening for display changes to time them again after. Call this
+     * on the main (UI) thread.
+     */
+    public void start(Context context) {
+        if (this.watching) return;
+        this.watching = true;
+        this.start_timing();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) return;
+        DisplayManager dm = (DisplayManager)context.getSystemService(Context.DISPLAY_SERVICE);
+        if (dm == null) return;
+        this.display_watcher = new DisplayWatcher(this, dm);
+    }
+
+    // Stops timing vsyncs and listening for display changes. Call this on the main (UI) thread.
+    public void stop() {
+        this.watching = false;
+        this.stop_timing();
+        if (this.display_watcher == null) return;
+        this.display_watcher.unregister();
+        this.display_watcher = null;
+    }
+
+    // Starts (or restarts) timing vsyncs until the period converges
+    private void start_timing() {
+        this.last_vsync = 0;
+        this.stable_vsyncs = 0;
+        if (this.timing) return;
+        this.timing = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    // Stops timing vsyncs
+    private void stop_timing() {
+        this.timing = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    // Times a vsync (called by Choreographer on the main thread)
+    @Override
+    public void doFrame(long frame_time_nanos) {
+        if (!this.timing) return;
+        if (this.last_vsync != 0) {
+            long interval = frame_time_nanos - this.last_vsync;
+            long period = this.refresh_period_ns;
+            if (interval > period * 2 / 5 && interval < period * 5 / 2) { // Ignore missed vsyncs
+                this.refresh_period_ns = period + (long)((interval - period) * RATE_SMOOTHING);
+                if (Math.abs(interval - period) < period * CONVERGENCE) this.stable_vsyncs++;
+                else this.stable_vsyncs = 0;
+            }
+        }
+        this.last_vsync = frame_time_nanos;
+
+        // Stop once converged (until the display changes)
+        if (this.stable_vsyncs >= CONVERGED_VSYNCS) {
+            Log.d("spdt/framepacer", "refresh period converged at " +
+                    (1e9f / this.refresh_period_ns) + " Hz");
+            this.timing = false;
+            return;
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    // Responds to the default display changing by starting from its reported rate and re-timing
+    private void display_changed(Display display) {
+        if (!this.watching || display == null) return;
+        float refresh_rate = display.getRefreshRate();
+        if (refresh_rate >= 10f) this.refresh_period_ns = (long)(1e9 / refresh_rate);
+        Log.d("spdt/framepacer", "display changed (reports " + refresh_rate + " Hz)");
+        this.start_timing();
+    }
+
+    /**
+     * Starts a frame: waits if the frame rate is capped and the frame is due later, and returns the
+     * time step to simulate. Call this once at the start of every frame, on the GL thread.
+     * @return the time step in seconds (0 for the first frame)
+     */
+    public float next_frame() {
+        long period = this.refresh_period_ns;
+        long interval = period * this.update_targets(period);
+
+        // Sleep off a capped frame that's due later (the swap then waits for the right vsync)
+        if (this.vsyncs_per_frame > 1 && this.last_frame != -1) {
+            long wait = this.last_frame + interval - SLEEP_MARGIN_NS - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // Measure
+        long now = System.nanoTime();
+        if (this.last_frame == -1) {
+            this.last_frame = now;
+            this.smoothed_dt = interval / 1e9f;
+            return 0f;
+        }
+        float raw = (now - this.last_frame) / 1e9f;
+        this.last_frame = now;
+
+        // A stall (i.e., a pause) isn't caught up on
+        if (raw > MAX_DT) {
+            this.smoothed_dt = interval / 1e9f;
+            this.drift = 0.0;
+            return MAX_DT;
+        }
+
+        // Snap to a whole number of refresh periods, which is how long the frame will really show
+        float p = period / 1e9f;
+        float n = Math.max(1f, Math.round(raw / p));
+        float dt = Math.abs(raw - n * p) < SNAP_TOLERANCE * p ? n * p : raw;
+
+        // Smooth, repaying drift so that simulated time keeps up with real time
+        this.smoothed_dt += (dt - this.smoothed_dt) * SMOOTHING;
+        float out = this.smoothed_dt + (float)(this.drift * DRIFT_CORRECTION);
+        out = Math.max(0f, Math.min(MAX_DT, out));
+        this.drift += raw - out;
+        return out;
+    }
+
+    /**
+     * Works out how many refresh periods each frame takes under the cap, and publishes the refresh
+     * rate and target frame rate to Global
+     * @return the refresh periods per frame
+     */
+    private int update_targets(long period) {
+        float refresh_rate = 1e9f / period;
+        int vsyncs = 1;
+        if (Global.FRAME_RATE_CAP > 0)
+            vsyncs = Math.max(1, (int)Math.ceil(refresh_rate / Global.FRAME_RATE_CAP - 0.05f));
+        if (vsyncs != this.vsyncs_per_frame)
+            Log.d("spdt/framepacer", "pacing to every " + vsyncs + " vsync(s) at " +
+                    refresh_rate + " Hz");
+        this.vsyncs_per_frame = vsyncs;
+        Global.REFRESH_RATE = refresh_rate;
+        Global.TARGET_FPS = refresh_rate / vsyncs;
+        return vsyncs;
+    }
+
+    // Listens for changes to the default display (kept apart so it's only loaded where supported)
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static class DisplayWatcher implements DisplayManager.DisplayListener {
+
+        private final FramePacer frame_pacer;
+        private final DisplayManager display_manager;
+
+        // Starts listening (on the calling thread's looper)
+        DisplayWatcher(FramePacer frame_pacer, DisplayManager display_manager) {
+            this.frame_pacer = frame_pacer;
+            this.display_manager = display_manager;
+            display_manager.registerDisplayListener(this, null);
+        }
+
+        // Stops listening
+        void unregister() { this.display_manager.unregisterDisplayListener(this); }
+
+        @Override
+        public void onDisplayChanged(int display_id) {
+            if (display_id != Display.DEFAULT_DISPLAY) return;
+            this.frame_pacer.display_changed(this.display_manager.getDisplay(display_id));
+        }
+
+        @Override
+        public void onDisplayAdded(int display_id) {}
+
+        @Override
+        public void onDisplayRemoved(int display_id) {}
+    }
+}
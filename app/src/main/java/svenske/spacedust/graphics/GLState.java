@@ -0,0 +1,246 @@
+package svenske.spacedust.graphics;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.Buffer;
+
+/**
+ * Tracks the OpenGL state that gets changed during rendering (bound program, bound textures per
+ * unit, enabled vertex attribute arrays with their pointers and divisors, blending, and the bound
+ * array buffer) so that calls which wouldn't change anything are skipped instead of sent to the
+ * driver. Uniform values are cached per program by ShaderProgram, which reports to the counters
+ * here as well.
+ *
+ * Also keeps track of the current render target (the screen, or an FBO the frame is being rendered
+ * into, i.e., by DynamicResolution), so that anything rendering somewhere else in the middle of a
+ * frame (i.e., a cache) can return to it (see restore_render_target()).
+ *
+ * All state is unknown after reset(), which must be called whenever a new context is created.
+ */
+public class GLState {
+
+    // Types of calls that are counted
+    public static final int PROGRAM        = 0; // glUseProgram
+    public static final int TEXTURE        = 1; // glActiveTexture/glBindTexture
+    public static final int ATTRIB_ARRAY   = 2; // glEnable/DisableVertexAttribArray
+    public static final int ATTRIB_POINTER = 3; // glVertexAttribPointer/Divisor
+    public static final int BLEND          = 4; // glEnable/Disable(GL_BLEND), glBlendFunc
+    public static final int UNIFORM        = 5; // glUniform*
+    public static final int BUFFER         = 6; // glBindBuffer(GL_ARRAY_BUFFER)
+    private static final int CALL_TYPES    = 7;
+
+    // Limits on what is tracked
+    private static final int MAX_TEXTURE_UNITS = 8;
+    private static final int MAX_ATTRIBS       = 16;
+
+    // Tracked state (-1 signifies unknown)
+    private static int program;
+    private static int active_unit;
+    private static int[] textures = new int[MAX_TEXTURE_UNITS];
+    private static int enabled_attribs;      // Bitmask of enabled attribute arrays
+    private static boolean attribs_known;    // Whether enabled_attribs is known
+    private static Buffer[] attrib_pointers = new Buffer[MAX_ATTRIBS]; // Client-side pointers
+    private static int[] attrib_offsets = new int[MAX_ATTRIBS];        // Static buffer pointers
+    private static int[] attrib_divisors = new int[MAX_ATTRIBS];       // Instancing divisors
+    private static int blend_enabled;        // 1 if enabled, 0 if disabled
+    private static int blend_src, blend_dst;
+    private static int array_buffer;
+
+    // The current render target: an FBO (0 for the screen) and its viewport size in pixels
+    private static int target_fbo, target_width, target_height;
+
+    // Counters of issued and skipped calls by type since the last reset_counters()
+    private static long[] issued = new long[CALL_TYPES];
+    private static long[] skipped = new long[CALL_TYPES];
+
+    static { reset(); }
+
+    // Forgets all tracked state. Call this whenever a new context is created.
+    public static void reset() {
+        program = active_unit = -1;
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) textures[i] = -1;
+        attribs_known = false;
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            attrib_pointers[i] = null;
+            attrib_offsets[i] = -1;
+            attrib_divisors[i] = 0; // Divisors default to 0 in a new context
+        }
+        blend_enabled = blend_src = blend_dst = -1;
+        array_buffer = -1;
+    }
+
+    // Binds the given shader program
+    public static void use_program(int id) {
+        if (count(PROGRAM, program == id)) return;
+        GLES20.glUseProgram(id);
+        program = id;
+    }
+
+    // Binds the given 2D texture to the given texture unit, making that unit active
+    public static void bind_texture(int unit, int id) {
+        if (unit >= MAX_TEXTURE_UNITS)
+            throw new RuntimeException("[spdt/glstate]: " +
+                    "texture unit " + unit + " is not tracked");
+        if (active_unit != unit) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            active_unit = unit;
+        }
+        if (count(TEXTURE, textures[unit] == id)) return;
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, id);
+        textures[unit] = id;
+    }
+
+    // Forgets the given texture wherever it's bound, as GL unbinds deleted textures
+    public static void on_texture_deleted(int id) {
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) if (textures[i] == id) textures[i] = 0;
+    }
+
+    /**
+     * Enables exactly the vertex attribute arrays in the given bitmask (bit i for location i) and
+     * disables all others, only touching those that changed.
+     */
+    public static void set_attrib_arrays(int mask) {
+        int changed = attribs_known ? (enabled_attribs ^ mask) : ((1 << MAX_ATTRIBS) - 1);
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            int bit = 1 << i;
+            if (count(ATTRIB_ARRAY, (changed & bit) == 0)) continue;
+            if ((mask & bit) != 0) GLES20.glEnableVertexAttribArray(i);
+            else GLES20.glDisableVertexAttribArray(i);
+        }
+        enabled_attribs = mask;
+        attribs_known = true;
+    }
+
+    // Points the given (per-vertex) vertex attribute at the given client-side float buffer
+    public static void attrib_pointer(int loc, int size, Buffer data) {
+        bind_array_buffer(0);
+        set_divisor(loc, 0);
+        if (count(ATTRIB_POINTER, attrib_pointers[loc] == data)) return;
+        GLES20.glVertexAttribPointer(loc, size, GLES20.GL_FLOAT, false, size * 4, data);
+        attrib_pointers[loc] = data;
+        attrib_offsets[loc] = -1;
+    }
+
+    /**
+     * Points the given vertex attribute at the given byte offset into the bound array buffer.
+     * These are never skipped, as the buffer's contents are expected to have changed.
+     */
+    public static void attrib_pointer(int loc, int size, int stride, int offset) {
+        count(ATTRIB_POINTER, false);
+        GLES20.glVertexAttribPointer(loc, size, GLES20.GL_FLOAT, false, stride, offset);
+        attrib_pointers[loc] = null;
+        attrib_offsets[loc] = -1;
+    }
+
+    /**
+     * Points the given (per-vertex) vertex attribute at the given byte offset into the bound array
+     * buffer, whose contents must never change (i.e., an atlas' frame buffer). Unlike the above,
+     * these are skipped if the attribute already points there.
+     */
+    public static void static_attrib_pointer(int loc, int size, int offset) {
+        set_divisor(loc, 0);
+        if (count(ATTRIB_POINTER, attrib_offsets[loc] == offset)) return;
+        GLES20.glVertexAttribPointer(loc, size, GLES20.GL_FLOAT, false, size * 4, offset);
+        attrib_pointers[loc] = null;
+        attrib_offsets[loc] = offset;
+    }
+
+    /**
+     * Sets how many instances pass per advance of the given vertex attribute (0 for per-vertex).
+     * Non-zero divisors require an OpenGL ES 3.0 context (see Global.INSTANCING_SUPPORTED). As
+     * divisors start at 0 and only instancing sets others, nothing is called without one.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public static void set_divisor(int loc, int divisor) {
+        if (count(ATTRIB_POINTER, attrib_divisors[loc] == divisor)) return;
+        GLES30.glVertexAttribDivisor(loc, divisor);
+        attrib_divisors[loc] = divisor;
+    }
+
+    // Enables or disables blending
+    public static void set_blend(boolean enabled) {
+        if (count(BLEND, blend_enabled == (enabled ? 1 : 0))) return;
+        if (enabled) GLES20.glEnable(GLES20.GL_BLEND);
+        else GLES20.glDisable(GLES20.GL_BLEND);
+        blend_enabled = enabled ? 1 : 0;
+    }
+
+    // Sets the blend function
+    public static void blend_func(int src, int dst) {
+        if (count(BLEND, blend_src == src && blend_dst == dst)) return;
+        GLES20.glBlendFunc(src, dst);
+        blend_src = src;
+        blend_dst = dst;
+    }
+
+    // Binds the given buffer to GL_ARRAY_BUFFER (0 for client-side arrays)
+    public static void bind_array_buffer(int id) {
+        if (count(BUFFER, array_buffer == id)) return;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, id);
+        array_buffer = id;
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            attrib_pointers[i] = null;
+            attrib_offsets[i] = -1;
+        }
+    }
+
+    /**
+     * Binds the given framebuffer (0 for the screen) and sets the viewport to the given size,
+     * making them the render target to return to from now on.
+     */
+    public static void set_render_target(int fbo, int width, int height) {
+        target_fbo = fbo;
+        target_width = width;
+        target_height = height;
+        restore_render_target();
+    }
+
+    // Re-binds the current render target and its viewport (i.e., after rendering into a cache)
+    public static void restore_render_target() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, target_fbo);
+        GLES20.glViewport(0, 0, target_width, target_height);
+    }
+
+    // Accessors for the current render target's size in pixels
+    public static int get_target_width() { return target_width; }
+    public static int get_target_height() { return target_height; }
+
+    // Forgets the given buffer if it's bound, as GL unbinds deleted buffers
+    public static void on_buffer_deleted(int id) {
+        if (array_buffer != id) return;
+        array_buffer = 0;
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            attrib_pointers[i] = null;
+            attrib_offsets[i] = -1;
+        }
+    }
+
+    /**
+     * Counts a call of the given type as skipped or issued.
+     * @return whether it was skipped, for convenience
+     */
+    static boolean count(int type, boolean skip) {
+        if (skip) skipped[type]++;
+        else issued[type]++;
+        return skip;
+    }
+
+    // Accessors for counters
+    public static long get_issued(int type) { return issued[type]; }
+    public static long get_skipped(int type) { return skipped[type]; }
+    public static long get_total_issued() { return sum(issued); }
+    public static long get_total_skipped() { return sum(skipped); }
+    private static long sum(long[] a) {
+        long s = 0;
+        for (long n : a) s += n;
+        return s;
+    }
+
+    // Clears all counters
+    public static void reset_counters() {
+        for (int i = 0; i < CALL_TYPES; i++) issued[i] = skipped[i] = 0;
+    }
+}
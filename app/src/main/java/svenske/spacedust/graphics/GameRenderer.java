@@ -14,24 +14,63 @@ import svenske.spacedust.stages.WorldStage;
 import svenske.spacedust.utils.Global;
 import svenske.spacedust.utils.Node;
 
-// Renders on a GLSurfaceView. Is the connecting piece between Android and the current Stage.
+/**
+ * Renders on a GLSurfaceView. Is the connecting piece between Android and the current Stage.
+ *
+ * By default, each frame updates and then renders the Stage on the GL thread. If enabled (see
+ * Global.SIMULATION_THREAD), each frame instead has a SimulationThread update the Stage while this
+ * renders it on the GL thread, so that simulation and GL submission overlap rather than adding up.
+ * Either way, the Stage renders from snapshots it publishes in update() (see WorldSnapshot).
+ */
 public class GameRenderer implements GLSurfaceView.Renderer {
 
-    // The current stage
+    // The current stage, and whether it was released (see release_stage())
     private Stage stage;
+    private boolean released;
+
+    // Simulation (stage_lock is held while anything touches the Stage's simulation)
+    private final Object stage_lock = new Object();
+    private boolean threaded;             // Whether the Stage is updated on its own thread
+    private SimulationThread simulation;  // Null if not threaded or not started yet
 
     // Timekeeping attributes
-    private long last_cycle = -1;  // This time since the last cycle (ms)
+    private FramePacer frame_pacer; // Paces frames and smooths their time steps
     private int acc_frame = 0;     // Count frames
     private float acc_time = 0;    // Count seconds
     private final float FPS_report_interval = 0.5f; // Interval in s between FPS logs
 
+    // Constructs the GameRenderer, timing frames with the given FramePacer
+    public GameRenderer(FramePacer frame_pacer) { this.frame_pacer = frame_pacer; }
+
     // Whenever the surface is created, initialize GL and the current Stage.
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         Log.d("spdt/gamerenderer", "surface (re-)created");
+        this.stop_simulation(); // The old Stage is replaced
+        probe_capabilities();
         init_gl();
         init_stage();
+        this.released = false;
+    }
+
+    /**
+     * Checks what the created context supports. Instanced drawing needs an OpenGL ES 3.0 context,
+     * as the instanced arrays extensions have no Java bindings on OpenGL ES 2.0. OpenGL ES 3.0 also
+     * guarantees ETC2 textures and non-power-of-two mipmaps, while ETC1 is an extension.
+     */
+    private void probe_capabilities() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        boolean es3 = version != null && version.startsWith("OpenGL ES 3");
+        Global.INSTANCING_SUPPORTED = es3;
+        Global.ETC2_SUPPORTED = es3;
+        Global.NPOT_MIPMAPS_SUPPORTED = es3;
+        Global.ETC1_SUPPORTED = extensions != null &&
+                extensions.contains("GL_OES_compressed_ETC1_RGB8_texture");
+        Log.d("spdt/gamerenderer", "GL version: " + version + ", instancing " +
+                (Global.INSTANCING_SUPPORTED ? "supported" : "not supported") + ", ETC1 " +
+                (Global.ETC1_SUPPORTED ? "supported" : "not supported") + ", ETC2 " +
+                (Global.ETC2_SUPPORTED ? "supported" : "not supported"));
     }
 
     // Initializes GL after the context was created in GameView.
@@ -41,9 +80,15 @@ public class GameRenderer implements GLSurfaceView.Renderer {
         GLES20.glClearColor(Global.CLEAR_COLOR[0], Global.CLEAR_COLOR[1], Global.CLEAR_COLOR[2],
                 Global.CLEAR_COLOR[3]);
 
+        // Forget any state, textures and loads tracked for a previous context
+        GLState.reset();
+        TextureManager.reset();
+        TextureLoader.reset();
+        GLState.bind_array_buffer(0);
+
         // Enable gl transparencies
-        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        GLES20.glEnable(GLES20.GL_BLEND);
+        GLState.blend_func(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLState.set_blend(true);
     }
 
     /**
@@ -56,13 +101,60 @@ public class GameRenderer implements GLSurfaceView.Renderer {
                 this.stage = new WorldStage();
         }
         this.stage.init(GameActivity.access_continuous_data());
+        this.threaded = Global.SIMULATION_THREAD && Runtime.getRuntime().availableProcessors() > 1;
+        Log.d("spdt/gamerenderer", "updating stage on " +
+                (this.threaded ? "a simulation thread" : "the GL thread"));
     }
 
-    // Called every redraw. Performs updates and renders.
+    /**
+     * Called every redraw. Performs updates (or has the simulation thread perform them) and
+     * renders. The simulation thread is started on the first frame, once the surface's size is
+     * known, and again on the first frame after it was stopped.
+     */
     @Override
     public void onDrawFrame(GL10 gl) {
-        this.update();
-        this.render();
+        if (this.released) return; // Until the new context's Stage is created
+        TextureLoader.upload(Global.TEXTURE_UPLOAD_BUDGET);
+
+        // Timekeeping
+        float dt = this.frame_pacer.next_frame(); // seconds
+        this.fps(dt);
+
+        // Update (or have the simulation thread update) and render
+        if (!this.threaded) this.update(dt);
+        else this.tick_simulation(dt);
+        this.render(dt);
+    }
+
+    // Requests a tick of the simulation thread, starting it if it isn't running
+    private synchronized void tick_simulation(float dt) {
+        if (this.simulation == null) {
+            this.simulation = new SimulationThread(this.stage, this.stage_lock);
+            this.simulation.start();
+        }
+        this.simulation.tick(dt);
+    }
+
+    /**
+     * Stops the simulation thread, if there is one. Call this before the Stage is discarded, or
+     * when frames stop (i.e., the surface is destroyed).
+     */
+    public synchronized void stop_simulation() {
+        if (this.simulation == null) return;
+        this.simulation.shutdown();
+        this.simulation = null;
+    }
+
+    /**
+     * Stops simulating and releases the current Stage's GL resources. Call this on the GL thread
+     * before the context is lost (see GameView.onPause()). Nothing is rendered until the surface is
+     * created again.
+     */
+    public void release_stage() {
+        this.stop_simulation();
+        if (this.stage == null || this.released) return;
+        this.stage.release();
+        this.released = true;
     }
 
     /**
@@ -74,28 +166,28 @@ public class GameRenderer implements GLSurfaceView.Renderer {
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         Global.VIEWPORT_WIDTH = width;
         Global.VIEWPORT_HEIGHT = height;
-        GLES20.glViewport(0, 0, width, height);
-        this.stage.resized();
+        GLState.set_render_target(0, width, height);
+        synchronized (this.stage_lock) {
+            this.stage.resized();
+        }
     }
 
     /**
      * Called whenever any input occurs.
      * @return if the input was handled
      */
-    public boolean input(MotionEvent me) { return this.stage.input(me); }
-
-    // Performs timekeeping calculations and updates the current Stage.
-    private void update() {
-
-        // Timekeeping
-        long now = System.currentTimeMillis();
-        float dt = 0;
-        if (last_cycle != -1) dt = (float) (now - last_cycle) / 1000f; // seconds
-        last_cycle = now;
-        this.fps(dt);
+    public boolean input(MotionEvent me) {
+        if (this.stage == null) return false;
+        synchronized (this.stage_lock) {
+            return this.stage.input(me);
+        }
+    }
 
-        // Update stage
-        this.stage.update(dt);
+    // Updates the current Stage on the GL thread (when not threaded)
+    private void update(float dt) {
+        synchronized (this.stage_lock) {
+            this.stage.update(dt);
+        }
     }
 
     /**
@@ -108,7 +200,9 @@ public class GameRenderer implements GLSurfaceView.Renderer {
         this.acc_time += dt;
         if (this.acc_time > this.FPS_report_interval) {
             float fps = ((float)this.acc_frame / this.acc_time);
-            Log.v("spdt/gamerenderer", "FPS: " + fps);
+            Log.v("spdt/gamerenderer", "FPS: " + fps + ", GL calls issued/skipped: " +
+                    GLState.get_total_issued() + "/" + GLState.get_total_skipped());
+            GLState.reset_counters();
             this.stage.fps_update(fps);
             this.acc_frame = 0;
             this.acc_time = 0f;
@@ -116,10 +210,13 @@ public class GameRenderer implements GLSurfaceView.Renderer {
     }
 
     // Renders the current Stage
-    private void render() { this.stage.render(); }
+    private void render(float dt) { this.stage.render(dt); }
 
     // Returns continuous data from the Stage to be saved across OpenGL ES context changes.
     public Node get_continuous_data() {
-        return this.stage == null ? null : this.stage.get_continuous_data();
+        if (this.stage == null) return null;
+        synchronized (this.stage_lock) {
+            return this.stage.get_continuous_data();
+        }
     }
 }
@@ -1,8 +1,12 @@
 package svenske.spacedust.graphics;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.WindowManager;
 
 import svenske.spacedust.utils.Node;
 
@@ -14,6 +18,9 @@ public class GameView extends GLSurfaceView {
     // Renders GL onto this view
     private final GameRenderer game_renderer;
 
+    // Paces the renderer's frames (timing vsyncs on this view's thread)
+    private final FramePacer frame_pacer;
+
     /**
      * Creates the OpenGL ES context and the renderer.
      * @param context the activity this GameView is on.
@@ -21,14 +28,63 @@ public class GameView extends GLSurfaceView {
     public GameView(Context context) {
         super(context);
 
-        // Create an OpenGL ES 2.0 context
-        this.setEGLContextClientVersion(2);
+        // Create an OpenGL ES 3.0 context if the device supports it (for instancing), else 2.0
+        this.setEGLContextClientVersion(supports_gles3(context) ? 3 : 2);
 
-        // Create and set the game renderer for drawing on this view
-        this.game_renderer = new GameRenderer();
+        // Create and set the game renderer for drawing on this view, paced to the display
+        this.frame_pacer = new FramePacer(get_refresh_rate(context));
+        this.game_renderer = new GameRenderer(this.frame_pacer);
         this.setRenderer(this.game_renderer);
     }
 
+    // Returns the refresh rate the default display reports (60 if unknown)
+    private static float get_refresh_rate(Context context) {
+        WindowManager wm = (WindowManager)context.getSystemService(Context.WINDOW_SERVICE);
+        return wm == null ? 60f : wm.getDefaultDisplay().getRefreshRate();
+    }
+
+    // Starts timing vsyncs once the view is shown
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        this.frame_pacer.start(this.getContext());
+    }
+
+    // Stops timing vsyncs and simulating once the view is gone
+    @Override
+    protected void onDetachedFromWindow() {
+        this.frame_pacer.stop();
+        this.game_renderer.stop_simulation();
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Releases the renderer's GL resources while the context is still current, then pauses the GL
+     * thread (losing the context). Queued events run before the GL thread pauses.
+     */
+    @Override
+    public void onPause() {
+        this.queueEvent(new Runnable() {
+            @Override
+            public void run() { GameView.this.game_renderer.release_stage(); }
+        });
+        super.onPause();
+    }
+
+    // Stops simulating once the surface is gone (frames stop until it's back)
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        this.game_renderer.stop_simulation();
+        super.surfaceDestroyed(holder);
+    }
+
+    // Returns whether the device supports OpenGL ES 3.0 and the GLES30 bindings are available
+    private static boolean supports_gles3(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) return false;
+        ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        return am != null && am.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
+    }
+
     // Responds to touch events by passing the input to the renderer.
     @Override
     public boolean onTouchEvent(MotionEvent event) {
@@ -0,0 +1,264 @@
+package svenske.spacedust.graphics;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * GPU-simulated particles of a single emitter (see ParticleEmitter's gpu setting). When emitted,
+ * each particle's spawn parameters (origin, velocity, spawn time, lifetime and a random seed) are
+ * written once into a ring buffer, and from then on vertex_gpu_particle.glsl works out everything
+ * about it from a time uniform. Unlike CPU particles (see ParticleSystem), nothing is done per
+ * particle per frame on the CPU, which suits big bursts like ship deaths.
+ *
+ * The whole ring is drawn with one draw call, and particles that aren't alive are hidden by the
+ * shader. Emitting overwrites the oldest particles in the ring, but never live ones: emit() fails
+ * instead, and the ParticleSystem falls back to CPU particles.
+ *
+ * Spawn times are kept relative to an epoch that restarts whenever every particle has died, so
+ * that they stay small enough for the shader's float precision.
+ *
+ * Emitting makes no GL calls, so that it can happen on a simulation thread: the ring is kept on
+ * the CPU, copied into snapshots when it changes (see capture()), and uploaded to its VBO on the GL
+ * thread when a snapshot with a newer version of it is rendered. Each version records the range of
+ * the ring written since the one before, so copies and uploads only cover what changed since the
+ * version they have, unless it's more than HISTORY versions behind.
+ */
+class GpuParticles {
+
+    // Vertex layout (floats): origin (2), velocity (2), spawn time (1), inverse life (1), seed (1)
+    static final int FLOATS_PER_PARTICLE = 7;
+    private static final int STRIDE = FLOATS_PER_PARTICLE * 4;
+
+    // How many versions' dirty ranges are remembered
+    static final int HISTORY = 8;
+
+    // The emitter whose particles these are, and its look
+    private ParticleEmitter emitter;
+    private float[] start_color = new float[4], end_color = new float[4];
+
+    // Ring (simulation thread)
+    private int capacity;      // How many particles fit in the ring
+    private int head;          // Where the next particle is written
+    private int used;          // How much of the ring has ever been written (since the epoch)
+    private float[] deaths;    // When each particle in the ring dies (relative to the epoch)
+    private float[] ring;      // Spawn parameters of every particle in the ring
+    private int version;       // Incremented by each capture after the ring is written
+
+    // Dirty ranges (in particles, simulation thread): written since the last version, and written
+    // for each of the last HISTORY versions (indexed by version % HISTORY)
+    private int dirty_lo = Integer.MAX_VALUE, dirty_hi;
+    private int[] history_los = new int[HISTORY], history_his = new int[HISTORY];
+    private int[] capture_range = new int[2];
+
+    // Timing (in seconds, simulation thread)
+    private double epoch;      // Absolute time spawn times are relative to
+    private float last_death;  // When every particle will have died (relative to the epoch)
+
+    // GL state (GL thread)
+    private int vbo;              // 0 until first rendered
+    private int uploaded_version; // Version of the ring last uploaded to the VBO
+    private FloatBuffer staging;
+    private int[] upload_range = new int[2];
+
+    /**
+     * Constructs the GpuParticles. Its ring buffer is created when first rendered.
+     * @param capacity how many of the emitter's particles can be alive at once
+     */
+    GpuParticles(ParticleEmitter emitter, int capacity) {
+        this.emitter = emitter;
+        this.capacity = capacity;
+        this.deaths = new float[capacity];
+        this.ring = new float[capacity * FLOATS_PER_PARTICLE];
+        System.arraycopy(ParticleEmitter.start_colors, emitter.index * 4, this.start_color, 0, 4);
+        System.arraycopy(ParticleEmitter.end_colors, emitter.index * 4, this.end_color, 0, 4);
+    }
+
+    /**
+     * Emits a burst of the emitter's particles (see ParticleSystem.emit())
+     * @param time the current absolute time
+     * @return whether the burst was emitted. It isn't if it would overwrite live particles.
+     */
+    boolean emit(float x, float y, float direction, float vx, float vy, double time,
+                 Random random) {
+        ParticleEmitter pe = this.emitter;
+        if (pe.count > this.capacity) return false;
+
+        // Restart the epoch once everything has died
+        if (time - this.epoch >= this.last_death) {
+            this.epoch = time;
+            this.head = this.used = 0;
+            this.last_death = 0f;
+        }
+        float now = (float)(time - this.epoch);
+
+        // Don't overwrite live particles (the burst is written at the head, or wraps to the start)
+        int start = this.head + pe.count > this.capacity ? 0 : this.head;
+        for (int i = start; i < start + pe.count; i++)
+            if (i < this.used && this.deaths[i] > now) return false;
+
+        // Write spawn parameters
+        float[] r = this.ring;
+        for (int i = 0; i < pe.count; i++) {
+            float angle = direction + (random.nextFloat() - 0.5f) * pe.spread;
+            float speed = pe.min_speed + random.nextFloat() * (pe.max_speed - pe.min_speed);
+            float life = Math.max(pe.min_life + random.nextFloat() * (pe.max_life - pe.min_life),
+                    0.001f);
+            int o = (start + i) * FLOATS_PER_PARTICLE;
+            r[o] = x;
+            r[o + 1] = y;
+            r[o + 2] = vx + speed * (float)Math.cos(angle);
+            r[o + 3] = vy + speed * (float)Math.sin(angle);
+            r[o + 4] = now;
+            r[o + 5] = 1f / life;
+            r[o + 6] = random.nextFloat();
+            this.deaths[start + i] = now + life;
+            this.last_death = Math.max(this.last_death, now + life);
+        }
+
+        // Advance
+        this.head = start + pe.count;
+        this.used = Math.max(this.used, this.head);
+        this.dirty_lo = Math.min(this.dirty_lo, start);
+        this.dirty_hi = Math.max(this.dirty_hi, this.head);
+        return true;
+    }
+
+    /**
+     * Copies what rendering needs into the given snapshot, first making a new version of the ring
+     * if it was written. Only the part of the ring changed since the snapshot last got it is
+     * copied, along with the recent dirty ranges for uploading (see render()).
+     * @param time the current absolute time
+     */
+    void capture(ParticleSystem.Snapshot s, double time) {
+        if (this.dirty_hi > 0) {
+            int h = ++this.version % HISTORY;
+            this.history_los[h] = this.dirty_lo;
+            this.history_his[h] = this.dirty_hi;
+            this.dirty_lo = Integer.MAX_VALUE;
+            this.dirty_hi = 0;
+        }
+        int e = this.emitter.index;
+        s.gpu[e] = this;
+        s.gpu_times[e] = (float)(time - this.epoch);
+        s.gpu_last_deaths[e] = this.last_death;
+        s.gpu_used[e] = this.used;
+        if (s.gpu_history_los[e] == null) {
+            s.gpu_history_los[e] = new int[HISTORY];
+            s.gpu_history_his[e] = new int[HISTORY];
+        }
+        System.arraycopy(this.history_los, 0, s.gpu_history_los[e], 0, HISTORY);
+        System.arraycopy(this.history_his, 0, s.gpu_history_his[e], 0, HISTORY);
+        if (s.gpu_versions[e] == this.version) return;
+
+        // Copy what changed since the snapshot's version (everything used if it's too old)
+        int[] r = this.capture_range;
+        if (s.gpu_rings[e] == null) {
+            s.gpu_rings[e] = new float[this.ring.length];
+            r[0] = 0;
+            r[1] = this.used;
+        } else dirty_range(s.gpu_versions[e], this.version, this.history_los, this.history_his,
+                this.used, r);
+        System.arraycopy(this.ring, r[0] * FLOATS_PER_PARTICLE, s.gpu_rings[e],
+                r[0] * FLOATS_PER_PARTICLE, (r[1] - r[0]) * FLOATS_PER_PARTICLE);
+        s.gpu_versions[e] = this.version;
+    }
+
+    /**
+     * Finds the range of the ring written between two versions
+     * @param los the first particle written by each of the last HISTORY versions
+     * @param his one past the last particle written by each of the last HISTORY versions
+     * @param used how much of the ring is used, which is the range if `from` is too old
+     * @param out where to put the first particle and one past the last particle of the range
+     */
+    private static void dirty_range(int from, int to, int[] los, int[] his, int used,
+                                    int[] out) {
+        if (to - from > HISTORY) {
+            out[0] = 0;
+            out[1] = used;
+            return;
+        }
+        int lo = Integer.MAX_VALUE, hi = 0;
+        for (int v = from + 1; v <= to; v++) {
+            lo = Math.min(lo, los[v % HISTORY]);
+            hi = Math.max(hi, his[v % HISTORY]);
+        }
+        out[0] = Math.min(lo, hi);
+        out[1] = hi;
+    }
+
+    /**
+     * Draws the ring as of the given snapshot with a single draw call, if anything in it is alive,
+     * first uploading it if it changed. The given shader program must be bound, with its view
+     * uniforms already set.
+     */
+    void render(ShaderProgram sp, ParticleSystem.Snapshot s) {
+        int e = this.emitter.index;
+        float now = s.gpu_times[e];
+        int used = s.gpu_used[e];
+        if (used == 0 || now >= s.gpu_last_deaths[e]) return;
+
+        // Create the ring buffer, and upload what changed in the ring
+        if (this.vbo == 0) {
+            int[] ids = new int[1];
+            GLES20.glGenBuffers(1, ids, 0);
+            this.vbo = ids[0];
+            GLState.bind_array_buffer(this.vbo);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, this.capacity * STRIDE, null,
+                    GLES20.GL_DYNAMIC_DRAW);
+            this.staging = ByteBuffer.allocateDirect(this.capacity * STRIDE)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        if (this.uploaded_version != s.gpu_versions[e]) {
+            int[] r = this.upload_range;
+            dirty_range(this.uploaded_version, s.gpu_versions[e], s.gpu_history_los[e],
+                    s.gpu_history_his[e], used, r);
+            if (r[1] > r[0]) {
+                this.staging.position(0);
+                this.staging.put(s.gpu_rings[e], r[0] * FLOATS_PER_PARTICLE,
+                        (r[1] - r[0]) * FLOATS_PER_PARTICLE);
+                this.staging.position(0);
+                GLState.bind_array_buffer(this.vbo);
+                GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, r[0] * STRIDE,
+                        (r[1] - r[0]) * STRIDE, this.staging);
+            }
+            this.uploaded_version = s.gpu_versions[e];
+        }
+
+        // Set emitter uniforms
+        sp.set_uniform("time", now);
+        sp.set_uniform("drag", ParticleEmitter.drags[e]);
+        sp.set_uniform("start_size", ParticleEmitter.start_sizes[e]);
+        sp.set_uniform("end_size", ParticleEmitter.end_sizes[e]);
+        sp.set_uniform("start_color", this.start_color);
+        sp.set_uniform("end_color", this.end_color);
+        if (ParticleEmitter.additive[e])
+            GLState.blend_func(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE);
+
+        // Point attributes at the ring and draw
+        GLState.bind_array_buffer(this.vbo);
+        int mask = this.point(sp, "particle_origin", 2, 0) |
+                this.point(sp, "particle_velocity", 2, 2) |
+                this.point(sp, "particle_spawn_time", 1, 4) |
+                this.point(sp, "particle_inv_life", 1, 5) |
+                this.point(sp, "particle_seed", 1, 6);
+        GLState.set_attrib_arrays(mask);
+        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, used);
+        GLState.blend_func(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    /**
+     * Points the given attribute at the bound ring buffer
+     * @param offset offset of the attribute in the vertex layout, in floats
+     * @return the attribute's bit for GLState.set_attrib_arrays()
+     */
+    private int point(ShaderProgram sp, String name, int size, int offset) {
+        int loc = sp.get_attribute_location(name);
+        GLState.set_divisor(loc, 0); // In case an instanced batch used this location
+        GLState.attrib_pointer(loc, size, STRIDE, offset * 4);
+        return 1 << loc;
+    }
+}
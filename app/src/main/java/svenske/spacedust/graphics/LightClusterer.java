@@ -0,0 +1,270 @@
+package svenske.spacedust.graphics;
+
+/**
+ * Aggregates dense groups of small lights (i.e., projectile swarms) into representative cluster
+ * lights so that they don't eat the whole light budget. A uniform grid is laid over light
+ * positions and every cell's lights are merged into one light with:
+ * - a position at the intensity-weighted centroid of its members
+ * - a glow equal to the intensity-weighted average of its members' glows
+ * - an intensity equal to the sum of its members' intensities
+ * - a reach equal to the intensity-weighted average of its members' reaches, grown by their
+ *   average distance from the centroid
+ * Lights with a reach greater than some maximum are considered important enough to never be
+ * merged, and cells with only one light pass that light through untouched.
+ *
+ * The approximation error can optionally be measured by comparing the brightness each cluster's
+ * members would contribute at their own positions against what the cluster light contributes.
+ */
+public class LightClusterer {
+
+    // Clustering settings
+    private float cell_size;        // Width/height of each grid cell
+    private float max_member_reach; // Lights reaching further than this are never merged
+    private boolean measure_error;  // Whether to measure approximation error each frame
+
+    // Input lights
+    private LightSource[] in_lights;
+    private float[] in_xs, in_ys;
+    private int[] in_cluster; // Which cluster each input light belongs to
+    private int in_count;
+
+    // Open-addressing hash table from grid cell to cluster index
+    private long[] cell_keys;
+    private int[] cell_clusters; // -1 signifies an empty slot
+
+    // Clusters
+    private LightSource[] c_sources;   // Pooled light sources used for merged clusters
+    private int[] c_first;             // First input light in each cluster
+    private int[] c_members;           // How many input lights are in each cluster
+    private float[] c_weight;          // Total intensity (weight) of each cluster
+    private float[] c_wx, c_wy;        // Weighted position sums, then centroids
+    private float[] c_wreach;          // Weighted reach sums
+    private float[] c_wdist;           // Weighted distance-from-centroid sums
+    private float[] c_wglow;           // Weighted glow sums (3 per cluster)
+    private int c_count;
+
+    // Output lights
+    private LightSource[] out_lights;
+    private float[] out_xs, out_ys;
+    private int out_count;
+
+    // Error statistics for the most recent frame (brightness units)
+    private float mean_error, max_error, relative_error;
+
+    /**
+     * Constructs the LightClusterer
+     * @param cell_size the width/height of each grid cell lights are merged within
+     * @param max_member_reach lights with a reach greater than this will never be merged
+     */
+    public LightClusterer(float cell_size, float max_member_reach) {
+        this.cell_size = cell_size;
+        this.max_member_reach = max_member_reach;
+        this.allocate(64);
+    }
+
+    // Allocates storage for the given amount of lights
+    private void allocate(int n) {
+        this.in_lights     = grow(this.in_lights, n);
+        this.in_xs         = grow(this.in_xs, n);
+        this.in_ys         = grow(this.in_ys, n);
+        this.in_cluster    = new int[n];
+        this.cell_keys     = new long[n * 2];
+        this.cell_clusters = new int[n * 2];
+        this.c_sources     = grow(this.c_sources, n);
+        this.c_first       = new int[n];
+        this.c_members     = new int[n];
+        this.c_weight      = new float[n];
+        this.c_wx          = new float[n];
+        this.c_wy          = new float[n];
+        this.c_wreach      = new float[n];
+        this.c_wdist       = new float[n];
+        this.c_wglow       = new float[n * 3];
+        this.out_lights    = new LightSource[n];
+        this.out_xs        = new float[n];
+        this.out_ys        = new float[n];
+    }
+
+    // Returns a copy of the given array (which may be null) with the given length
+    private static float[] grow(float[] a, int n) {
+        float[] b = new float[n];
+        if (a != null) System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+    private static LightSource[] grow(LightSource[] a, int n) {
+        LightSource[] b = new LightSource[n];
+        if (a != null) System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+
+    // Clears all input lights
+    public void begin() { this.in_count = 0; }
+
+    // Adds a light at the given position to be clustered
+    public void add(LightSource ls, float x, float y) {
+        if (this.in_count == this.in_lights.length) this.allocate(this.in_count * 2);
+        this.in_lights[this.in_count] = ls;
+        this.in_xs[this.in_count] = x;
+        this.in_ys[this.in_count] = y;
+        this.in_count++;
+    }
+
+    /**
+     * Clusters all added lights.
+     * @return how many output lights there are (accessed via get_light(), get_x(), get_y())
+     */
+    public int cluster() {
+
+        // Clear hash table
+        this.c_count = 0;
+        for (int i = 0; i < this.cell_clusters.length; i++) this.cell_clusters[i] = -1;
+
+        // Assign each input light to a cluster and accumulate weighted sums
+        for (int i = 0; i < this.in_count; i++) {
+            LightSource ls = this.in_lights[i];
+            int c;
+            if (ls.get_reach() > this.max_member_reach) c = this.new_cluster(i);
+            else {
+                long cx = (long)Math.floor(this.in_xs[i] / this.cell_size);
+                long cy = (long)Math.floor(this.in_ys[i] / this.cell_size);
+                c = this.find_cluster((cx << 32) ^ (cy & 0xFFFFFFFFL), i);
+            }
+            this.in_cluster[i] = c;
+            float w = Math.max(ls.get_intensity(), 0.0001f);
+            float[] glow = ls.get_glow();
+            this.c_members[c]++;
+            this.c_weight[c] += w;
+            this.c_wx[c] += this.in_xs[i] * w;
+            this.c_wy[c] += this.in_ys[i] * w;
+            this.c_wreach[c] += ls.get_reach() * w;
+            this.c_wglow[c * 3]     += glow[0] * w;
+            this.c_wglow[c * 3 + 1] += glow[1] * w;
+            this.c_wglow[c * 3 + 2] += glow[2] * w;
+        }
+
+        // Calculate centroids, then weighted spread of members around them
+        for (int c = 0; c < this.c_count; c++) {
+            this.c_wx[c] /= this.c_weight[c];
+            this.c_wy[c] /= this.c_weight[c];
+        }
+        for (int i = 0; i < this.in_count; i++) {
+            int c = this.in_cluster[i];
+            if (this.c_members[c] < 2) continue;
+            float dx = this.in_xs[i] - this.c_wx[c], dy = this.in_ys[i] - this.c_wy[c];
+            float w = Math.max(this.in_lights[i].get_intensity(), 0.0001f);
+            this.c_wdist[c] += (float)Math.sqrt(dx * dx + dy * dy) * w;
+        }
+
+        // Create output lights
+        this.out_count = 0;
+        for (int c = 0; c < this.c_count; c++) {
+            if (this.c_members[c] == 1) { // Pass single lights through
+                int i = this.c_first[c];
+                this.output(this.in_lights[i], this.in_xs[i], this.in_ys[i]);
+                continue;
+            }
+
+            // Merge into this cluster's pooled light source
+            float w = this.c_weight[c];
+            if (this.c_sources[c] == null)
+                this.c_sources[c] = new LightSource(new float[3], 0f, 0f, null);
+            LightSource cluster = this.c_sources[c];
+            float[] glow = cluster.get_glow();
+            glow[0] = this.c_wglow[c * 3] / w;
+            glow[1] = this.c_wglow[c * 3 + 1] / w;
+            glow[2] = this.c_wglow[c * 3 + 2] / w;
+            cluster.set_intensity(w);
+            cluster.set_reach((this.c_wreach[c] + this.c_wdist[c]) / w);
+            this.output(cluster, this.c_wx[c], this.c_wy[c]);
+        }
+
+        if (this.measure_error) this.calculate_error();
+        return this.out_count;
+    }
+
+    // Finds the cluster for the given grid cell, creating it with the given light if necessary
+    private int find_cluster(long key, int light) {
+        int mask = this.cell_keys.length - 1; // Table length is always a power of two
+        int slot = (int)((key ^ (key >>> 29)) * 0x9E3779B1L) & mask;
+        while (this.cell_clusters[slot] != -1) {
+            if (this.cell_keys[slot] == key) return this.cell_clusters[slot];
+            slot = (slot + 1) & mask;
+        }
+        int c = this.new_cluster(light);
+        this.cell_keys[slot] = key;
+        this.cell_clusters[slot] = c;
+        return c;
+    }
+
+    // Creates a new empty cluster whose first member is the given light
+    private int new_cluster(int light) {
+        int c = this.c_count++;
+        this.c_first[c] = light;
+        this.c_members[c] = 0;
+        this.c_weight[c] = this.c_wx[c] = this.c_wy[c] = this.c_wreach[c] = this.c_wdist[c] = 0f;
+        this.c_wglow[c * 3] = this.c_wglow[c * 3 + 1] = this.c_wglow[c * 3 + 2] = 0f;
+        return c;
+    }
+
+    // Appends an output light
+    private void output(LightSource ls, float x, float y) {
+        this.out_lights[this.out_count] = ls;
+        this.out_xs[this.out_count] = x;
+        this.out_ys[this.out_count] = y;
+        this.out_count++;
+    }
+
+    /**
+     * Measures the error of merged clusters against per-light rendering. Each member's position
+     * is used as a probe, where the brightness contributed by all of its cluster's members (as in
+     * the world fragment shader) is compared to the brightness contributed by the cluster light.
+     */
+    private void calculate_error() {
+        float total_error = 0f, total_brightness = 0f, max_error = 0f;
+        int probes = 0;
+        for (int p = 0; p < this.in_count; p++) {
+            int c = this.in_cluster[p];
+            if (this.c_members[c] < 2) continue;
+            float px = this.in_xs[p], py = this.in_ys[p];
+
+            // Brightness from the cluster's individual members
+            float original = 0f;
+            for (int i = this.c_first[c]; i < this.in_count; i++)
+                if (this.in_cluster[i] == c)
+                    original += brightness(this.in_lights[i], this.in_xs[i], this.in_ys[i], px, py);
+
+            // Brightness from the cluster light
+            float merged = brightness(this.c_sources[c], this.c_wx[c], this.c_wy[c], px, py);
+
+            float error = Math.abs(original - merged);
+            total_error += error;
+            total_brightness += original;
+            max_error = Math.max(max_error, error);
+            probes++;
+        }
+        this.mean_error = probes > 0 ? total_error / probes : 0f;
+        this.max_error = max_error;
+        this.relative_error = total_brightness > 0f ? total_error / total_brightness : 0f;
+    }
+
+    // Calculates the brightness a light at (lx, ly) adds at (px, py), as the shaders do
+    private static float brightness(LightSource ls, float lx, float ly, float px, float py) {
+        float dx = px - lx, dy = py - ly;
+        float farness = (float)Math.sqrt(dx * dx + dy * dy) / ls.get_reach();
+        return farness >= 1f ? 0f : (1f - farness) * ls.get_intensity();
+    }
+
+    // Accessors for the i-th output light
+    public LightSource get_light(int i) { return this.out_lights[i]; }
+    public float get_x(int i) { return this.out_xs[i]; }
+    public float get_y(int i) { return this.out_ys[i]; }
+
+    // Enables or disables error measurement
+    public void set_measure_error(boolean measure_error) { this.measure_error = measure_error; }
+
+    // Accessors for statistics about the most recent frame
+    public int get_input_count() { return this.in_count; }
+    public int get_output_count() { return this.out_count; }
+    public float get_mean_error() { return this.mean_error; }
+    public float get_max_error() { return this.max_error; }
+    public float get_relative_error() { return this.relative_error; }
+}
@@ -0,0 +1,287 @@
+package svenske.spacedust.graphics;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Performs CPU-side (Forward+ style) light binning. The camera's view is divided into a grid of
+ * screen tiles, and each light's reach circle is intersected with those tiles. The resulting
+ * per-tile light index lists, along with the light data itself, are uploaded as two small
+ * textures so that the world fragment shader only has to iterate over the lights of the tile it
+ * is in.
+ *
+ * Since OpenGL ES 2.0 doesn't guarantee float textures, everything is packed into bytes:
+ * - the light data texture is MAX_LIGHTS x 3 RGBA texels. Column i holds light i:
+ *      - row 0: x (16 bits), y (16 bits), relative to a light position origin and range
+ *      - row 1: reach (16 bits), intensity (16 bits), relative to the maximum binned values
+ *      - row 2: glow (8 bits per channel, mapped from [-1, 1] to [0, 1])
+ * - the tile texture is (1 + MAX_LIGHTS_PER_TILE) x (TILE_COLS * TILE_ROWS) luminance texels.
+ *   Each row is one tile: [light count, light index 0, light index 1, ...]
+ *
+ * The sizes below must be in-sync with fragment_world.glsl (TILED_LIGHTING).
+ */
+public class LightGrid {
+
+    // Grid settings
+    public static final int TILE_COLS           = 16;  // How many columns of tiles on screen
+    public static final int TILE_ROWS           = 9;   // How many rows of tiles on screen
+    public static final int MAX_LIGHTS          = 256; // Max binned lights (indices are one byte)
+    public static final int MAX_LIGHTS_PER_TILE = 16;  // Max lights any one tile will evaluate
+
+    // Texture sizes
+    private static final int DATA_TEX_WIDTH   = MAX_LIGHTS;
+    private static final int DATA_TEX_HEIGHT  = 3;
+    private static final int TILES_TEX_WIDTH  = 1 + MAX_LIGHTS_PER_TILE;
+    private static final int TILES_TEX_HEIGHT = TILE_COLS * TILE_ROWS;
+
+    // Texture units used for the light textures (unit 0 is used by Sprites)
+    public static final int DATA_TEX_UNIT  = 1;
+    public static final int TILES_TEX_UNIT = 2;
+
+    // GL texture IDs [light data, tile lists] and their client-side upload buffers
+    private int[] tex_ids;
+    private ByteBuffer data_bytes;
+    private ByteBuffer tiles_bytes;
+
+    // Raw data for the lights binned this frame
+    private float[] xs, ys, reaches, intensities, glows;
+    private int light_count;
+
+    // Per-tile light index lists
+    private int[] tile_counts;
+    private int[][] tile_lights;
+
+    // The view (world space) the tiles are laid over this frame
+    private float view_min_x, view_min_y, tile_w, tile_h;
+
+    // Normalization values calculated in upload() and sent to the shader program
+    private float[] pos_origin = new float[2];
+    private float pos_range, reach_range, intensity_range;
+
+    // Decoding info for set_uniforms() (constant but the viewport size, which is filled in there)
+    private final float[] data_size = { DATA_TEX_WIDTH, DATA_TEX_HEIGHT };
+    private final float[] tiles_size = { TILES_TEX_WIDTH, TILES_TEX_HEIGHT };
+    private final float[] tile_grid_size = { TILE_COLS, TILE_ROWS };
+    private final float[] viewport_size = new float[2];
+
+    // Statistics for the most recent frame
+    private int rejected_lights;  // Lights not binned (off-screen or out of slots)
+    private int overflowed_tiles; // Tiles which had more lights than MAX_LIGHTS_PER_TILE
+
+    // Constructs the light grid and creates its textures. Must be called on the GL thread.
+    public LightGrid() {
+
+        // Allocate CPU-side storage
+        this.xs          = new float[MAX_LIGHTS];
+        this.ys          = new float[MAX_LIGHTS];
+        this.reaches     = new float[MAX_LIGHTS];
+        this.intensities = new float[MAX_LIGHTS];
+        this.glows       = new float[MAX_LIGHTS * 3];
+        this.tile_counts = new int[TILE_COLS * TILE_ROWS];
+        this.tile_lights = new int[TILE_COLS * TILE_ROWS][MAX_LIGHTS_PER_TILE];
+        this.data_bytes  = ByteBuffer.allocateDirect(DATA_TEX_WIDTH * DATA_TEX_HEIGHT * 4)
+                .order(ByteOrder.nativeOrder());
+        this.tiles_bytes = ByteBuffer.allocateDirect(TILES_TEX_WIDTH * TILES_TEX_HEIGHT)
+                .order(ByteOrder.nativeOrder());
+
+        // Create textures
+        this.tex_ids = new int[2];
+        GLES20.glGenTextures(2, this.tex_ids, 0);
+        create_texture(this.tex_ids[0], GLES20.GL_RGBA, DATA_TEX_WIDTH, DATA_TEX_HEIGHT);
+        create_texture(this.tex_ids[1], GLES20.GL_LUMINANCE, TILES_TEX_WIDTH, TILES_TEX_HEIGHT);
+    }
+
+    // Allocates storage for a nearest-sampled, edge-clamped texture (NPOT-safe in GLES 2.0)
+    private static void create_texture(int id, int format, int width, int height) {
+        GLState.bind_texture(0, id);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLState.bind_texture(0, 0);
+    }
+
+    // Clears all binned lights and lays the tile grid over the given camera's current view.
+    public void begin(Camera cam) {
+        this.light_count = 0;
+        this.rejected_lights = 0;
+        this.overflowed_tiles = 0;
+        for (int i = 0; i < this.tile_counts.length; i++) this.tile_counts[i] = 0;
+
+        float[] view = cam.get_view_rect(1f);
+        this.view_min_x = view[0];
+        this.view_min_y = view[1];
+        this.tile_w = (view[2] - view[0]) / TILE_COLS;
+        this.tile_h = (view[3] - view[1]) / TILE_ROWS;
+    }
+
+    /**
+     * Bins a light by intersecting its reach circle with every tile it may touch.
+     * @return whether the light was binned. Lights that don't touch any tile, or that arrive after
+     *         all MAX_LIGHTS slots are taken, are not.
+     */
+    public boolean add_light(LightSource ls, float x, float y) {
+        float reach = ls.get_reach();
+        if (reach <= 0f || this.light_count >= MAX_LIGHTS) {
+            this.rejected_lights++;
+            return false;
+        }
+
+        // Calculate the range of tiles covered by the light's bounding box
+        int c0 = (int)Math.floor((x - reach - this.view_min_x) / this.tile_w);
+        int c1 = (int)Math.floor((x + reach - this.view_min_x) / this.tile_w);
+        int r0 = (int)Math.floor((y - reach - this.view_min_y) / this.tile_h);
+        int r1 = (int)Math.floor((y + reach - this.view_min_y) / this.tile_h);
+        if (c1 < 0 || r1 < 0 || c0 >= TILE_COLS || r0 >= TILE_ROWS) {
+            this.rejected_lights++;
+            return false;
+        }
+        c0 = Math.max(c0, 0); c1 = Math.min(c1, TILE_COLS - 1);
+        r0 = Math.max(r0, 0); r1 = Math.min(r1, TILE_ROWS - 1);
+
+        // Append the light to each tile its reach circle actually intersects
+        int idx = this.light_count;
+        boolean binned = false;
+        float reach_sq = reach * reach;
+        for (int r = r0; r <= r1; r++) {
+            float ty0 = this.view_min_y + r * this.tile_h;
+            float dy = y - Math.max(ty0, Math.min(y, ty0 + this.tile_h));
+            for (int c = c0; c <= c1; c++) {
+                float tx0 = this.view_min_x + c * this.tile_w;
+                float dx = x - Math.max(tx0, Math.min(x, tx0 + this.tile_w));
+                if (dx * dx + dy * dy > reach_sq) continue;
+                int tile = r * TILE_COLS + c;
+                if (this.tile_counts[tile] >= MAX_LIGHTS_PER_TILE) {
+                    if (this.tile_counts[tile] == MAX_LIGHTS_PER_TILE) this.overflowed_tiles++;
+                    this.tile_counts[tile] = MAX_LIGHTS_PER_TILE + 1; // Flag as overflowed
+                    continue;
+                }
+                this.tile_lights[tile][this.tile_counts[tile]++] = idx;
+                binned = true;
+            }
+        }
+        if (!binned) {
+            this.rejected_lights++;
+            return false;
+        }
+
+        // Save light data
+        float[] glow = ls.get_glow();
+        this.xs[idx]          = x;
+        this.ys[idx]          = y;
+        this.reaches[idx]     = reach;
+        this.intensities[idx] = ls.get_intensity();
+        this.glows[idx * 3]     = glow[0];
+        this.glows[idx * 3 + 1] = glow[1];
+        this.glows[idx * 3 + 2] = glow[2];
+        this.light_count++;
+        return true;
+    }
+
+    // Encodes the binned lights and tile lists and uploads them to their textures.
+    public void upload() {
+
+        // Find ranges to normalize against
+        float max_reach = 0f, max_intensity = 0f;
+        for (int i = 0; i < this.light_count; i++) {
+            max_reach = Math.max(max_reach, this.reaches[i]);
+            max_intensity = Math.max(max_intensity, this.intensities[i]);
+        }
+        float origin_x = this.view_min_x - max_reach;
+        float origin_y = this.view_min_y - max_reach;
+        float pos_range = Math.max(this.tile_w * TILE_COLS, this.tile_h * TILE_ROWS) + 2 * max_reach;
+        this.pos_origin[0] = origin_x;
+        this.pos_origin[1] = origin_y;
+        this.pos_range = pos_range;
+        this.reach_range = Math.max(max_reach, 0.0001f);
+        this.intensity_range = Math.max(max_intensity, 0.0001f);
+
+        // Encode light data (row-major, so each row is written separately)
+        this.data_bytes.clear();
+        for (int i = 0; i < DATA_TEX_WIDTH; i++) {
+            if (i < this.light_count) {
+                put_16(this.data_bytes, (this.xs[i] - origin_x) / pos_range);
+                put_16(this.data_bytes, (this.ys[i] - origin_y) / pos_range);
+            } else this.data_bytes.putInt(0);
+        }
+        for (int i = 0; i < DATA_TEX_WIDTH; i++) {
+            if (i < this.light_count) {
+                put_16(this.data_bytes, this.reaches[i] / this.reach_range);
+                put_16(this.data_bytes, this.intensities[i] / this.intensity_range);
+            } else this.data_bytes.putInt(0);
+        }
+        for (int i = 0; i < DATA_TEX_WIDTH; i++) {
+            for (int j = 0; j < 3; j++) {
+                float glow = i < this.light_count ? this.glows[i * 3 + j] : 0f;
+                this.data_bytes.put(to_byte((glow + 1f) / 2f));
+            }
+            this.data_bytes.put((byte)0);
+        }
+        this.data_bytes.position(0);
+
+        // Encode tile lists
+        this.tiles_bytes.clear();
+        for (int t = 0; t < this.tile_counts.length; t++) {
+            int count = Math.min(this.tile_counts[t], MAX_LIGHTS_PER_TILE);
+            this.tiles_bytes.put((byte)count);
+            for (int k = 0; k < MAX_LIGHTS_PER_TILE; k++)
+                this.tiles_bytes.put(k < count ? (byte)this.tile_lights[t][k] : (byte)0);
+        }
+        this.tiles_bytes.position(0);
+
+        // Upload (into the units the textures stay bound to for rendering)
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLState.bind_texture(DATA_TEX_UNIT, this.tex_ids[0]);
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, DATA_TEX_WIDTH, DATA_TEX_HEIGHT,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, this.data_bytes);
+        GLState.bind_texture(TILES_TEX_UNIT, this.tex_ids[1]);
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, TILES_TEX_WIDTH, TILES_TEX_HEIGHT,
+                GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, this.tiles_bytes);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+    }
+
+    // Binds the light textures and sets the uniforms needed to decode them in the shader program.
+    public void set_uniforms(ShaderProgram sp) {
+
+        // Bind textures to their units (usually still bound from upload())
+        GLState.bind_texture(DATA_TEX_UNIT, this.tex_ids[0]);
+        GLState.bind_texture(TILES_TEX_UNIT, this.tex_ids[1]);
+        sp.set_uniform("light_data", DATA_TEX_UNIT);
+        sp.set_uniform("light_tiles", TILES_TEX_UNIT);
+
+        // Decoding info
+        sp.set_uniform("light_data_size", this.data_size);
+        sp.set_uniform("light_tiles_size", this.tiles_size);
+        sp.set_uniform("tile_counts", this.tile_grid_size);
+        this.viewport_size[0] = GLState.get_target_width();
+        this.viewport_size[1] = GLState.get_target_height();
+        sp.set_uniform("viewport_size", this.viewport_size);
+        sp.set_uniform("light_pos_origin", this.pos_origin);
+        sp.set_uniform("light_pos_range", this.pos_range);
+        sp.set_uniform("light_reach_range", this.reach_range);
+        sp.set_uniform("light_intensity_range", this.intensity_range);
+    }
+
+    // Writes a [0, 1] value as a 16-bit value (high byte first) into the given buffer
+    private static void put_16(ByteBuffer bb, float value) {
+        int encoded = Math.round(Math.min(Math.max(value, 0f), 1f) * 65535f);
+        bb.put((byte)(encoded >> 8));
+        bb.put((byte)(encoded & 0xFF));
+    }
+
+    // Converts a [0, 1] value into an unsigned byte
+    private static byte to_byte(float value) {
+        return (byte)Math.round(Math.min(Math.max(value, 0f), 1f) * 255f);
+    }
+
+    // Accessors for statistics about the most recent frame
+    public int get_binned_lights() { return this.light_count; }
+    public int get_rejected_lights() { return this.rejected_lights; }
+    public int get_overflowed_tiles() { return this.overflowed_tiles; }
+}
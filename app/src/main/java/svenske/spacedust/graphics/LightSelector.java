@@ -0,0 +1,152 @@
+package svenske.spacedust.graphics;
+
+/**
+ * Chooses which lights are worth sending to a shader program when there are only a limited amount
+ * of light slots. Every frame:
+ * - lights whose reach circle doesn't intersect the camera's view are culled
+ * - the remaining lights are ranked by how much they contribute to the screen: their intensity
+ *   times their on-screen coverage, falling off with distance from the center of the view
+ * - the highest-ranked lights fill the available slots, and any others are counted as dropped
+ */
+public class LightSelector {
+
+    // Maximum amount of lights that can be selected
+    private int capacity;
+
+    // Candidate lights for the current frame (grows as needed)
+    private LightSource[] lights;
+    private float[] xs, ys, scores;
+    private int[] order;  // Candidate indices, sorted by descending score after select()
+    private int count;    // Amount of candidates
+    private int selected; // Amount of candidates selected
+
+    // Camera view for the current frame
+    private float min_x, min_y, max_x, max_y;
+    private float center_x, center_y, half_diagonal, view_area;
+
+    // Statistics
+    private int culled;         // Lights culled for being out of view during the current frame
+    private int dropped;        // Lights in view but dropped for lack of slots in the current frame
+    private long total_dropped; // Lights dropped over the lifetime of this selector
+
+    // Constructs the LightSelector with the given amount of available light slots
+    public LightSelector(int capacity) {
+        this.capacity = capacity;
+        this.lights   = new LightSource[capacity];
+        this.xs       = new float[capacity];
+        this.ys       = new float[capacity];
+        this.scores   = new float[capacity];
+        this.order    = new int[capacity];
+    }
+
+    // Clears all candidates and saves the given camera's view to cull and rank against.
+    public void begin(Camera cam) {
+        this.count = this.selected = 0;
+        this.culled = this.dropped = 0;
+        float[] view = cam.get_view_rect(1f);
+        this.min_x = view[0];
+        this.min_y = view[1];
+        this.max_x = view[2];
+        this.max_y = view[3];
+        this.center_x = cam.get_x();
+        this.center_y = cam.get_y();
+        float w = this.max_x - this.min_x, h = this.max_y - this.min_y;
+        this.half_diagonal = (float)Math.sqrt(w * w + h * h) / 2f;
+        this.view_area = w * h;
+    }
+
+    /**
+     * Adds a candidate light at the given position. If its reach circle doesn't intersect the
+     * camera's view, it is culled right away.
+     */
+    public void add(LightSource ls, float x, float y) {
+        float reach = ls.get_reach();
+
+        // Cull if the reach circle doesn't touch the view rectangle
+        float dx = x - Math.max(this.min_x, Math.min(x, this.max_x));
+        float dy = y - Math.max(this.min_y, Math.min(y, this.max_y));
+        if (reach <= 0f || dx * dx + dy * dy > reach * reach) {
+            this.culled++;
+            return;
+        }
+
+        // Grow candidate storage if necessary
+        if (this.count == this.lights.length) this.grow();
+
+        // Estimate on-screen coverage by clipping the light's bounding square to the view
+        float cw = Math.min(x + reach, this.max_x) - Math.max(x - reach, this.min_x);
+        float ch = Math.min(y + reach, this.max_y) - Math.max(y - reach, this.min_y);
+        float coverage = Math.min(1f, (cw * ch * (float)(Math.PI / 4)) / this.view_area);
+
+        // Lights nearer the center of the view matter more
+        float cdx = x - this.center_x, cdy = y - this.center_y;
+        float center_dist = (float)Math.sqrt(cdx * cdx + cdy * cdy) / this.half_diagonal;
+
+        // Save candidate
+        this.lights[this.count] = ls;
+        this.xs[this.count] = x;
+        this.ys[this.count] = y;
+        this.scores[this.count] = ls.get_intensity() * coverage / (1f + center_dist);
+        this.count++;
+    }
+
+    // Doubles the size of candidate storage
+    private void grow() {
+        int n = this.lights.length * 2;
+        LightSource[] lights = new LightSource[n];
+        System.arraycopy(this.lights, 0, lights, 0, this.count);
+        this.lights = lights;
+        this.xs = copy_of(this.xs, n);
+        this.ys = copy_of(this.ys, n);
+        this.scores = copy_of(this.scores, n);
+        this.order = new int[n];
+    }
+
+    // Returns a copy of the given array with the given length
+    private static float[] copy_of(float[] a, int n) {
+        float[] b = new float[n];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, n));
+        return b;
+    }
+
+    /**
+     * Ranks the candidates and selects as many of the highest-ranked as there are slots.
+     * @return how many lights were selected
+     */
+    public int select() {
+        for (int i = 0; i < this.count; i++) this.order[i] = i;
+
+        // Only rank if there are more candidates than slots (shell sort, descending score)
+        if (this.count > this.capacity) {
+            for (int gap = this.count / 2; gap > 0; gap /= 2) {
+                for (int i = gap; i < this.count; i++) {
+                    int idx = this.order[i];
+                    float score = this.scores[idx];
+                    int j = i;
+                    while (j >= gap && this.scores[this.order[j - gap]] < score) {
+                        this.order[j] = this.order[j - gap];
+                        j -= gap;
+                    }
+                    this.order[j] = idx;
+                }
+            }
+        }
+
+        // Fill slots and count the rest as dropped
+        this.selected = Math.min(this.count, this.capacity);
+        this.dropped = this.count - this.selected;
+        this.total_dropped += this.dropped;
+        return this.selected;
+    }
+
+    // Accessors for the i-th selected light (in order of importance once ranked)
+    public LightSource get_light(int i) { return this.lights[this.order[i]]; }
+    public float get_x(int i) { return this.xs[this.order[i]]; }
+    public float get_y(int i) { return this.ys[this.order[i]]; }
+
+    // Accessors for statistics
+    public int get_selected() { return this.selected; }
+    public int get_culled() { return this.culled; }
+    public int get_dropped() { return this.dropped; }
+    public long get_total_dropped() { return this.total_dropped; }
+}
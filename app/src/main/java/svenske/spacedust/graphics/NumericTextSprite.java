@@ -0,0 +1,117 @@
+package svenske.spacedust.graphics;
+
+import java.nio.CharBuffer;
+
+/**
+ * A TextSprite showing a fixed prefix followed by a number (i.e., "FPS: 59.9" or "Score: 12"),
+ * meant for HUD counters that change often. Numbers are formatted straight into a character array
+ * without creating any Strings, and when the text stays the same length only the glyphs of the
+ * digits that changed have their texture coordinates rewritten. The text is only laid out again
+ * (possibly resizing the Sprite, which restructures a HUD) when its width actually changes. Its
+ * text is only made into a String when asked for (see getText()).
+ */
+public class NumericTextSprite extends TextSprite {
+
+    // Most characters a formatted number can take (sign, digits of a long, and decimal point)
+    private static final int MAX_NUMBER_CHARS = 21;
+
+    // Attributes
+    private int prefix_length; // How many characters of the text are the prefix
+    private int decimals;      // How many digits to show after the decimal point
+
+    // Characters currently laid out, characters being formatted, and a view for lay_out()
+    private char[] chars, next;
+    private int length;
+    private CharBuffer chars_view;
+
+    /**
+     * Constructs the NumericTextSprite showing a value of zero. The first arguments follow the
+     * TextSprite constructor.
+     * @param prefix text shown before the number
+     * @param decimals how many digits to show after the decimal point (0 for whole numbers)
+     */
+    public NumericTextSprite(Font font, float[] color, BlendMode blend_mode, String prefix,
+                             int decimals) {
+        super(font, color, blend_mode, prefix);
+        this.prefix_length = prefix.length();
+        this.decimals = decimals;
+        this.chars = new char[prefix.length() + MAX_NUMBER_CHARS];
+        this.next = new char[this.chars.length];
+        prefix.getChars(0, prefix.length(), this.chars, 0);
+        prefix.getChars(0, prefix.length(), this.next, 0);
+        this.chars_view = CharBuffer.wrap(this.chars);
+        this.length = this.prefix_length;
+        this.set_value(0L);
+    }
+
+    // Shows the given whole number
+    public void set_value(long value) {
+        int end = this.format(value, 0);
+        this.apply(end);
+    }
+
+    // Shows the given number, rounded to the amount of decimals given at construction
+    public void set_value(float value) {
+        long scale = 1;
+        for (int i = 0; i < this.decimals; i++) scale *= 10;
+        this.apply(this.format(Math.round((double)value * scale), this.decimals));
+    }
+
+    /**
+     * Formats the given number into the next characters, after the prefix
+     * @param scaled the number multiplied by 10^decimals
+     * @param decimals how many of the number's last digits go after a decimal point
+     * @return the length of the formatted text
+     */
+    private int format(long scaled, int decimals) {
+
+        // Write digits backwards into the end of the array, then move them into place
+        boolean negative = scaled < 0;
+        int i = this.next.length;
+        int digits = 0;
+        do {
+            if (digits == decimals && decimals > 0) this.next[--i] = '.';
+            this.next[--i] = (char)('0' + Math.abs(scaled % 10));
+            scaled /= 10;
+            digits++;
+        } while (scaled != 0 || digits <= decimals);
+        if (negative) this.next[--i] = '-';
+        int number_length = this.next.length - i;
+        System.arraycopy(this.next, i, this.next, this.prefix_length, number_length);
+        return this.prefix_length + number_length;
+    }
+
+    // Brings the laid out glyphs up to date with the next characters of the given length
+    private void apply(int length) {
+
+        // Same length: only replace the glyphs that changed, if they're just as wide
+        boolean lay_out = length != this.length;
+        if (!lay_out) {
+            for (int i = this.prefix_length; i < length; i++) {
+                if (this.chars[i] == this.next[i]) continue;
+                if (!this.replace_glyph(i, this.chars[i], this.next[i])) lay_out = true;
+                this.chars[i] = this.next[i];
+            }
+        }
+
+        // Otherwise lay out the whole text again (which only resizes if the width changed)
+        if (lay_out) {
+            System.arraycopy(this.next, this.prefix_length, this.chars, this.prefix_length,
+                    length - this.prefix_length);
+            this.length = length;
+            this.chars_view.clear().limit(length);
+            this.lay_out(this.chars_view);
+        }
+    }
+
+    // Numeric text is changed through set_value(), not set_text()
+    @Override
+    public void set_text(String text) {
+        throw new RuntimeException("[spdt/numerictextsprite] " +
+                "the text of a NumericTextSprite can only be changed through set_value()");
+    }
+
+    // Returns the NumericTextSprite's current text (this creates a String)
+    @Override
+    public String getText() { return new String(this.chars, 0, this.length); }
+}
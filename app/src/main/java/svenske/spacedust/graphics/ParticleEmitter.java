@@ -0,0 +1,113 @@
+package svenske.spacedust.graphics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import svenske.spacedust.utils.Node;
+import svenske.spacedust.utils.Utils;
+
+/**
+ * Defines a kind of particle effect (i.e., an explosion or engine exhaust): how many particles a
+ * burst emits, how they move, and how they look over their lifetime. Emitters are only definitions;
+ * particles are emitted into and simulated by a ParticleSystem.
+ *
+ * What particles need every frame (their size and color ramps, drag, and blending) is kept in
+ * static tables indexed by emitter, so that ParticleSystem can update every particle in one loop
+ * over primitive arrays. Emitters are never freed, so they should be loaded once and kept.
+ *
+ * Emitters are defined in node files (see load()). Ranges are given as "min,max" and colors as
+ * "r,g,b,a", for example:
+ * death:{
+ *  count: 40          // Particles per burst
+ *  life: 0.5,1.1      // Lifetime in seconds
+ *  speed: 1.5,4.5     // Initial speed in world units per second
+ *  spread: 6.2832     // Angle (in radians) particles spread over, centered on the emit direction
+ *  drag: 2.5          // Portion of velocity lost per second
+ *  size: 0.22,0.04    // Size in world units at birth and at death
+ *  start_color: 1,0.85,0.4,1
+ *  end_color: 1,0.25,0.05,0
+ *  additive: true     // Whether to blend additively (glows) rather than by alpha (smoke)
+ *  gpu: true          // Whether to simulate on the GPU where possible (see GpuParticles)
+ * }
+ */
+public class ParticleEmitter {
+
+    // Per-emitter tables of every emitter, by emitter index
+    static int emitter_count;
+    static float[] drags        = new float[8];
+    static float[] start_sizes  = new float[8];
+    static float[] end_sizes    = new float[8];
+    static float[] start_colors = new float[8 * 4]; // Four floats per emitter
+    static float[] end_colors   = new float[8 * 4];
+    static boolean[] additive   = new boolean[8];
+
+    // Emission settings
+    final int index; // Index into the tables above
+    public final int count;
+    public final float min_life, max_life;
+    public final float min_speed, max_speed;
+    public final float spread;
+    public final boolean gpu; // Whether to simulate the particles on the GPU where possible
+
+    /**
+     * Loads every emitter defined in the given node file, whose root's children are emitters
+     * @return the emitters by name
+     */
+    public static Map<String, ParticleEmitter> load(int resource_id) {
+        Map<String, ParticleEmitter> emitters = new HashMap<>();
+        for (Node child : Node.read_node(resource_id).get_children())
+            emitters.put(child.get_name(), new ParticleEmitter(child));
+        return emitters;
+    }
+
+    // Constructs the ParticleEmitter from the given definition node, adding it to the tables
+    public ParticleEmitter(Node def) {
+        this.count = (int)parse_floats(def, "count", 1)[0];
+        float[] life = parse_floats(def, "life", 2);
+        float[] speed = parse_floats(def, "speed", 2);
+        this.min_life = life[0];
+        this.max_life = life[1];
+        this.min_speed = speed[0];
+        this.max_speed = speed[1];
+        this.spread = parse_floats(def, "spread", 1)[0];
+        Node gpu = def.get_child("gpu"); // Optional (CPU by default)
+        this.gpu = gpu != null && Boolean.parseBoolean(gpu.get_value());
+
+        // Add to tables
+        this.index = emitter_count++;
+        if (this.index == drags.length) {
+            drags = Arrays.copyOf(drags, this.index * 2);
+            start_sizes = Arrays.copyOf(start_sizes, this.index * 2);
+            end_sizes = Arrays.copyOf(end_sizes, this.index * 2);
+            start_colors = Arrays.copyOf(start_colors, this.index * 8);
+            end_colors = Arrays.copyOf(end_colors, this.index * 8);
+            additive = Arrays.copyOf(additive, this.index * 2);
+        }
+        float[] size = parse_floats(def, "size", 2);
+        drags[this.index] = parse_floats(def, "drag", 1)[0];
+        start_sizes[this.index] = size[0];
+        end_sizes[this.index] = size[1];
+        System.arraycopy(parse_floats(def, "start_color", 4), 0, start_colors, this.index * 4, 4);
+        System.arraycopy(parse_floats(def, "end_color", 4), 0, end_colors, this.index * 4, 4);
+        Node blend = def.get_child("additive"); // Optional (alpha blending by default)
+        additive[this.index] = blend != null && Boolean.parseBoolean(blend.get_value());
+    }
+
+    // Parses the given amount of comma-separated floats from the given child of a definition
+    private static float[] parse_floats(Node def, String name, int n) {
+        Node child = def.get_child(name);
+        if (child == null || child.get_value() == null)
+            throw new RuntimeException("[spdt/particleemitter] " +
+                    "emitter '" + def.get_name() + "' is missing '" + name + "'");
+        List<String> values = Utils.split_string(child.get_value(), ',');
+        if (values.size() != n)
+            throw new RuntimeException("[spdt/particleemitter] " +
+                    "emitter '" + def.get_name() + "' expected " + n + " values for '" + name +
+                    "', got " + values.size());
+        float[] result = new float[n];
+        for (int i = 0; i < n; i++) result[i] = Float.parseFloat(values.get(i));
+        return result;
+    }
+}
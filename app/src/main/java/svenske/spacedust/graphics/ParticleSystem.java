@@ -0,0 +1,315 @@
+package svenske.spacedust.graphics;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import svenske.spacedust.R;
+import svenske.spacedust.utils.Global;
+
+/**
+ * Simulates and renders every particle of a World. Particles are kept in a fixed pool of parallel
+ * primitive arrays (no object per particle) and are all integrated in one loop per update, which
+ * also writes each live particle's vertex (position, size and color) for rendering. Dead particles
+ * are swapped out with the last live one, so the live particles are always the first `count`.
+ *
+ * Particles are drawn as point sprites (vertex_particle.glsl/fragment_particle.glsl) with one draw
+ * call per blend mode: every additive particle is drawn at once, as is every alpha-blended one.
+ *
+ * The pool is a hard budget: once MAX_PARTICLES are alive, further emissions are dropped rather
+ * than letting effects pile up and hurt frame time (see get_dropped()).
+ *
+ * Emitters marked for the GPU are instead simulated by GpuParticles, which costs nothing per
+ * particle per frame, with one draw call per emitter. They fall back to the CPU pool when GPU
+ * particles are disabled (see Global.GPU_PARTICLES) or their emitter's ring is full of live
+ * particles.
+ *
+ * Emitting and updating make no GL calls. What rendering needs is copied into a Snapshot by
+ * capture(), and rendered from it by render(), so the simulation can run on another thread than
+ * rendering (see WorldSnapshot).
+ */
+public class ParticleSystem {
+
+    // The most particles alive at once (on the CPU, and on the GPU per emitter)
+    public static final int MAX_PARTICLES = 2048;
+    public static final int MAX_GPU_PARTICLES = 2048;
+
+    // Vertex layout (floats): pos (2), size (1), color (4)
+    private static final int FLOATS_PER_PARTICLE = 7;
+    private static final int STRIDE = FLOATS_PER_PARTICLE * 4;
+
+    // Vertex data is streamed through a ring of buffers, each big enough for a full pool
+    private static final int STREAM_BUFFERS = 3;
+
+    // Particle pool
+    private int count;
+    private float[] xs         = new float[MAX_PARTICLES];
+    private float[] ys         = new float[MAX_PARTICLES];
+    private float[] vxs        = new float[MAX_PARTICLES];
+    private float[] vys        = new float[MAX_PARTICLES];
+    private float[] ages       = new float[MAX_PARTICLES]; // Seconds since emission
+    private float[] inv_lives  = new float[MAX_PARTICLES]; // 1 / lifetime
+    private int[] emitters     = new int[MAX_PARTICLES];   // Emitter index (see ParticleEmitter)
+
+    // Vertices written by the last update, kept apart by blend mode
+    private float[] alpha_vertices    = new float[MAX_PARTICLES * FLOATS_PER_PARTICLE];
+    private float[] additive_vertices = new float[MAX_PARTICLES * FLOATS_PER_PARTICLE];
+    private int alpha_count, additive_count;
+
+    // Per-emitter velocity multipliers for the current update (from drag)
+    private float[] dampings = new float[8];
+
+    // GPU-simulated particles by emitter index (null for emitters without any yet)
+    private GpuParticles[] gpu_particles = new GpuParticles[8];
+    private boolean gpu_enabled = true;
+    private double time; // Seconds of updates so far (the clock GPU particles are timed by)
+
+    // Rendering
+    private ShaderProgram sp;
+    private ShaderProgram gpu_sp;
+    private StreamingVertexBuffer stream;
+    private FloatBuffer staging;
+
+    // Emission
+    private Random random = new Random();
+    private long dropped; // Particles not emitted as the pool was full
+
+    // Constructs the ParticleSystem, creating its shader program and GL buffers
+    public ParticleSystem() {
+        this.sp = new ShaderProgram(R.raw.vertex_particle, R.raw.fragment_particle);
+        this.gpu_sp = new ShaderProgram(R.raw.vertex_gpu_particle, R.raw.fragment_particle);
+        this.stream = new StreamingVertexBuffer(STREAM_BUFFERS, MAX_PARTICLES * STRIDE);
+        this.staging = ByteBuffer.allocateDirect(MAX_PARTICLES * STRIDE)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Emits a burst of the given emitter's particles. Particles beyond the budget are dropped.
+     * @param direction the angle (in radians) particles are emitted towards. They're spread
+     *                  randomly over the emitter's spread around it.
+     * @param vx a velocity added to every particle (i.e., the velocity of what emitted them)
+     * @param vy see vx
+     */
+    public void emit(ParticleEmitter pe, float x, float y, float direction, float vx, float vy) {
+        if (pe.gpu && this.gpu_enabled && this.emit_gpu(pe, x, y, direction, vx, vy)) return;
+        int n = Math.min(pe.count, MAX_PARTICLES - this.count);
+        this.dropped += pe.count - n;
+        for (int i = 0; i < n; i++) {
+            int p = this.count++;
+            float angle = direction + (this.random.nextFloat() - 0.5f) * pe.spread;
+            float speed = pe.min_speed + this.random.nextFloat() * (pe.max_speed - pe.min_speed);
+            float life = pe.min_life + this.random.nextFloat() * (pe.max_life - pe.min_life);
+            this.xs[p] = x;
+            this.ys[p] = y;
+            this.vxs[p] = vx + speed * (float)Math.cos(angle);
+            this.vys[p] = vy + speed * (float)Math.sin(angle);
+            this.ages[p] = 0f;
+            this.inv_lives[p] = 1f / Math.max(life, 0.001f);
+            this.emitters[p] = pe.index;
+        }
+    }
+
+    // Emits a burst on the GPU, returning whether it could be
+    private boolean emit_gpu(ParticleEmitter pe, float x, float y, float direction, float vx,
+                             float vy) {
+        if (pe.index >= this.gpu_particles.length)
+            this.gpu_particles = Arrays.copyOf(this.gpu_particles, ParticleEmitter.emitter_count);
+        if (this.gpu_particles[pe.index] == null)
+            this.gpu_particles[pe.index] = new GpuParticles(pe, MAX_GPU_PARTICLES);
+        return this.gpu_particles[pe.index].emit(x, y, direction, vx, vy, this.time, this.random);
+    }
+
+    /**
+     * Ages, moves and kills every particle, writing the vertices of those still alive. This is
+     * the only place particles are touched each frame.
+     */
+    public void update(float dt) {
+        this.time += dt;
+
+        // Resolve drag once per emitter rather than per particle
+        if (this.dampings.length < ParticleEmitter.emitter_count)
+            this.dampings = new float[ParticleEmitter.emitter_count];
+        for (int e = 0; e < ParticleEmitter.emitter_count; e++)
+            this.dampings[e] = (float)Math.exp(-ParticleEmitter.drags[e] * dt); // As on the GPU
+
+        // Emitter tables
+        float[] start_sizes = ParticleEmitter.start_sizes, end_sizes = ParticleEmitter.end_sizes;
+        float[] start_colors = ParticleEmitter.start_colors;
+        float[] end_colors = ParticleEmitter.end_colors;
+        boolean[] additive = ParticleEmitter.additive;
+
+        // Integrate
+        int alpha = 0, add = 0;
+        int i = 0;
+        while (i < this.count) {
+            float t = (this.ages[i] + dt) * this.inv_lives[i]; // Portion of life passed
+            if (t >= 1f) {
+                this.kill(i); // Moves the last particle here, so i is looked at again
+                continue;
+            }
+            this.ages[i] += dt;
+            int e = this.emitters[i];
+            float vx = this.vxs[i] * this.dampings[e], vy = this.vys[i] * this.dampings[e];
+            float x = this.xs[i] + vx * dt, y = this.ys[i] + vy * dt;
+            this.vxs[i] = vx;
+            this.vys[i] = vy;
+            this.xs[i] = x;
+            this.ys[i] = y;
+
+            // Write vertex, fading from the emitter's start look to its end look
+            float[] v;
+            int o;
+            if (additive[e]) {
+                v = this.additive_vertices;
+                o = add++ * FLOATS_PER_PARTICLE;
+            } else {
+                v = this.alpha_vertices;
+                o = alpha++ * FLOATS_PER_PARTICLE;
+            }
+            int c = e * 4;
+            v[o] = x;
+            v[o + 1] = y;
+            v[o + 2] = start_sizes[e] + (end_sizes[e] - start_sizes[e]) * t;
+            v[o + 3] = start_colors[c] + (end_colors[c] - start_colors[c]) * t;
+            v[o + 4] = start_colors[c + 1] + (end_colors[c + 1] - start_colors[c + 1]) * t;
+            v[o + 5] = start_colors[c + 2] + (end_colors[c + 2] - start_colors[c + 2]) * t;
+            v[o + 6] = start_colors[c + 3] + (end_colors[c + 3] - start_colors[c + 3]) * t;
+            i++;
+        }
+        this.alpha_count = alpha;
+        this.additive_count = add;
+    }
+
+    // Kills the particle at the given index by moving the last particle into its place
+    private void kill(int i) {
+        int last = --this.count;
+        if (i == last) return;
+        this.xs[i] = this.xs[last];
+        this.ys[i] = this.ys[last];
+        this.vxs[i] = this.vxs[last];
+        this.vys[i] = this.vys[last];
+        this.ages[i] = this.ages[last];
+        this.inv_lives[i] = this.inv_lives[last];
+        this.emitters[i] = this.emitters[last];
+    }
+
+    // Copies what rendering the particles as of the last update needs into the given snapshot
+    public void capture(Snapshot s) {
+        int n = this.gpu_particles.length;
+        if (s.gpu.length < n) s.allocate_gpu(n);
+        for (int e = 0; e < n; e++) {
+            if (this.gpu_particles[e] != null) this.gpu_particles[e].capture(s, this.time);
+            else s.gpu[e] = null;
+        }
+        System.arraycopy(this.alpha_vertices, 0, s.alpha_vertices, 0,
+                this.alpha_count * FLOATS_PER_PARTICLE);
+        System.arraycopy(this.additive_vertices, 0, s.additive_vertices, 0,
+                this.additive_count * FLOATS_PER_PARTICLE);
+        s.alpha_count = this.alpha_count;
+        s.additive_count = this.additive_count;
+    }
+
+    // Renders the particles in the given snapshot, as seen by the given camera
+    public void render(Snapshot s, Camera cam) {
+
+        // Draw GPU particles, one draw per emitter
+        boolean any_gpu = false;
+        for (GpuParticles gp : s.gpu) {
+            if (gp == null) continue;
+            if (!any_gpu) this.bind(this.gpu_sp, cam);
+            any_gpu = true;
+            gp.render(this.gpu_sp, s);
+        }
+
+        // Draw alpha-blended CPU particles, then additive ones over them
+        if (s.alpha_count + s.additive_count == 0) return;
+        this.stream.begin_frame();
+        this.bind(this.sp, cam);
+        this.draw(s.alpha_vertices, s.alpha_count);
+        GLState.blend_func(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE);
+        this.draw(s.additive_vertices, s.additive_count);
+        GLState.blend_func(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+    }
+
+    // Binds the given particle shader program and sets its view uniforms
+    private void bind(ShaderProgram sp, Camera cam) {
+        sp.bind();
+        cam.set_uniforms(sp);
+        sp.set_uniform("aspect_ratio",
+                (float)Global.VIEWPORT_WIDTH / (float)Global.VIEWPORT_HEIGHT);
+        sp.set_uniform("pixels_per_unit", // Of the render target, which may be scaled down
+                Math.min(GLState.get_target_width(), GLState.get_target_height()) / 2f);
+    }
+
+    // Uploads and draws the given vertices with a single draw call
+    private void draw(float[] vertices, int n) {
+        if (n == 0) return;
+        this.staging.position(0);
+        this.staging.put(vertices, 0, n * FLOATS_PER_PARTICLE);
+        int base = this.stream.upload(this.staging, n * STRIDE);
+        int pos_loc = this.sp.get_attribute_location("particle_position");
+        int size_loc = this.sp.get_attribute_location("particle_size");
+        int color_loc = this.sp.get_attribute_location("particle_color");
+        GLState.set_attrib_arrays((1 << pos_loc) | (1 << size_loc) | (1 << color_loc));
+        GLState.set_divisor(pos_loc, 0); // In case an instanced batch used these locations
+        GLState.set_divisor(size_loc, 0);
+        GLState.set_divisor(color_loc, 0);
+        GLState.attrib_pointer(pos_loc, 2, STRIDE, base);
+        GLState.attrib_pointer(size_loc, 1, STRIDE, base + 2 * 4);
+        GLState.attrib_pointer(color_loc, 4, STRIDE, base + 3 * 4);
+        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, n);
+    }
+
+    // Kills every CPU particle
+    public void clear() { this.count = this.alpha_count = this.additive_count = 0; }
+
+    // Sets whether emitters marked for the GPU use it (otherwise, they're simulated on the CPU)
+    public void set_gpu_enabled(boolean gpu_enabled) { this.gpu_enabled = gpu_enabled; }
+
+    // Accessors for diagnostics
+    public int get_count() { return this.count; }
+    public long get_dropped() { return this.dropped; }
+    public StreamingVertexBuffer get_stream() { return this.stream; }
+
+    /**
+     * The particles of a ParticleSystem as of one update: CPU particles' vertices, and the rings
+     * of GPU particles by emitter index along with their times (see GpuParticles.capture()).
+     */
+    public static class Snapshot {
+
+        // CPU particles' vertices, kept apart by blend mode
+        float[] alpha_vertices    = new float[MAX_PARTICLES * FLOATS_PER_PARTICLE];
+        float[] additive_vertices = new float[MAX_PARTICLES * FLOATS_PER_PARTICLE];
+        int alpha_count, additive_count;
+
+        // GPU particles by emitter index (null for emitters without any)
+        GpuParticles[] gpu = new GpuParticles[0];
+        float[][] gpu_rings;     // Copies of the rings
+        int[] gpu_versions;      // Versions of the rings copied
+        int[][] gpu_history_los; // Copies of the rings' recent dirty ranges (see GpuParticles)
+        int[][] gpu_history_his;
+        int[] gpu_used;          // How much of each ring is used
+        float[] gpu_times;       // Time relative to each ring's epoch
+        float[] gpu_last_deaths; // When every particle in each ring will have died
+
+        // Grows the per-emitter GPU particle arrays to the given length
+        void allocate_gpu(int n) {
+            this.gpu = Arrays.copyOf(this.gpu, n);
+            this.gpu_rings = this.gpu_rings == null ? new float[n][] :
+                    Arrays.copyOf(this.gpu_rings, n);
+            this.gpu_versions = this.gpu_versions == null ? new int[n] :
+                    Arrays.copyOf(this.gpu_versions, n);
+            this.gpu_history_los = this.gpu_history_los == null ? new int[n][] :
+                    Arrays.copyOf(this.gpu_history_los, n);
+            this.gpu_history_his = this.gpu_history_his == null ? new int[n][] :
+                    Arrays.copyOf(this.gpu_history_his, n);
+            this.gpu_used = new int[n];
+            this.gpu_times = new float[n];
+            this.gpu_last_deaths = new float[n];
+        }
+    }
+}
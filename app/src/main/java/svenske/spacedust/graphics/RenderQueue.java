@@ -0,0 +1,284 @@
+package svenske.spacedust.graphics;
+
+/**
+ * Collects Sprite draws for a frame and renders them sorted by a 64-bit key so that draws sharing
+ * a shader variant and texture end up next to each other (and GLState can skip the re-binds). The
+ * key is laid out, from most to least significant:
+ * - layer (8 bits): explicit drawing order, i.e., entities, projectiles, nameplates
+ * - depth (8 bits): drawing order within a layer (lower depths first), 0 unless given
+ * - shader variant (4 bits): blend mode and lighting
+ * - texture (16 bits): texture ID (0 for untextured)
+ * - sequence (28 bits): submission order, so that draws that are otherwise equal keep their order
+ * Draws are sorted with an LSD radix sort over the key's bytes, skipping bytes all keys share.
+ *
+ * If a camera is given in begin(), draws whose sprite can't overlap the camera's view are culled as
+ * they're added, so they submit no GL work at all. If a SpriteInstancer is set, sorted runs of quads
+ * sharing a layer, depth, variant and texture are drawn with one instanced draw each.
+ *
+ * Each draw keeps a copy of its sprite as it was when added (see Sprite.copy()), so draws can be
+ * added on one thread and rendered on another while the sprites keep animating and changing (see
+ * WorldSnapshot). Only GL work happens in render() and flush().
+ */
+public class RenderQueue {
+
+    // Layers, in drawing order
+    public static final int LAYER_ENTITY        = 10;
+    public static final int LAYER_PROJECTILE    = 20;
+    public static final int LAYER_PLATE         = 30; // Nameplate bar backgrounds
+    public static final int LAYER_PLATE_FILL    = 31; // Nameplate bar foregrounds
+    public static final int LAYER_PLATE_TEXT    = 32; // Nameplate names
+
+    // The deepest depth within a layer (see add())
+    public static final int MAX_DEPTH = 0xFF;
+
+    // Key layout
+    private static final int LAYER_SHIFT   = 56;
+    private static final int DEPTH_SHIFT   = 48;
+    private static final int VARIANT_SHIFT = 44;
+    private static final int TEXTURE_SHIFT = 28;
+    private static final long SEQUENCE_MASK = (1L << TEXTURE_SHIFT) - 1;
+
+    // Queued draws (grows as needed)
+    private Sprite[] sprites; // Copies of the sprites when added, reused from frame to frame
+    private float[] xs, ys, sxs, sys, rots;
+    private long[] keys, keys_tmp;
+    private int[] order, order_tmp; // Draw indices, sorted by key after sort()
+    private int count;
+    private boolean sorted; // Whether the queued draws are sorted already
+    private int[] counts = new int[256]; // Radix sort histogram
+
+    // Camera view to cull against (if culling)
+    private boolean culling;
+    private float min_x, min_y, max_x, max_y;
+
+    // Instanced drawing (only used if set and the shader program supports it)
+    private static final int MIN_INSTANCES = 4; // Shorter runs are drawn one by one
+    private SpriteInstancer instancer;
+
+    // Statistics for the most recent frame
+    private int variant_switches, texture_switches, instanced_draws;
+    private int visible, culled;
+
+    // Constructs the RenderQueue with room for the given amount of draws
+    public RenderQueue(int capacity) {
+        this.allocate(Math.max(capacity, 16));
+    }
+
+    // Allocates storage for the given amount of draws, keeping queued draws
+    private void allocate(int n) {
+        Sprite[] sprites = new Sprite[n];
+        int copies = this.sprites == null ? 0 : this.sprites.length;
+        if (copies > 0) System.arraycopy(this.sprites, 0, sprites, 0, copies);
+        for (int i = copies; i < n; i++) sprites[i] = new Sprite();
+        this.sprites = sprites;
+        this.xs = copy_of(this.xs, n, this.count);
+        this.ys = copy_of(this.ys, n, this.count);
+        this.sxs = copy_of(this.sxs, n, this.count);
+        this.sys = copy_of(this.sys, n, this.count);
+        this.rots = copy_of(this.rots, n, this.count);
+        long[] keys = new long[n];
+        if (this.keys != null) System.arraycopy(this.keys, 0, keys, 0, this.count);
+        this.keys = keys;
+        this.keys_tmp = new long[n];
+        this.order = new int[n];
+        this.order_tmp = new int[n];
+    }
+
+    // Returns a copy of the given array (which may be null) with the given length
+    private static float[] copy_of(float[] a, int n, int used) {
+        float[] b = new float[n];
+        if (a != null) System.arraycopy(a, 0, b, 0, used);
+        return b;
+    }
+
+    /**
+     * Starts a new frame, dropping any draws still queued and culling draws added during it
+     * against the given camera's view.
+     * @param cam the camera to cull against, or null to not cull
+     */
+    public void begin(Camera cam) {
+        this.clear();
+        this.visible = this.culled = 0;
+        this.culling = (cam != null);
+        if (this.culling) {
+            float[] view = cam.get_view_rect(1f);
+            this.min_x = view[0];
+            this.min_y = view[1];
+            this.max_x = view[2];
+            this.max_y = view[3];
+        }
+    }
+
+    /**
+     * Queues a draw of the given Sprite on the given layer, unless it's out of view. Arguments
+     * follow Sprite.render().
+     */
+    public void add(int layer, Sprite sprite, float x, float y, float sx, float sy, float rot) {
+        this.add(layer, 0, sprite, x, y, sx, sy, rot);
+    }
+
+    /**
+     * Queues a draw of the given Sprite at the given depth within the given layer, unless it's out
+     * of view. Draws at lower depths are drawn first.
+     * @param depth the depth within the layer, in [0, MAX_DEPTH] (clamped)
+     */
+    public void add(int layer, int depth, Sprite sprite, float x, float y, float sx, float sy,
+                    float rot) {
+
+        // Cull using a half-extent that covers the sprite at any rotation
+        if (this.culling) {
+            float half_extent = (Math.abs(sprite.width * sx) + Math.abs(sprite.height * sy)) / 2f;
+            if (x + half_extent < this.min_x || x - half_extent > this.max_x ||
+                    y + half_extent < this.min_y || y - half_extent > this.max_y) {
+                this.culled++;
+                return;
+            }
+        }
+        this.visible++;
+
+        if (this.count == this.sprites.length) this.allocate(this.count * 2);
+        this.sorted = false;
+        int i = this.count++;
+        this.sprites[i].copy(sprite);
+        this.xs[i] = x;
+        this.ys[i] = y;
+        this.sxs[i] = sx;
+        this.sys[i] = sy;
+        this.rots[i] = rot;
+        this.keys[i] = make_key(layer, Math.max(0, Math.min(MAX_DEPTH, depth)), sprite, i);
+    }
+
+    // Creates the sort key for a draw of the given Sprite
+    private static long make_key(int layer, int depth, Sprite sprite, int sequence) {
+        long variant = sprite.get_blend_mode().ordinal() * 2 + (sprite.is_lit() ? 1 : 0);
+        return ((long)(layer & 0xFF) << LAYER_SHIFT)
+                | ((long)(depth & 0xFF) << DEPTH_SHIFT)
+                | ((variant & 0xF) << VARIANT_SHIFT)
+                | ((long)(sprite.get_texture_id() & 0xFFFF) << TEXTURE_SHIFT)
+                | (sequence & SEQUENCE_MASK);
+    }
+
+    // Sorts the queued draws by key
+    private void sort() {
+        for (int i = 0; i < this.count; i++) this.order[i] = i;
+        long[] keys = this.keys, keys_out = this.keys_tmp;
+        int[] order = this.order, order_out = this.order_tmp;
+        int[] counts = this.counts;
+        for (int shift = 0; shift < 64; shift += 8) {
+
+            // Histogram this byte, skipping the pass if every key has the same value
+            for (int b = 0; b < 256; b++) counts[b] = 0;
+            for (int i = 0; i < this.count; i++) counts[(int)(keys[i] >>> shift) & 0xFF]++;
+            if (counts[(int)(keys[0] >>> shift) & 0xFF] == this.count) continue;
+
+            // Scatter into the other buffers by this byte
+            for (int b = 0, sum = 0; b < 256; b++) {
+                int c = counts[b];
+                counts[b] = sum;
+                sum += c;
+            }
+            for (int i = 0; i < this.count; i++) {
+                int dst = counts[(int)(keys[i] >>> shift) & 0xFF]++;
+                keys_out[dst] = keys[i];
+                order_out[dst] = order[i];
+            }
+            long[] tk = keys; keys = keys_out; keys_out = tk;
+            int[] to = order; order = order_out; order_out = to;
+        }
+        this.keys = keys;
+        this.keys_tmp = keys_out;
+        this.order = order;
+        this.order_tmp = order_out;
+    }
+
+    // Sorts and renders all queued draws with the given shader program, then clears the queue
+    public void flush(ShaderProgram sp) {
+        this.render(sp);
+        this.clear();
+    }
+
+    /**
+     * Sorts and renders all queued draws with the given shader program, keeping them queued so
+     * that they can be rendered again (i.e., if a snapshot is shown for more than one frame). The
+     * given shader program should already be bound. If an instancer was given and the shader
+     * program supports instancing, runs of quad Sprites sharing a variant and texture are drawn
+     * as single instanced draws.
+     */
+    public void render(ShaderProgram sp) {
+        this.variant_switches = this.texture_switches = this.instanced_draws = 0;
+        if (this.count > 0) {
+            if (!this.sorted) this.sort();
+            this.sorted = true;
+            boolean instancing = this.instancer != null && sp.supports_instancing();
+            if (instancing) this.instancer.begin_frame();
+            long last_key = ~this.keys[0];
+            for (int k = 0; k < this.count; k++) {
+
+                // Count state switches between consecutive draws
+                long key = this.keys[k], diff = key ^ last_key;
+                if (((diff >>> VARIANT_SHIFT) & 0xF) != 0) this.variant_switches++;
+                if (((diff >>> TEXTURE_SHIFT) & 0xFFFF) != 0) this.texture_switches++;
+                last_key = key;
+
+                // Draw a run of instanceable draws at once if it's long enough
+                if (instancing) {
+                    int end = this.find_instance_run(k);
+                    if (end - k >= MIN_INSTANCES) {
+                        this.draw_instanced(sp, k, end);
+                        last_key = this.keys[end - 1];
+                        k = end - 1;
+                        continue;
+                    }
+                }
+
+                // Render
+                int i = this.order[k];
+                this.sprites[i].render(sp, this.xs[i], this.ys[i], this.sxs[i], this.sys[i],
+                        this.rots[i]);
+            }
+        }
+    }
+
+    // Drops every queued draw (their copies are kept for reuse)
+    public void clear() {
+        this.count = 0;
+        this.sorted = false;
+    }
+
+    /**
+     * Finds the run of sorted draws starting at the given one that share its layer, depth,
+     * variant and texture and are all quads.
+     * @return the (exclusive) end of the run
+     */
+    private int find_instance_run(int start) {
+        long batch = this.keys[start] >>> TEXTURE_SHIFT;
+        int end = start;
+        while (end < this.count && (this.keys[end] >>> TEXTURE_SHIFT) == batch &&
+                this.sprites[this.order[end]].is_quad()) end++;
+        return end;
+    }
+
+    // Draws the given run of sorted draws with a single instanced draw
+    private void draw_instanced(ShaderProgram sp, int start, int end) {
+        Sprite first = this.sprites[this.order[start]];
+        this.instancer.begin(sp.select(first.get_blend_mode(), first.is_lit(), true),
+                first.get_texture_id());
+        for (int k = start; k < end; k++) {
+            int i = this.order[k];
+            this.instancer.add(this.sprites[i], this.xs[i], this.ys[i], this.sxs[i], this.sys[i],
+                    this.rots[i]);
+        }
+        this.instancer.draw();
+        this.instanced_draws++;
+    }
+
+    // Sets the instancer used to draw runs of quads (null to never instance)
+    public void set_instancer(SpriteInstancer instancer) { this.instancer = instancer; }
+
+    // Accessors for statistics about the most recent frame
+    public int get_variant_switches() { return this.variant_switches; }
+    public int get_texture_switches() { return this.texture_switches; }
+    public int get_instanced_draws() { return this.instanced_draws; }
+    public int get_visible() { return this.visible; }
+    public int get_culled() { return this.culled; }
+}
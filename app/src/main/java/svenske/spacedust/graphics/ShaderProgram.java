@@ -3,6 +3,8 @@ package svenske.spacedust.graphics;
 import android.opengl.GLES20;
 
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import svenske.spacedust.GameActivity;
 import svenske.spacedust.utils.Utils;
@@ -13,21 +15,39 @@ public class ShaderProgram {
     // OpenGL shader program ID
     int program;
 
+    // Cached attribute locations and uniforms (with locations of -1 for those that don't exist)
+    private Map<String, Integer> attribute_locations = new HashMap<>();
+    private Map<String, Uniform> uniforms = new HashMap<>();
+
     /**
      * Loads the shader program by loading and compiling source code in the given vertex shader
      * and fragment shader source files resource IDs.
      */
     public ShaderProgram(int vertex_shader_resource_id, int fragment_shader_resource_id) {
+        this(vertex_shader_resource_id, fragment_shader_resource_id, new String[0]);
+    }
+
+    /**
+     * Loads the shader program like above, but injects a #define for each of the given defines
+     * into both shaders before compiling them. A define can be just a name (e.g., "UNLIT") or a
+     * name followed by a value (e.g., "MAX_LIGHTS 64").
+     */
+    public ShaderProgram(int vertex_shader_resource_id, int fragment_shader_resource_id,
+                         String[] defines) {
+        this(read_source(vertex_shader_resource_id), read_source(fragment_shader_resource_id),
+                defines);
+    }
+
+    // Compiles and links the shader program from already loaded source code and defines.
+    ShaderProgram(String vertex_shader_code, String fragment_shader_code, String[] defines) {
 
         // Vertex shader
-        InputStream is = GameActivity.app_resources.openRawResource(vertex_shader_resource_id);
-        String vertex_shader_code = Utils.input_stream_to_string(is);
-        int vertex_shader = compile_shader(GLES20.GL_VERTEX_SHADER, vertex_shader_code);
+        int vertex_shader = compile_shader(GLES20.GL_VERTEX_SHADER,
+                preprocess(vertex_shader_code, defines));
 
         // Fragment shader
-        is = GameActivity.app_resources.openRawResource(fragment_shader_resource_id);
-        String fragment_shader_code = Utils.input_stream_to_string(is);
-        int fragment_shader = compile_shader(GLES20.GL_FRAGMENT_SHADER, fragment_shader_code);
+        int fragment_shader = compile_shader(GLES20.GL_FRAGMENT_SHADER,
+                preprocess(fragment_shader_code, defines));
 
         // Create empty OpenGL ES shader program
         this.program = GLES20.glCreateProgram();
@@ -43,54 +63,139 @@ public class ShaderProgram {
         GLES20.glLinkProgram(this.program);
     }
 
+    // Constructs a ShaderProgram with no OpenGL program of its own (see ShaderVariants)
+    protected ShaderProgram() {}
+
+    // Reads the source code of the shader with the given resource ID
+    static String read_source(int resource_id) {
+        InputStream is = GameActivity.app_resources.openRawResource(resource_id);
+        return Utils.input_stream_to_string(is);
+    }
+
+    /**
+     * Injects a #define line for each of the given defines into the given shader source code. The
+     * defines go after the #version directive if there is one, as it must come first.
+     */
+    static String preprocess(String code, String[] defines) {
+        if (defines == null || defines.length == 0) return code;
+        StringBuilder sb = new StringBuilder();
+        for (String define : defines) sb.append("#define ").append(define).append('\n');
+        int version = code.indexOf("#version");
+        if (version == -1) return sb.append(code).toString();
+        int line_end = code.indexOf('\n', version) + 1;
+        return code.substring(0, line_end) + sb + code.substring(line_end);
+    }
+
+    /**
+     * Returns the shader program that should be used to render something with the given blend
+     * mode. A plain ShaderProgram always returns itself, but ShaderVariants will return (and bind)
+     * a variant compiled specifically for that blend mode.
+     * @param lit whether the rendered thing should be lit (ignored by shaders without lighting)
+     */
+    public ShaderProgram select(BlendMode blend_mode, boolean lit) {
+        return this.select(blend_mode, lit, false);
+    }
+
+    /**
+     * Like above, but can also select a variant that takes per-instance attributes instead of
+     * per-object uniforms (see SpriteInstancer). Only valid if supports_instancing() is true.
+     */
+    public ShaderProgram select(BlendMode blend_mode, boolean lit, boolean instanced) {
+        if (instanced)
+            throw new RuntimeException("[spdt/shaderprogram]: " +
+                    "shader program has no instanced variant");
+        return this;
+    }
+
+    // Return whether select() can return instanced variants of this shader program
+    public boolean supports_instancing() { return false; }
+
     // Binds the shader program
     public void bind() {
-        GLES20.glUseProgram(this.program);
+        GLState.use_program(this.program);
     }
 
     // Return the location of the attribute with the given name in the shader program.
     public int get_attribute_location(String name) {
-        int loc = GLES20.glGetAttribLocation(this.program, name);
+        int loc = this.find_attribute_location(name);
         if (loc == -1)
             throw new RuntimeException("[spdt/shaderprogram]: " +
                     " no attribute named " + name);
         return loc;
     }
 
-    // Return the location of the uniform with the given name in the shader program.
-    private int get_uniform_location(String name) {
-        int loc = GLES20.glGetUniformLocation(this.program, name);
-        if (loc == -1)
+    // Return the location of the attribute with the given name (or -1), querying GL only once.
+    private int find_attribute_location(String name) {
+        Integer loc = this.attribute_locations.get(name);
+        if (loc == null) {
+            loc = GLES20.glGetAttribLocation(this.program, name);
+            this.attribute_locations.put(name, loc);
+        }
+        return loc;
+    }
+
+    // Return whether the attribute with the given name exists (is used) in this shader program.
+    public boolean attribute_exists(String name) {
+        return (this.find_attribute_location(name) != -1);
+    }
+
+    // Return the uniform with the given name in the shader program.
+    private Uniform get_uniform(String name) {
+        Uniform u = this.find_uniform(name);
+        if (u.loc == -1)
             throw new RuntimeException("[spdt/shaderprogram]: " +
                     " no uniform named " + name);
-        return loc;
+        return u;
+    }
+
+    // Return the uniform with the given name (whose location may be -1), querying GL only once.
+    private Uniform find_uniform(String name) {
+        Uniform u = this.uniforms.get(name);
+        if (u == null) {
+            u = new Uniform(GLES20.glGetUniformLocation(this.program, name));
+            this.uniforms.put(name, u);
+        }
+        return u;
     }
 
     // Return whether the uniform with the given name exists in this shader program.
     public boolean uniform_exists(String name) {
-        return (GLES20.glGetUniformLocation(this.program, name) != -1);
+        return (this.find_uniform(name).loc != -1);
     }
 
     // Sets the uniform with the given name to the given array of floats.
     public void set_uniform(String name, float[] value) {
-        int loc = this.get_uniform_location(name);
+        Uniform u = this.get_uniform(name);
+        if (value.length < 2 || value.length > 4)
+            throw new RuntimeException("[spdt/shaderprogram]: " +
+                    "invalid length array given in set_uniform: " + value.length);
+        if (GLState.count(GLState.UNIFORM, u.matches(value))) return;
         if (value.length == 4)
-            GLES20.glUniform4fv(loc, 1, value, 0);
+            GLES20.glUniform4fv(u.loc, 1, value, 0);
         else if (value.length == 3)
-            GLES20.glUniform3fv(loc, 1, value, 0);
+            GLES20.glUniform3fv(u.loc, 1, value, 0);
         else
-            throw new RuntimeException("[spdt/shaderprogram]: " +
-                    "invalid length array given in set_uniform: " + value.length);
+            GLES20.glUniform2fv(u.loc, 1, value, 0);
+        u.save(value);
     }
 
     // Sets the uniform with the given name to the given float.
     public void set_uniform(String name, float value) {
-        GLES20.glUniform1f(this.get_uniform_location(name), value);
+        Uniform u = this.get_uniform(name);
+        if (GLState.count(GLState.UNIFORM, u.known && u.f[0] == value)) return;
+        GLES20.glUniform1f(u.loc, value);
+        u.f[0] = value;
+        u.length = 1;
+        u.known = true;
     }
 
     // Sets the uniform with the given name to the given int.
     public void set_uniform(String name, int value) {
-        GLES20.glUniform1i(this.get_uniform_location(name), value);
+        Uniform u = this.get_uniform(name);
+        if (GLState.count(GLState.UNIFORM, u.known && u.i == value)) return;
+        GLES20.glUniform1i(u.loc, value);
+        u.known = true;
+        u.i = value;
     }
 
     /**
@@ -112,7 +217,7 @@ public class ShaderProgram {
 
     // Only one shader program can be bound at a time. This method unbinds any/all.
     public static void unbind_any_shader_program() {
-        GLES20.glUseProgram(0);
+        GLState.use_program(0);
     }
 
     /**
@@ -135,4 +240,32 @@ public class ShaderProgram {
                     "can't compile shader: " + GLES20.glGetShaderInfoLog(shader));
         return shader;
     }
+
+    /**
+     * A uniform's location and the last value set to it, so that setting the same value again can
+     * be skipped. Uniform values belong to the program, so they survive binding other programs.
+     */
+    private static class Uniform {
+        final int loc;
+        boolean known; // Whether a value has been set yet
+        int i;
+        float[] f = new float[4];
+        int length;    // Length of the last float value set
+
+        Uniform(int loc) { this.loc = loc; }
+
+        // Returns whether the given value is the same as the last float array value set
+        boolean matches(float[] value) {
+            if (!this.known || this.length != value.length) return false;
+            for (int j = 0; j < value.length; j++) if (this.f[j] != value[j]) return false;
+            return true;
+        }
+
+        // Saves the given float array as the last value set
+        void save(float[] value) {
+            System.arraycopy(value, 0, this.f, 0, value.length);
+            this.length = value.length;
+            this.known = true;
+        }
+    }
 }
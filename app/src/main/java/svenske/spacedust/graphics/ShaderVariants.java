@@ -0,0 +1,192 @@
+package svenske.spacedust.graphics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A family of shader programs compiled from the same source code, with one variant per blend mode
+ * (and lit/unlit, if the shader has lighting, and instanced/not, if instancing is enabled). Each
+ * variant is compiled with a BLEND_<MODE> define (plus UNLIT for unlit variants and INSTANCED for
+ * instanced variants) so that the fragment shader can drop its runtime blend mode branch chain.
+ * Variants are compiled lazily and cached.
+ *
+ * A ShaderVariants can be used anywhere a ShaderProgram can. Uniforms set directly on it are
+ * treated as shared across all variants: they're remembered and handed to each variant when it is
+ * next selected (skipping any a variant doesn't have). Per-draw uniforms should be set on the
+ * variant returned by select() instead, as Sprite does.
+ */
+public class ShaderVariants extends ShaderProgram {
+
+    // Source code and base defines every variant is compiled from
+    private String vertex_shader_code, fragment_shader_code;
+    private String[] defines;
+    private boolean has_lighting; // Whether lit and unlit variants are different
+    private boolean instancing;   // Whether instanced variants may be selected
+
+    // Variants, indexed by (blend mode ordinal * 2 + (lit ? 1 : 0)) * 2 + (instanced ? 1 : 0)
+    private ShaderProgram[] variants;
+    private int[] variant_versions;    // Latest shared uniform version each variant has
+    private ShaderProgram bound;       // Variant currently bound, or null if none
+
+    // Shared uniforms, by name, and a version counter bumped whenever one is set
+    private Map<String, SharedUniform> shared_uniforms = new HashMap<>();
+    private List<SharedUniform> shared_uniform_list = new ArrayList<>();
+    private int version;
+
+    /**
+     * Constructs the ShaderVariants. No variant is compiled until it's needed.
+     * @param has_lighting whether the fragment shader has lighting that the UNLIT define removes
+     * @param defines extra defines every variant is compiled with
+     */
+    public ShaderVariants(int vertex_shader_resource_id, int fragment_shader_resource_id,
+                          boolean has_lighting, String... defines) {
+        this.vertex_shader_code = read_source(vertex_shader_resource_id);
+        this.fragment_shader_code = read_source(fragment_shader_resource_id);
+        this.defines = defines;
+        this.has_lighting = has_lighting;
+        this.variants = new ShaderProgram[BlendMode.values().length * 4];
+        this.variant_versions = new int[this.variants.length];
+    }
+
+    /**
+     * Allows instanced variants to be selected. The shaders must support the INSTANCED define and
+     * the context must support instanced drawing (see Global.INSTANCING_SUPPORTED).
+     */
+    public void enable_instancing() { this.instancing = true; }
+
+    // Return whether instanced variants may be selected
+    @Override
+    public boolean supports_instancing() { return this.instancing; }
+
+    /**
+     * Compiles every variant ahead of time so that none are compiled mid-game: lit ones, and unlit
+     * ones too if the shaders have lighting (i.e., for nameplates)
+     */
+    public void warm_up() {
+        for (BlendMode bm : BlendMode.values()) {
+            this.get_variant(bm, true, false);
+            if (this.instancing) this.get_variant(bm, true, true);
+            if (!this.has_lighting) continue;
+            this.get_variant(bm, false, false);
+            if (this.instancing) this.get_variant(bm, false, true);
+        }
+    }
+
+    // Returns the variant for the given blend mode, lighting and instancing, compiling if needed
+    private ShaderProgram get_variant(BlendMode blend_mode, boolean lit, boolean instanced) {
+        int idx = this.variant_index(blend_mode, lit, instanced);
+        if (this.variants[idx] == null) {
+            boolean unlit = this.has_lighting && !lit;
+            String[] defines = new String[this.defines.length + 1 + (unlit ? 1 : 0) +
+                    (instanced ? 1 : 0)];
+            System.arraycopy(this.defines, 0, defines, 0, this.defines.length);
+            int i = this.defines.length;
+            defines[i++] = "BLEND_" + blend_mode.name();
+            if (unlit) defines[i++] = "UNLIT";
+            if (instanced) defines[i] = "INSTANCED";
+            this.variants[idx] = new ShaderProgram(this.vertex_shader_code,
+                    this.fragment_shader_code, defines);
+        }
+        return this.variants[idx];
+    }
+
+    // Returns the index of the variant for the given blend mode, lighting and instancing
+    private int variant_index(BlendMode blend_mode, boolean lit, boolean instanced) {
+        return (blend_mode.ordinal() * 2 + ((lit || !this.has_lighting) ? 1 : 0)) * 2 +
+                (instanced ? 1 : 0);
+    }
+
+    /**
+     * Binds the variant for the given blend mode, lighting and instancing if it isn't already
+     * bound, brings its shared uniforms up to date, and returns it.
+     */
+    @Override
+    public ShaderProgram select(BlendMode blend_mode, boolean lit, boolean instanced) {
+        if (instanced && !this.instancing)
+            throw new RuntimeException("[spdt/shadervariants]: " +
+                    "instanced variant selected but instancing isn't enabled");
+        ShaderProgram variant = this.get_variant(blend_mode, lit, instanced);
+        if (this.bound != variant) {
+            variant.bind();
+            this.bound = variant;
+        }
+        this.flush(this.variant_index(blend_mode, lit, instanced));
+        return variant;
+    }
+
+    // Hands any shared uniforms set since the given variant was last flushed to it
+    private void flush(int idx) {
+        if (this.variant_versions[idx] == this.version) return;
+        ShaderProgram variant = this.variants[idx];
+        for (SharedUniform su : this.shared_uniform_list) {
+            if (su.version <= this.variant_versions[idx] || !variant.uniform_exists(su.name))
+                continue;
+            if (su.type == SharedUniform.INT) variant.set_uniform(su.name, su.i);
+            else if (su.type == SharedUniform.FLOAT) variant.set_uniform(su.name, su.f[0]);
+            else variant.set_uniform(su.name, su.f);
+        }
+        this.variant_versions[idx] = this.version;
+    }
+
+    /**
+     * "Binds" the family. Nothing is actually bound until a variant is selected, but any variant
+     * that was bound before is forgotten, as something else may have been bound since.
+     */
+    @Override
+    public void bind() { this.bound = null; }
+
+    // Returns the shared uniform with the given name, creating it if necessary, and bumps versions
+    private SharedUniform get_shared_uniform(String name, int type, int length) {
+        SharedUniform su = this.shared_uniforms.get(name);
+        if (su == null) {
+            su = new SharedUniform(name);
+            this.shared_uniforms.put(name, su);
+            this.shared_uniform_list.add(su);
+        }
+        if (su.f == null || su.f.length != length) su.f = new float[length];
+        su.type = type;
+        su.version = ++this.version;
+        return su;
+    }
+
+    // Sets a shared uniform to the given array of floats
+    @Override
+    public void set_uniform(String name, float[] value) {
+        SharedUniform su = this.get_shared_uniform(name, SharedUniform.FLOATS, value.length);
+        System.arraycopy(value, 0, su.f, 0, value.length);
+    }
+
+    // Sets a shared uniform to the given float
+    @Override
+    public void set_uniform(String name, float value) {
+        this.get_shared_uniform(name, SharedUniform.FLOAT, 1).f[0] = value;
+    }
+
+    // Sets a shared uniform to the given int
+    @Override
+    public void set_uniform(String name, int value) {
+        this.get_shared_uniform(name, SharedUniform.INT, 1).i = value;
+    }
+
+    // Shared uniforms may only exist in some variants, so they're always accepted
+    @Override
+    public boolean uniform_exists(String name) { return true; }
+
+    // Attributes must be looked up on a variant (see select())
+    @Override
+    public int get_attribute_location(String name) {
+        throw new RuntimeException("[spdt/shadervariants]: " +
+                "attribute " + name + " must be looked up on a selected variant");
+    }
+
+    // A uniform value shared across all variants
+    private static class SharedUniform {
+        static final int INT = 0, FLOAT = 1, FLOATS = 2;
+        final String name;
+        int type, i, version;
+        float[] f;
+        SharedUniform(String name) { this.name = name; }
+    }
+}
@@ -0,0 +1,112 @@
+package svenske.spacedust.graphics;
+
+import android.util.Log;
+
+import svenske.spacedust.stages.Stage;
+
+/**
+ * Updates a Stage on its own thread, so that simulating one frame overlaps with the GL thread
+ * rendering the last one (see Global.SIMULATION_THREAD). The Stage hands what it renders to the GL
+ * thread through snapshots (see WorldSnapshot and TripleBuffer), so render() never reads anything
+ * update() is changing.
+ *
+ * Ticks are driven by the GL thread: each frame requests one with its time step (see tick()), so
+ * the simulation runs in step with frames and stops whenever they do (i.e., while paused). If a
+ * tick is still running when the next frame requests one, their time steps are merged into the
+ * following tick rather than queued, up to MAX_DT (anything beyond that is dropped).
+ *
+ * Each tick holds the given lock, which anything else touching the Stage's simulation from another
+ * thread (input, resizes) should hold too.
+ */
+public class SimulationThread extends Thread {
+
+    // Settings
+    private static final float MAX_DT = 0.1f; // Longest time step a tick simulates (in seconds)
+
+    // The Stage simulated, and the lock held while updating it
+    private final Stage stage;
+    private final Object lock;
+
+    // Requested ticks (guarded by signal)
+    private final Object signal = new Object();
+    private boolean requested; // Whether a tick has been requested since the last one started
+    private float pending_dt;  // Time to simulate in the requested tick
+    private boolean running = true;
+
+    // Statistics
+    private volatile long ticks;      // Ticks run so far
+    private volatile long merged;     // Requests merged into a later tick
+    private volatile float dropped;   // Time (in seconds) dropped beyond MAX_DT
+
+    // Constructs the SimulationThread. It doesn't run until start() is called.
+    public SimulationThread(Stage stage, Object lock) {
+        super("spdt-simulation");
+        this.stage = stage;
+        this.lock = lock;
+    }
+
+    // Requests a tick simulating the given time step (in seconds). Call this once per frame.
+    public void tick(float dt) {
+        synchronized (this.signal) {
+            if (this.requested) this.merged++;
+            this.requested = true;
+            this.pending_dt += dt;
+            this.signal.notify();
+        }
+    }
+
+    // Runs requested ticks until shut down
+    @Override
+    public void run() {
+        Log.d("spdt/simulationthread", "simulation started");
+        while (true) {
+
+            // Wait for a tick to be requested
+            float dt;
+            synchronized (this.signal) {
+                while (this.running && !this.requested) {
+                    try {
+                        this.signal.wait();
+                    } catch (InterruptedException e) {
+                        this.running = false;
+                    }
+                }
+                if (!this.running) break;
+                dt = Math.min(this.pending_dt, MAX_DT);
+                this.dropped += this.pending_dt - dt;
+                this.pending_dt = 0f;
+                this.requested = false;
+            }
+
+            // Tick
+            synchronized (this.lock) {
+                this.stage.update(dt);
+            }
+            this.ticks++;
+        }
+        Log.d("spdt/simulationthread", "simulation stopped after " + this.ticks + " ticks (" +
+                this.merged + " requests merged, " + this.dropped + " s dropped)");
+    }
+
+    // Stops the thread, waiting for the tick in progress (if any) to finish
+    public void shutdown() {
+        synchronized (this.signal) {
+            this.running = false;
+            this.signal.notify();
+        }
+        boolean interrupted = false;
+        while (this.isAlive()) {
+            try {
+                this.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Accessors for statistics
+    public long get_ticks() { return this.ticks; }
+    public long get_merged() { return this.merged; }
+    public float get_dropped() { return this.dropped; }
+}
@@ -71,7 +71,8 @@ public class Sprite {
 
     // Buffers/rendering data for the sprite
     protected FloatBuffer vertex_positions;    // actual vertex positions in model space
-    protected FloatBuffer texture_coordinates; // texture coordinates
+    protected FloatBuffer texture_coordinates; // texture coordinates, if not an atlas frame
+    protected int frame = -1;                  // atlas frame ID (see TextureAtlas.get_frame())
     protected ShortBuffer draw_order;          // draw order in triangles
     protected int vertex_count;                // total amount of drawn vertices
 
@@ -79,6 +80,7 @@ public class Sprite {
     protected TextureAtlas atlas;
     protected float[] color;
     protected BlendMode blend_mode;
+    protected boolean lit = true; // Whether the Sprite is affected by lighting (if there is any)
     protected float width, height;
 
     // A callback for when the Sprite is resized
@@ -117,11 +119,9 @@ public class Sprite {
             this.update_size(vertex_positions);
         }
 
-        // Save texture atlas and get coordinates
+        // Save texture atlas and find the frame
         this.atlas = atlas;
-        if (this.atlas != null)
-            this.texture_coordinates = TextureAtlas.get_tex_coords_buffer(this.atlas,
-                    atlas_row, atlas_col);
+        if (this.atlas != null) this.frame = this.atlas.get_frame(atlas_row, atlas_col);
 
         // Save blend mode and verify it
         this.blend_mode = blend_mode;
@@ -137,6 +137,34 @@ public class Sprite {
         }
     }
 
+    // Constructs an empty Sprite for others to be copied into (see copy())
+    Sprite() {}
+
+    /**
+     * Copies everything rendering the given Sprite reads into this one, so that it renders as the
+     * given Sprite looks now even as that changes (see RenderQueue): its atlas and frame, color (by
+     * value), blend mode, lighting and size, and its geometry. Geometry buffers are shared, so the
+     * given Sprite mustn't rewrite them in place while this is rendered (text cache meshes never
+     * do). Resize callbacks aren't copied.
+     */
+    void copy(Sprite sprite) {
+        this.vertex_positions = sprite.vertex_positions;
+        this.texture_coordinates = sprite.texture_coordinates;
+        this.frame = sprite.frame;
+        this.draw_order = sprite.draw_order;
+        this.vertex_count = sprite.vertex_count;
+        this.atlas = sprite.atlas;
+        if (sprite.color == null) this.color = null;
+        else {
+            if (this.color == null) this.color = new float[4];
+            System.arraycopy(sprite.color, 0, this.color, 0, 4);
+        }
+        this.blend_mode = sprite.blend_mode;
+        this.lit = sprite.lit;
+        this.width = sprite.width;
+        this.height = sprite.height;
+    }
+
     // Verifies that an atlas and color are valid given a blend mode
     protected static void check_blend_mode(boolean has_atlas, boolean has_color, BlendMode blend_mode) {
         if ((blend_mode != BlendMode.JUST_COLOR) && !has_atlas)
@@ -163,32 +191,44 @@ public class Sprite {
      */
     public void render(ShaderProgram shader_program, float x, float y, float sx, float sy, float rot) {
 
-        // Set vertex position attribute data
+        // Use the shader program variant for this Sprite's blend mode (if there are variants)
+        shader_program = shader_program.select(this.blend_mode, this.lit);
+
+        /*
+         * Set vertex position attribute data. Square atlas frames are drawn entirely from the
+         * atlas' vertex buffer, which also holds the square's positions.
+         */
         int position_attrib_loc = shader_program.get_attribute_location("vertex_position");
-        GLES20.glEnableVertexAttribArray(position_attrib_loc);
-        GLES20.glVertexAttribPointer(position_attrib_loc, 2, GLES20.GL_FLOAT, false,
-                2 * 4, this.vertex_positions);
+        int attrib_mask = 1 << position_attrib_loc;
+        boolean from_atlas = this.frame >= 0 && this.blend_mode != BlendMode.JUST_COLOR;
+        if (from_atlas && this.vertex_positions == SQUARE_VERTEX_POSITIONS) {
+            GLState.bind_array_buffer(this.atlas.get_vbo());
+            GLState.static_attrib_pointer(position_attrib_loc, 2, 0);
+        } else GLState.attrib_pointer(position_attrib_loc, 2, this.vertex_positions);
 
         // Set texture info if included in blend
-        int tex_coords_attrib_loc = -1;
         if (this.blend_mode != BlendMode.JUST_COLOR) {
 
             // Set texture bank info
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, this.atlas.getID());
+            GLState.bind_texture(0, this.atlas.getID());
             shader_program.set_uniform("texture_sampler", 0);
 
             // Set texture coordinate info
-            tex_coords_attrib_loc = shader_program.get_attribute_location("tex_coords");
-            GLES20.glEnableVertexAttribArray(tex_coords_attrib_loc);
-            GLES20.glVertexAttribPointer(tex_coords_attrib_loc, 2, GLES20.GL_FLOAT, false,
-                    2 * 4, this.texture_coordinates);
+            int tex_coords_attrib_loc = shader_program.get_attribute_location("tex_coords");
+            attrib_mask |= 1 << tex_coords_attrib_loc;
+            if (from_atlas) {
+                GLState.bind_array_buffer(this.atlas.get_vbo());
+                GLState.static_attrib_pointer(tex_coords_attrib_loc, 2,
+                        TextureAtlas.get_frame_offset(this.frame));
+            } else GLState.attrib_pointer(tex_coords_attrib_loc, 2, this.texture_coordinates);
         }
+        GLState.set_attrib_arrays(attrib_mask); // Enable just the used attribute arrays
 
         // Set color and blend data
         if (this.blend_mode != BlendMode.JUST_TEXTURE)
             shader_program.set_uniform("vertex_color", this.color);
-        shader_program.set_uniform("blend_mode", this.blend_mode.ordinal());
+        if (shader_program.uniform_exists("blend_mode")) // Variants don't branch on blend mode
+            shader_program.set_uniform("blend_mode", this.blend_mode.ordinal());
 
         // Pass in given position
         shader_program.set_uniform("obj_x", x);
@@ -199,11 +239,6 @@ public class Sprite {
 
         // Draw
         GLES20.glDrawElements(GLES20.GL_TRIANGLES, this.vertex_count, GLES20.GL_UNSIGNED_SHORT, this.draw_order);
-
-        // Disable vertex position handle
-        GLES20.glDisableVertexAttribArray(position_attrib_loc);
-        if (tex_coords_attrib_loc != -1)
-            GLES20.glDisableVertexAttribArray(tex_coords_attrib_loc);
     }
 
     // Sets a callback to have its onEvent() called when the Sprite gets resized
@@ -212,14 +247,47 @@ public class Sprite {
     // Sets the size of the Sprite and calls its resize callback if it has one
     protected void update_size(float[] vertex_positions) {
         float[] size = Sprite.calculate_size(vertex_positions);
-        this.width = size[0];
-        this.height = size[1];
+        this.update_size(size[0], size[1]);
+    }
+
+    /**
+     * Sets the size of the Sprite directly and calls its resize callback if it has one. Nothing
+     * happens if the size didn't actually change.
+     */
+    protected void update_size(float width, float height) {
+        if (width == this.width && height == this.height) return;
+        this.width = width;
+        this.height = height;
         if (this.resize_callback != null) this.resize_callback.on_resize();
     }
 
     // Return the Sprite's size
     public float[] get_size() { return new float[] { this.width, this.height }; }
 
+    // Return the Sprite's blend mode and whether it's lit
+    public BlendMode get_blend_mode() { return this.blend_mode; }
+    public boolean is_lit() { return this.lit; }
+
+    /**
+     * Return whether the Sprite is a single quad centered on its origin, drawn in the default
+     * square draw order (i.e., it can be drawn as a scaled unit quad by SpriteInstancer).
+     */
+    public boolean is_quad() {
+        if (this.vertex_positions == SQUARE_VERTEX_POSITIONS) return true;
+        if (this.draw_order != SQUARE_DRAW_ORDER || this.vertex_positions.capacity() != 8)
+            return false;
+        FloatBuffer vp = this.vertex_positions;
+        float hw = this.width / 2f, hh = this.height / 2f;
+        return vp.get(0) == -hw && vp.get(1) == hh && vp.get(2) == -hw && vp.get(3) == -hh &&
+                vp.get(4) == hw && vp.get(5) == -hh && vp.get(6) == hw && vp.get(7) == hh;
+    }
+
+    // Return the Sprite's atlas (null if it isn't textured)
+    public TextureAtlas get_atlas() { return this.atlas; }
+
+    // Return the ID of the Sprite's texture, or 0 if it isn't textured
+    public int get_texture_id() { return this.atlas == null ? 0 : this.atlas.getID(); }
+
     // Modify the Sprite's color
     public void set_color(float[] color) {
         this.color = color;
@@ -229,6 +297,9 @@ public class Sprite {
         Sprite.check_blend_mode(this.atlas != null, this.color != null, this.blend_mode);
     }
 
+    // Modify whether the Sprite is affected by lighting
+    public void set_lit(boolean lit) { this.lit = lit; }
+
     // Modify the Sprite's blend mode
     public void set_blend_mode(BlendMode bm) {
         this.blend_mode = bm;
@@ -0,0 +1,175 @@
+package svenske.spacedust.graphics;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Draws many quad Sprites sharing a shader variant and texture with a single instanced draw call
+ * (OpenGL ES 3.0). A single unit quad is drawn once per instance, with each instance's position,
+ * scale, rotation, atlas frame and color streamed from a buffer as per-instance attributes, so
+ * that the usual transform math stays in vertex_world.glsl. Blend mode and lighting are picked by
+ * the shader variant, so every instance in a batch shares them.
+ *
+ * Usage: begin() a batch, add() instances, and draw(). Only Sprites for which is_quad() is true
+ * can be instanced.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2) // Only created with an OpenGL ES 3.0 context
+public class SpriteInstancer {
+
+    // Instance layout (floats): pos (2), scale (2), rot (1), frame (4), color (4)
+    private static final int FLOATS_PER_INSTANCE = 13;
+    private static final int STRIDE = FLOATS_PER_INSTANCE * 4;
+
+    // Unit quad as a triangle strip: top-left, bottom-left, top-right, bottom-right
+    private static final float[] QUAD = { -0.5f, 0.5f, -0.5f, -0.5f, 0.5f, 0.5f, 0.5f, -0.5f };
+
+    // Instance data is streamed through a ring of buffers of this many bytes each
+    private static final int STREAM_BUFFERS = 3;
+    private static final int STREAM_CAPACITY = 64 * 1024;
+
+    // GL buffers
+    private int quad_vbo;
+    private StreamingVertexBuffer stream;
+    private int max_instances; // The most instances that fit in one upload
+
+    // Staged instance data for the current batch (grows as needed)
+    private FloatBuffer instances;
+    private int count;
+
+    // Batch state
+    private ShaderProgram variant;
+    private int texture_id;
+
+    // Statistics since the last reset_stats()
+    private int batches, instanced;
+
+    // Constructs the SpriteInstancer, creating its GL buffers. Requires an OpenGL ES 3.0 context.
+    public SpriteInstancer() {
+        int[] ids = new int[1];
+        GLES20.glGenBuffers(1, ids, 0);
+        this.quad_vbo = ids[0];
+        this.stream = new StreamingVertexBuffer(STREAM_BUFFERS, STREAM_CAPACITY);
+        this.max_instances = STREAM_CAPACITY / STRIDE;
+        FloatBuffer quad = ByteBuffer.allocateDirect(QUAD.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD).position(0);
+        GLState.bind_array_buffer(this.quad_vbo);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD.length * 4, quad, GLES20.GL_STATIC_DRAW);
+        this.allocate(64);
+    }
+
+    // Allocates staging room for the given amount of instances, keeping staged instances
+    private void allocate(int n) {
+        FloatBuffer instances = ByteBuffer.allocateDirect(n * STRIDE)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        if (this.instances != null) {
+            this.instances.position(0).limit(this.count * FLOATS_PER_INSTANCE);
+            instances.put(this.instances);
+        }
+        this.instances = instances;
+    }
+
+    // Starts a new frame of streamed instance data
+    public void begin_frame() { this.stream.begin_frame(); }
+
+    /**
+     * Begins a batch to be drawn with the given instanced shader variant and texture
+     * @param variant an instanced variant (see ShaderProgram.select())
+     * @param texture_id the texture shared by every instance, or 0 if untextured
+     */
+    public void begin(ShaderProgram variant, int texture_id) {
+        this.variant = variant;
+        this.texture_id = texture_id;
+        this.count = 0;
+        this.instances.clear();
+    }
+
+    // Adds an instance of the given quad Sprite to the batch. Arguments follow Sprite.render().
+    public void add(Sprite sprite, float x, float y, float sx, float sy, float rot) {
+        if (this.count == this.max_instances) this.draw(); // Too many for one upload
+        if ((this.count + 1) * FLOATS_PER_INSTANCE > this.instances.capacity())
+            this.allocate(this.instances.capacity() / FLOATS_PER_INSTANCE * 2);
+        FloatBuffer fb = this.instances;
+        fb.put(x).put(y).put(sprite.width * sx).put(sprite.height * sy).put(rot);
+
+        // Atlas frame from the sprite's top-left and bottom-right texture coordinates
+        if (sprite.frame >= 0) {
+            float[] uvs = sprite.atlas.frame_uvs;
+            int i = sprite.frame * TextureAtlas.FRAME_FLOATS;
+            fb.put(uvs[i]).put(uvs[i + 1]).put(uvs[i + 4]).put(uvs[i + 5]);
+        } else {
+            FloatBuffer tc = sprite.texture_coordinates;
+            if (tc != null) fb.put(tc.get(0)).put(tc.get(1)).put(tc.get(4)).put(tc.get(5));
+            else fb.put(0f).put(0f).put(0f).put(0f);
+        }
+
+        // Color
+        float[] c = sprite.color;
+        if (c != null) fb.put(c[0]).put(c[1]).put(c[2]).put(c[3]);
+        else fb.put(0f).put(0f).put(0f).put(0f);
+        this.count++;
+    }
+
+    // Draws all instances added since begin() with a single draw call
+    public void draw() {
+        if (this.count == 0) return;
+        ShaderProgram sp = this.variant;
+
+        // Texture
+        if (this.texture_id != 0) {
+            GLState.bind_texture(0, this.texture_id);
+            sp.set_uniform("texture_sampler", 0);
+        }
+
+        // Per-vertex quad
+        int quad_loc = sp.get_attribute_location("vertex_position");
+        GLState.bind_array_buffer(this.quad_vbo);
+        GLState.set_divisor(quad_loc, 0);
+        GLState.attrib_pointer(quad_loc, 2, 0, 0);
+
+        // Per-instance attributes
+        int base = this.stream.upload(this.instances, this.count * STRIDE);
+        int mask = 1 << quad_loc;
+        mask |= this.instance_attrib(sp, "instance_pos", 2, base, 0);
+        mask |= this.instance_attrib(sp, "instance_scale", 2, base, 2);
+        mask |= this.instance_attrib(sp, "instance_rot", 1, base, 4);
+        mask |= this.instance_attrib(sp, "instance_frame", 4, base, 5);
+        mask |= this.instance_attrib(sp, "instance_color", 4, base, 9);
+        GLState.set_attrib_arrays(mask);
+
+        // Draw
+        GLES30.glDrawArraysInstanced(GLES20.GL_TRIANGLE_STRIP, 0, 4, this.count);
+        this.batches++;
+        this.instanced += this.count;
+        this.count = 0;
+        this.instances.clear();
+    }
+
+    /**
+     * Points the given per-instance attribute (if the variant uses it) at the uploaded instances.
+     * @param base byte offset of the uploaded instances in the bound buffer
+     * @param offset offset of the attribute into an instance, in floats
+     * @return the attribute's bit for GLState.set_attrib_arrays(), or 0 if unused
+     */
+    private int instance_attrib(ShaderProgram sp, String name, int size, int base, int offset) {
+        if (!sp.attribute_exists(name)) return 0;
+        int loc = sp.get_attribute_location(name);
+        GLState.set_divisor(loc, 1);
+        GLState.attrib_pointer(loc, size, STRIDE, base + offset * 4);
+        return 1 << loc;
+    }
+
+    // Return the stream instance data is uploaded through (i.e., for its diagnostics)
+    public StreamingVertexBuffer get_stream() { return this.stream; }
+
+    // Accessors for statistics
+    public int get_batches() { return this.batches; }
+    public int get_instanced() { return this.instanced; }
+    public void reset_stats() { this.batches = this.instanced = 0; }
+}
@@ -0,0 +1,116 @@
+package svenske.spacedust.graphics;
+
+import android.opengl.GLES20;
+
+import java.nio.Buffer;
+
+/**
+ * A streaming allocator for vertex data that changes every frame (i.e., batched instances, text,
+ * particles). Rather than re-specifying one buffer with glBufferData every upload, which can stall
+ * tile-based GPUs still reading the previous contents, it keeps a ring of fixed-size buffers and
+ * sub-allocates uploads out of the current one with glBufferSubData. When an upload doesn't fit,
+ * it moves on to the next buffer in the ring and orphans it (glBufferData with no data) so the
+ * driver can hand out fresh storage if the GPU is still using the old.
+ *
+ * Diagnostics:
+ * - high-water mark: the most bytes uploaded in a single frame
+ * - wraps: how many times uploads moved on to the next buffer
+ * - early reuses: wraps onto a buffer written within the last RING_LATENCY_FRAMES frames, which
+ *   is when the GPU may still be reading it (a sign the buffers are too small or too few)
+ * - slow uploads: uploads that took longer than SLOW_UPLOAD_NS, the symptom of a stall
+ */
+public class StreamingVertexBuffer {
+
+    // Tuning
+    private static final int ALIGNMENT = 16;                 // Byte alignment of allocations
+    private static final int RING_LATENCY_FRAMES = 3;        // Frames the GPU may lag behind
+    private static final long SLOW_UPLOAD_NS = 1000000L;     // Uploads slower than this stalled
+
+    // Ring of buffers
+    private int[] buffers;
+    private long[] buffer_frames; // The frame each buffer was last moved onto
+    private int capacity;         // Size of each buffer in bytes
+    private int current;          // Index of the buffer currently being sub-allocated from
+    private int head;             // Next free byte in the current buffer
+    private long frame;
+
+    // Diagnostics
+    private int frame_bytes, high_water;
+    private long wraps, early_reuses, slow_uploads, max_upload_ns;
+
+    /**
+     * Constructs the StreamingVertexBuffer, creating its GL buffers
+     * @param buffer_count how many buffers are in the ring
+     * @param capacity the size of each buffer in bytes (the largest single upload possible)
+     */
+    public StreamingVertexBuffer(int buffer_count, int capacity) {
+        this.capacity = capacity;
+        this.buffers = new int[buffer_count];
+        this.buffer_frames = new long[buffer_count];
+        GLES20.glGenBuffers(buffer_count, this.buffers, 0);
+        for (int i = 0; i < buffer_count; i++) {
+            this.orphan(i);
+            this.buffer_frames[i] = -RING_LATENCY_FRAMES;
+        }
+    }
+
+    // Starts a new frame. Call this once per frame before any uploads.
+    public void begin_frame() {
+        this.frame++;
+        this.frame_bytes = 0;
+    }
+
+    /**
+     * Uploads the given data into the ring and leaves its buffer bound to GL_ARRAY_BUFFER.
+     * @param bytes how many bytes of the data (from position 0) to upload
+     * @return the byte offset of the uploaded data in the bound buffer
+     */
+    public int upload(Buffer data, int bytes) {
+        if (bytes > this.capacity)
+            throw new RuntimeException("[spdt/streamingvertexbuffer]: " +
+                    "upload of " + bytes + " bytes exceeds buffer capacity of " + this.capacity);
+
+        // Move on to (and orphan) the next buffer if this upload doesn't fit
+        if (this.head + bytes > this.capacity) {
+            this.current = (this.current + 1) % this.buffers.length;
+            this.head = 0;
+            this.wraps++;
+            if (this.frame - this.buffer_frames[this.current] < RING_LATENCY_FRAMES)
+                this.early_reuses++;
+            this.buffer_frames[this.current] = this.frame;
+            this.orphan(this.current);
+        }
+
+        // Sub-allocate and upload
+        int offset = this.head;
+        GLState.bind_array_buffer(this.buffers[this.current]);
+        data.position(0);
+        long start = System.nanoTime();
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, offset, bytes, data);
+        long upload_ns = System.nanoTime() - start;
+        if (upload_ns > SLOW_UPLOAD_NS) this.slow_uploads++;
+        this.max_upload_ns = Math.max(this.max_upload_ns, upload_ns);
+
+        // Advance, keeping allocations aligned
+        this.head = (offset + bytes + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+        this.frame_bytes += bytes;
+        this.high_water = Math.max(this.high_water, this.frame_bytes);
+        return offset;
+    }
+
+    // Re-specifies the storage of the buffer at the given ring index without any data
+    private void orphan(int i) {
+        GLState.bind_array_buffer(this.buffers[i]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, this.capacity, null, GLES20.GL_STREAM_DRAW);
+    }
+
+    // Return the size of each buffer in bytes (the largest single upload possible)
+    public int get_capacity() { return this.capacity; }
+
+    // Accessors for diagnostics
+    public int get_high_water() { return this.high_water; }
+    public long get_wraps() { return this.wraps; }
+    public long get_early_reuses() { return this.early_reuses; }
+    public long get_slow_uploads() { return this.slow_uploads; }
+    public float get_max_upload_ms() { return this.max_upload_ns / 1000000f; }
+}
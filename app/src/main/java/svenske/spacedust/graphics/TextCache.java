@@ -0,0 +1,143 @@
+package svenske.spacedust.graphics;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of text Sprites keyed by their string (along with font, color and blend mode), so that
+ * identical labels (i.e., every "Marauder" nameplate) share one GPU resource instead of each
+ * building its own. Two kinds of text are cached:
+ * - solidified: a Sprite with the text rendered into its own texture (see TextSprite.solidify()).
+ *   Distance field text is never solidified, as it's crisp at any scale as a mesh.
+ * - meshes: a TextSprite whose glyph geometry is shared. Its text must never be changed.
+ *
+ * Cached text is reference-counted: every acquire() must be matched by a release(). Text that is
+ * no longer referenced stays cached in case it's needed again, until the cache's memory budget is
+ * exceeded, at which point it's evicted in least-recently-used order. Referenced text is never
+ * evicted, so the budget may be exceeded if that much text is in use at once.
+ *
+ * Meshes make no GL calls, so they can be acquired and released during updates on a simulation
+ * thread (see SimulationThread), but solidified text must be used on the GL thread. A cache
+ * shouldn't be shared between threads, as it isn't synchronized.
+ */
+public class TextCache {
+
+    // Cached text in least-recently-used order, and an index of cached text by its Sprite
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private Map<Sprite, Entry> by_sprite = new IdentityHashMap<>();
+
+    // Memory info
+    private int budget; // Bytes of text memory to allow before evicting unreferenced text
+    private int bytes;  // Bytes of text memory currently cached
+
+    // Statistics
+    private int hits, misses, evictions;
+
+    /**
+     * Constructs the TextCache
+     * @param budget the estimated memory (in bytes) cached text may take before unreferenced text
+     *               is evicted
+     */
+    public TextCache(int budget) { this.budget = budget; }
+
+    /**
+     * Acquires a reference to a text Sprite. Arguments follow the TextSprite constructor.
+     * @param solidified whether to acquire a solidified Sprite or a (shared) TextSprite mesh
+     * @return the cached Sprite, which must be given back through release() when done with
+     */
+    public Sprite acquire(Font font, float[] color, BlendMode blend_mode, String text,
+                          boolean solidified) {
+        String key = TextCache.get_key(font, color, blend_mode, text, solidified);
+        Entry entry = this.entries.get(key); // Also marks it most recently used
+        if (entry != null) this.hits++;
+        else {
+
+            // Build the text, estimating how much memory it takes
+            this.misses++;
+            TextSprite text_sprite = new TextSprite(font, color, blend_mode, text);
+            entry = new Entry();
+            if (solidified && !font.is_sdf()) { // Distance field text isn't solidified
+                entry.sprite = text_sprite.solidify();
+                entry.bytes = font.get_pixel_width_for_text(text, true) *
+                        font.get_pixel_height_for_text() * 4;
+            } else {
+                entry.sprite = text_sprite;
+                entry.bytes = text.length() * (8 * 4 + 8 * 4 + 6 * 2); // Glyph buffers
+            }
+            this.entries.put(key, entry);
+            this.by_sprite.put(entry.sprite, entry);
+            this.bytes += entry.bytes;
+        }
+        entry.refs++;
+        this.evict();
+        return entry.sprite;
+    }
+
+    // Releases a reference to a Sprite given by acquire(), allowing it to be evicted if unused
+    public void release(Sprite sprite) {
+        Entry entry = this.by_sprite.get(sprite);
+        if (entry == null || entry.refs == 0) {
+            Log.e("spdt/textcache", "attempted to release text that isn't referenced");
+            return;
+        }
+        entry.refs--;
+        this.evict();
+    }
+
+    // Evicts unreferenced text, least recently used first, until the cache is within its budget
+    private void evict() {
+        Iterator<Entry> it = this.entries.values().iterator();
+        while (this.bytes > this.budget && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refs > 0) continue;
+            it.remove();
+            this.by_sprite.remove(entry.sprite);
+            this.bytes -= entry.bytes;
+            this.evictions++;
+
+            /*
+             * Solidified text owns its atlas and texture (meshes share the font's). The atlas is
+             * made from a texture ID, so releasing it only frees its vertex buffer.
+             */
+            if (!(entry.sprite instanceof TextSprite)) {
+                int[] id = new int[] { entry.sprite.get_texture_id() };
+                entry.sprite.get_atlas().release();
+                GLES20.glDeleteTextures(1, id, 0);
+                GLState.on_texture_deleted(id[0]);
+            }
+        }
+    }
+
+    // Creates the key cached text is found by
+    private static String get_key(Font font, float[] color, BlendMode blend_mode, String text,
+                                  boolean solidified) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(solidified ? 'S' : 'M').append(font.getID()).append('/').append(blend_mode.ordinal());
+        if (color != null) for (float c : color) sb.append('/').append(c);
+        return sb.append(':').append(text).toString();
+    }
+
+    // Logs how much text is cached and how well the cache is doing
+    public void log_stats() {
+        Log.d("spdt/textcache", this.entries.size() + " cached texts (" + this.bytes + "/" +
+                this.budget + " bytes), " + this.hits + " hits, " + this.misses + " misses, " +
+                this.evictions + " evictions");
+    }
+
+    // Accessors for memory info and statistics
+    public int get_bytes() { return this.bytes; }
+    public int get_hits() { return this.hits; }
+    public int get_misses() { return this.misses; }
+    public int get_evictions() { return this.evictions; }
+
+    // A single cached text Sprite
+    private static class Entry {
+        Sprite sprite;
+        int bytes, refs;
+    }
+}
@@ -2,23 +2,34 @@ package svenske.spacedust.graphics;
 
 import android.opengl.GLES20;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
 import svenske.spacedust.R;
 import svenske.spacedust.utils.Global;
 import svenske.spacedust.utils.Utils;
 
-import static android.opengl.GLES20.GL_FRAMEBUFFER;
 import static android.opengl.GLES20.glDeleteFramebuffers;
-import static android.opengl.GLES20.glViewport;
 
 /**
- * A sprite that can show text. The text can be changed on-demand. This class is more expensive to
- * render than a normal sprite, so if the text won't be changed, convert it into a normal Sprite
- * through the solidify() function.
+ * A sprite that can show text. The text can be changed on-demand. Text is drawn as one quad per
+ * glyph straight from its font's atlas, so with a distance field font (see Font and BlendMode.SDF)
+ * it's crisp at any scale, shares the font's texture with all other text (and batches with it),
+ * and takes no GPU memory of its own. solidify() is only worth it for bitmap fonts.
  */
 public class TextSprite extends Sprite {
 
     protected String text; // The current text
 
+    // Reusable glyph buffers, rewritten whenever the text changes
+    private static final int MIN_GLYPH_CAPACITY = 16;
+    private FloatBuffer glyph_positions;
+    private FloatBuffer glyph_tex_coords;
+    private ShortBuffer glyph_draw_order;
+    private int glyph_capacity; // How many glyphs the buffers can hold
+
     // Constructs the TextSprite using the given font, text color, blend mode, and starting text.
     public TextSprite(Font font, float[] color, BlendMode blend_mode, String text) {
 
@@ -39,10 +50,7 @@ public class TextSprite extends Sprite {
         this.update_buffers();
     }
 
-    /**
-     * Update the TextSprite's text. This is not a trivial operation. If you do not plan to do this
-     * ever, solidify the TextSprite.
-     */
+    // Update the TextSprite's text, rewriting its glyph buffers (see update_buffers())
     public void set_text(String text) {
         if (text.equals(this.text)) return;
         this.text = text;
@@ -51,71 +59,112 @@ public class TextSprite extends Sprite {
 
     /**
      * Updates the Sprites vertex positions, texture coordinates, and draw order based off of the
-     * currently set text
+     * currently set text. The buffers are rewritten in place, and only reallocated (at double the
+     * size) when the text no longer fits.
      */
-    protected void update_buffers() {
-
-        // Create arrays
-        float[] vertex_positions = new float[8 * this.text.length()];
-        float[] tex_coords       = new float[8 * this.text.length()];
-        short[] draw_order       = new short[6 * this.text.length()];
-
-        // Fill out vertex positions, texture coordinates, and draw order for each character
-        float x = 0f;
-        for (int i = 0; i < this.text.length(); i++) {
-            char current_char = this.text.charAt(i);
-
-            // Vertex positions
-            float[] next_vertex_positions = ((Font)this.atlas).get_vertex_positions_for_char(current_char, true);
-            x += next_vertex_positions[6];
-
-            // Set x positions
-            for (int j = 0; j < 8; j += 2)
-                vertex_positions[i * 8 + j] = next_vertex_positions[j] + x;
-            // Set y positions
-            for (int j = 1; j < 8; j += 2)
-                vertex_positions[i * 8 + j] = next_vertex_positions[j];
-
-            x += next_vertex_positions[6]; // increment total x
-
-            // Texture coordinates
-            float[] next_tex_coords = ((Font)this.atlas).get_tex_coords_for_char(current_char, true);
-            for (int j = 0; j < next_tex_coords.length; j++)
-                tex_coords[i * 8 + j] = next_tex_coords[j];
-
-            // Draw order
-            draw_order[i * 6 + 0] = (short)(i * 4 + 0);
-            draw_order[i * 6 + 1] = (short)(i * 4 + 1);
-            draw_order[i * 6 + 2] = (short)(i * 4 + 2);
-            draw_order[i * 6 + 3] = (short)(i * 4 + 0);
-            draw_order[i * 6 + 4] = (short)(i * 4 + 2);
-            draw_order[i * 6 + 5] = (short)(i * 4 + 3);
+    protected void update_buffers() { this.lay_out(this.text); }
+
+    // Lays out the given characters into the glyph buffers (see update_buffers())
+    protected void lay_out(CharSequence text) {
+        Font font = (Font)this.atlas;
+        int length = text.length();
+        this.ensure_glyph_capacity(length);
+
+        // Measure the text first so it can be center-aligned while laying it out
+        float width = 0f;
+        for (int i = 0; i < length; i++)
+            width += 2f * font.get_glyph_half_width(font.get_glyph(text.charAt(i)));
+
+        // Fill out vertex positions and texture coordinates for each character
+        FloatBuffer vp = this.glyph_positions;
+        FloatBuffer tc = this.glyph_tex_coords;
+        float[] glyph_tex_coords = font.get_glyph_tex_coords();
+        float x = -width / 2f;
+        for (int i = 0; i < length; i++) {
+            int glyph = font.get_glyph(text.charAt(i));
+            float cw = font.get_glyph_half_width(glyph);
+            x += cw;
+
+            // Vertex positions: top left, bottom left, bottom right, top right
+            int v = i * 8;
+            vp.put(v,     x - cw).put(v + 1,  0.5f);
+            vp.put(v + 2, x - cw).put(v + 3, -0.5f);
+            vp.put(v + 4, x + cw).put(v + 5, -0.5f);
+            vp.put(v + 6, x + cw).put(v + 7,  0.5f);
+            x += cw; // increment total x
+
+            // Texture coordinates in the same order
+            float left = glyph_tex_coords[glyph * 4], top = glyph_tex_coords[glyph * 4 + 1];
+            float right = glyph_tex_coords[glyph * 4 + 2], bottom = glyph_tex_coords[glyph * 4 + 3];
+            tc.put(v,     left).put(v + 1,  top);
+            tc.put(v + 2, left).put(v + 3,  bottom);
+            tc.put(v + 4, right).put(v + 5, bottom);
+            tc.put(v + 6, right).put(v + 7, top);
         }
 
-        this.width = vertex_positions[vertex_positions.length - 2];
-        if (this.text.length() > 0) {
-            // Translate left to center-align the text
-            float trans_left = this.width / 2;
-            for (int i = 0; i < vertex_positions.length; i += 2)
-                vertex_positions[i] -= trans_left;
-        }
+        // Point the Sprite at the buffers
+        this.vertex_positions = vp;
+        this.texture_coordinates = tc;
+        this.draw_order = this.glyph_draw_order;
+        this.vertex_count = 6 * length;
+        this.update_size(width, length > 0 ? 1f : 0f);
+    }
 
-        // Create buffers
-        this.vertex_positions = Utils.get_float_buffer_from(vertex_positions);
-        this.texture_coordinates = Utils.get_float_buffer_from(tex_coords);
-        this.draw_order = Utils.get_short_buffer_from(draw_order);
-        this.vertex_count = draw_order.length;
-        this.update_size(vertex_positions);
+    /**
+     * Replaces the glyph laid out in the given slot by rewriting just its texture coordinates.
+     * This only works if the new glyph is as wide as the old one.
+     * @return whether the glyph could be replaced (if not, the text must be laid out again)
+     */
+    protected boolean replace_glyph(int slot, char old_c, char new_c) {
+        Font font = (Font)this.atlas;
+        int glyph = font.get_glyph(new_c);
+        if (font.get_glyph_half_width(glyph) != font.get_glyph_half_width(font.get_glyph(old_c)))
+            return false;
+        float[] glyph_tex_coords = font.get_glyph_tex_coords();
+        float left = glyph_tex_coords[glyph * 4], top = glyph_tex_coords[glyph * 4 + 1];
+        float right = glyph_tex_coords[glyph * 4 + 2], bottom = glyph_tex_coords[glyph * 4 + 3];
+        int v = slot * 8;
+        FloatBuffer tc = this.glyph_tex_coords;
+        tc.put(v,     left).put(v + 1,  top);
+        tc.put(v + 2, left).put(v + 3,  bottom);
+        tc.put(v + 4, right).put(v + 5, bottom);
+        tc.put(v + 6, right).put(v + 7, top);
+        return true;
+    }
+
+    // Makes sure the glyph buffers can hold the given amount of glyphs, growing them if not
+    private void ensure_glyph_capacity(int glyphs) {
+        if (glyphs <= this.glyph_capacity) return;
+        int capacity = Math.max(Math.max(MIN_GLYPH_CAPACITY, this.glyph_capacity * 2), glyphs);
+        this.glyph_positions = ByteBuffer.allocateDirect(capacity * 8 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        this.glyph_tex_coords = ByteBuffer.allocateDirect(capacity * 8 * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        this.glyph_draw_order = ByteBuffer.allocateDirect(capacity * 6 * 2)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+
+        // The draw order is the same for every text, so it's filled out once for the capacity
+        for (int i = 0; i < capacity; i++) {
+            this.glyph_draw_order.put((short)(i * 4)).put((short)(i * 4 + 1))
+                    .put((short)(i * 4 + 2)).put((short)(i * 4)).put((short)(i * 4 + 2))
+                    .put((short)(i * 4 + 3));
+        }
+        this.glyph_draw_order.position(0);
+        this.glyph_capacity = capacity;
     }
 
     /**
-     * Turns the TextSprite into a normal Sprite. Obviously this means the text can no longer be
-     * changed, but increases rendering efficiency greatly.
+     * Turns the TextSprite into a normal Sprite with the text rendered into its own texture, so
+     * that bitmap font text can be scaled smoothly. Obviously this means the text can no longer be
+     * changed. The font must have finished loading (see TextureLoader), or the text will be
+     * solidified blank. Distance field text is already crisp at any scale, so for it no texture is
+     * allocated and the TextSprite itself is returned.
      */
     public Sprite solidify() {
+        if (((Font)this.atlas).is_sdf()) return this;
 
         // Calculate the width/height of the new texture
-        int new_texture_width = ((Font)this.atlas).get_pixel_width_for_text(this.text, true);
+        int new_texture_width = ((Font)this.atlas).get_pixel_width_for_text(this.getText(), true);
         int new_texture_height = ((Font)this.atlas).get_pixel_height_for_text();
 
         // Generate FBO and bound texture
@@ -136,11 +185,10 @@ public class TextSprite extends Sprite {
 
         // Cleanup
         ShaderProgram.unbind_any_shader_program();
-        GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        GLState.restore_render_target();
         glDeleteFramebuffers(1, ids, 0);
 
         // Revert to old viewport and clear color
-        glViewport(0, 0, Global.VIEWPORT_WIDTH, Global.VIEWPORT_HEIGHT);
         GLES20.glClearColor(Global.CLEAR_COLOR[0], Global.CLEAR_COLOR[1], Global.CLEAR_COLOR[2],
                 Global.CLEAR_COLOR[3]);
 
@@ -3,14 +3,9 @@ package svenske.spacedust.graphics;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
-import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.FloatBuffer;
-import java.util.HashMap;
-import java.util.Map;
 
 import svenske.spacedust.GameActivity;
 
@@ -18,100 +13,122 @@ import static svenske.spacedust.utils.Utils.get_float_buffer_from;
 
 /**
  * Represents a single texture atlas (or "sprite sheet") that may or may not have many textures
- * in one image. These should be shared amongst Sprites. They provide utility functions to get
- * correct texture coordinate buffers based off of atlas size and desired cell. These are also
- * shared, so try to use similarly-sized sheets/repeat texture coordinates. This class also
- * provides utility functions for performing operations on multiple atlases (i.e., splitting,
- * stacking, slicing, etc.)
+ * in one image. These should be shared amongst Sprites. Each cell of the atlas is a frame, with a
+ * frame ID (see get_frame()) indexing a table of texture coordinates precomputed for every frame.
+ * The table is also uploaded into a static vertex buffer (see get_vbo()), preceded by the default
+ * square's vertex positions, so that square Sprites can be drawn entirely from it and switching
+ * frames is nothing more than changing an int.
  */
 public class TextureAtlas {
 
-    // Maps from atlas rows -> atlas columns -> 2D array of possible texture coordinate buffers.
-    private static Map<Integer, Map<Integer, FloatBuffer[][]>> tex_coords_buffers;
+    // Floats per frame in the frame table: each corner's texture coordinates
+    public static final int FRAME_FLOATS = 8;
 
-    /**
-     * Inspects the tex_coords_buffer data structure above, reporting how many unique atlas shapes
-     * are registered and how many total texture coordinate buffers are created.
-     */
-    public static void inspect_tex_coords_buffers() {
-
-        // Ensure map has been initialized
-        if (tex_coords_buffers == null) tex_coords_buffers = new HashMap<>();
-
-        // Count buffers and configurations
-        int float_buffers = 0;
-        int configurations = 0;
-        for (Integer key : tex_coords_buffers.keySet()) {
-            for (Integer key_2 : tex_coords_buffers.get(key).keySet()) {
-                configurations++;
-                FloatBuffer[][] fb_array = tex_coords_buffers.get(key).get(key_2);
-                for (int i = 0; i < fb_array.length; i++) {
-                    for (int j = 0; j < fb_array[i].length; j++) {
-                        if (fb_array[i][j] != null) float_buffers++;
-                    }
-                }
-            }
-        }
+    // TextureAtlas attributes
+    protected int rows, cols;
+    protected int width, height;
+    protected int[] id;
+    protected TextureManager.Texture texture; // The shared texture, if from the TextureManager
 
-        // Log results
-        Log.d("spdt/textureatlas", "INSPECTION: tex_coords_buffer has "
-                + configurations + " unique atlas sizes");
-        Log.d("spdt/textureatlas", "INSPECTION: " + float_buffers
-                + " total texture coordinate buffers");
-    }
+    // The region of a packed page this atlas covers (see TexturePacker), as texture coordinates
+    private float u0 = 0f, v0 = 0f, u1 = 1f, v1 = 1f;
 
     /**
-     * Returns a texture coordinate buffer to use for the given row and column of the given atlas.
-     * These are lazily created. Try to re-use similar texture coordinates and atlas sizes.
+     * Texture coordinates of every frame, FRAME_FLOATS per frame ID in the same order as a
+     * Sprite's: top-left, bottom-left, bottom-right, and top-right
      */
-    public static FloatBuffer get_tex_coords_buffer(TextureAtlas ta, int row, int col) {
+    protected float[] frame_uvs;
+    private int vbo; // The default square's positions then frame_uvs (0 until first needed)
 
-        // Ensure map has been initialized
-        if (tex_coords_buffers == null) tex_coords_buffers = new HashMap<>();
+    /**
+     * Creates a new texture atlas with the image at the given resource ID. If this is a sheet
+     * with just one texture, rows = cols = 1. The texture is shared (see TextureManager), so it's
+     * only loaded if no other atlas is using it already. If the image was packed (see
+     * TexturePacker), the atlas covers its region of the packed page instead.
+     */
+    public TextureAtlas(int resource_id, int rows, int cols) {
+        this(TextureManager.get_region(resource_id), resource_id, rows, cols);
+    }
 
-        // Get sub-map for all buffers whose texture atlas has the correct amount of rows
-        if (!tex_coords_buffers.containsKey(ta.rows))
-            tex_coords_buffers.put(ta.rows, new HashMap<>());
-        Map<Integer, FloatBuffer[][]> for_total_rows = tex_coords_buffers.get(ta.rows);
+    // Creates a new texture atlas from the given packed region, or from the resource if null
+    private TextureAtlas(TextureManager.Region region, int resource_id, int rows, int cols) {
+        this(region == null ? TextureManager.acquire(resource_id)
+                : TextureManager.acquire(region.page), rows, cols);
+        if (region != null) {
+            this.u0 = (float)region.x / this.width;
+            this.v0 = (float)region.y / this.height;
+            this.u1 = (float)(region.x + region.width) / this.width;
+            this.v1 = (float)(region.y + region.height) / this.height;
+            this.width = region.width;
+            this.height = region.height;
+            this.build_frame_table(); // Again, now mapped into the region
+        }
+    }
 
-        // Get 2D array for all buffers whose texture atlas has the correct amount of rows and cols
-        if (!for_total_rows.containsKey(ta.cols))
-            for_total_rows.put(ta.cols, new FloatBuffer[ta.rows][ta.cols]);
-        FloatBuffer[][] buffer_array = for_total_rows.get(ta.cols);
+    // Creates a new texture atlas with a texture acquired from the TextureManager
+    protected TextureAtlas(TextureManager.Texture texture, int rows, int cols) {
+        this.texture = texture;
+        this.id = new int[] { texture.id };
+        this.rows = rows;
+        this.cols = cols;
+        this.width = texture.width;
+        this.height = texture.height;
+        this.build_frame_table();
+    }
 
-        // Calculate texture coordinates if this is first time this buffer is needed
-        try {
-            if (buffer_array[row][col] == null) {
-                float colf = (float) col;
-                float rowf = (float) row;
-                float[] texture_coordinates = {
-                        colf / ta.cols,       rowf / ta.rows,        // top-left
-                        colf / ta.cols,       (rowf + 1f) / ta.rows, // bottom-left
-                        (colf + 1) / ta.cols, (rowf + 1f) / ta.rows, // bottom-right
-                        (colf + 1) / ta.cols, rowf / ta.rows,        // top-right
-                };
-
-                buffer_array[row][col] = get_float_buffer_from(texture_coordinates);
+    // Precomputes the texture coordinates of every frame (see frame_uvs)
+    protected void build_frame_table() {
+        this.frame_uvs = new float[this.rows * this.cols * FRAME_FLOATS];
+        float cw = (this.u1 - this.u0) / this.cols, ch = (this.v1 - this.v0) / this.rows;
+        for (int row = 0; row < this.rows; row++) {
+            for (int col = 0; col < this.cols; col++) {
+                float l = this.u0 + col * cw, t = this.v0 + row * ch;
+                int i = (row * this.cols + col) * FRAME_FLOATS;
+                this.frame_uvs[i]     = l;      this.frame_uvs[i + 1] = t;      // top-left
+                this.frame_uvs[i + 2] = l;      this.frame_uvs[i + 3] = t + ch; // bottom-left
+                this.frame_uvs[i + 4] = l + cw; this.frame_uvs[i + 5] = t + ch; // bottom-right
+                this.frame_uvs[i + 6] = l + cw; this.frame_uvs[i + 7] = t;      // top-right
             }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new RuntimeException("[spdt/textureatlas] out of bounds: " + e.getMessage());
         }
-
-        return buffer_array[row][col];
     }
 
-    // TextureAtlas attributes
-    protected int rows, cols;
-    protected int width, height;
-    protected int[] id;
+    // Returns the frame ID of the given row and column of the atlas
+    public int get_frame(int row, int col) {
+        if (row < 0 || row >= this.rows || col < 0 || col >= this.cols)
+            throw new RuntimeException("[spdt/textureatlas] out of bounds: row " + row +
+                    ", col " + col + " of a " + this.rows + "x" + this.cols + " atlas");
+        return row * this.cols + col;
+    }
 
     /**
-     * Creates a new texture atlas with the image at the given resource ID. If this is a sheet
-     * with just one texture, rows = cols = 1.
+     * Returns the atlas' vertex buffer: the default square's vertex positions followed by the
+     * frame table. It's uploaded the first time it's needed.
      */
-    public TextureAtlas(int resource_id, int rows, int cols) {
+    public int get_vbo() {
+        if (this.vbo == 0) {
+            float[] square = new float[FRAME_FLOATS];
+            Sprite.get_square_vertex_positions_buffer().get(square).position(0);
+            float[] data = new float[FRAME_FLOATS + this.frame_uvs.length];
+            System.arraycopy(square, 0, data, 0, FRAME_FLOATS);
+            System.arraycopy(this.frame_uvs, 0, data, FRAME_FLOATS, this.frame_uvs.length);
+            int[] ids = new int[1];
+            GLES20.glGenBuffers(1, ids, 0);
+            this.vbo = ids[0];
+            GLState.bind_array_buffer(this.vbo);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.length * 4,
+                    get_float_buffer_from(data), GLES20.GL_STATIC_DRAW);
+        }
+        return this.vbo;
+    }
+
+    // Returns the byte offset of the given frame's texture coordinates in the atlas' vertex buffer
+    public static int get_frame_offset(int frame) { return (frame + 1) * FRAME_FLOATS * 4; }
 
-        // Load texture into bitmap
+    // Return the atlas' frame table (see frame_uvs). Must not be modified.
+    public float[] get_frame_uvs() { return this.frame_uvs; }
+
+    // Decodes the image at the given resource ID into a Bitmap
+    static Bitmap decode_bitmap(int resource_id) {
         InputStream is = GameActivity.app_resources.openRawResource(resource_id);
         Bitmap bmp;
         try {
@@ -124,31 +141,25 @@ public class TextureAtlas {
                         " unable to load texture: " + e.getMessage());
             }
         }
+        return bmp;
+    }
 
-        // Set width and height
-        this.rows = rows;
-        this.cols = cols;
-        this.width = bmp.getWidth();
-        this.height = bmp.getHeight();
-        this.id = new int[1];
-
-        // Generate and bind GL texture object
-        GLES20.glGenTextures(1, id, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, id[0]);
-
-        // Set minification and magnification filter parameters
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-
-        // Set wrapping parameters
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_REPEAT);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_REPEAT);
-
-        // Put loaded  bitmap to texture
-        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bmp, 0);
-
-        // Recycle bitmap
-        bmp.recycle();
+    // Reads the size of the image at the given resource ID without decoding its pixels
+    static int[] decode_bounds(int resource_id) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream is = GameActivity.app_resources.openRawResource(resource_id);
+        try {
+            BitmapFactory.decodeStream(is, null, options);
+        } finally {
+            try {
+                is.close();
+            } catch(IOException e) {
+                throw new RuntimeException("[spdt/textureatlas]" +
+                        " unable to read texture size: " + e.getMessage());
+            }
+        }
+        return new int[] { options.outWidth, options.outHeight };
     }
 
     /**
@@ -161,6 +172,22 @@ public class TextureAtlas {
         this.cols = cols;
         this.width = width;
         this.height = height;
+        this.build_frame_table();
+    }
+
+    /**
+     * Releases the atlas' shared texture (if it has one) and its vertex buffer. The atlas must not
+     * be used after this.
+     */
+    public void release() {
+        if (this.vbo != 0) {
+            GLES20.glDeleteBuffers(1, new int[] { this.vbo }, 0);
+            GLState.on_buffer_deleted(this.vbo);
+            this.vbo = 0;
+        }
+        if (this.texture == null) return;
+        TextureManager.release(this.texture);
+        this.texture = null;
     }
 
     // Return the atlas' OpenGL ES texture id
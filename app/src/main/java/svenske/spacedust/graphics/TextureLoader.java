@@ -0,0 +1,159 @@
+package svenske.spacedust.graphics;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads textures without blocking the GL thread. Decoding (and any other processing, like
+ * generating a distance field) happens on a background thread, and the results are handed back
+ * to the GL thread, which uploads as many of them each frame as fit in a time budget (see
+ * upload()). Until then, whoever asked for the texture uses a placeholder: textures are created
+ * right away with a transparent 1x1 image (see TextureManager.create_placeholder()), and the real
+ * image is uploaded into the same GL texture later, so nothing needs to be told when it's ready.
+ *
+ * Also measures how long loading takes after a context is created: how long until the first frame,
+ * how long until everything is uploaded, and the longest frame in between (see log_metrics()).
+ */
+public class TextureLoader {
+
+    /**
+     * A texture to load. decode() is called on the background thread and must not touch GL, and
+     * its result is given to upload() on the GL thread.
+     */
+    public interface Job {
+        Object decode();
+        void upload(Object result);
+    }
+
+    // Decoded results waiting to be uploaded, and the thread decoding them
+    private static ConcurrentLinkedQueue<Ready> ready = new ConcurrentLinkedQueue<>();
+    private static ExecutorService executor;
+
+    // Bumped for every new context, so results decoded for an old one are dropped
+    private static int generation;
+
+    // Jobs submitted but not yet uploaded
+    private static int pending;
+
+    // Metrics (in ns, since the context was created)
+    private static long start, first_frame, finished, last_frame, longest_frame;
+    private static int uploaded;
+    private static boolean loading;
+
+    // Drops pending loads and starts measuring again. Call this whenever a new context is created.
+    public static void reset() {
+        generation++;
+        Ready r;
+        while ((r = ready.poll()) != null) discard(r.result);
+        pending = 0;
+        start = System.nanoTime();
+        first_frame = finished = last_frame = longest_frame = 0;
+        uploaded = 0;
+        loading = true;
+    }
+
+    // Submits a job to be decoded in the background and uploaded once it's done
+    public static void submit(final Job job) {
+        if (executor == null) executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "spdt-texture-loader");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1); // Yield to the GL thread
+                return thread;
+            }
+        });
+        pending++;
+        loading = true;
+        final int submitted_generation = generation;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Object result = null;
+                try {
+                    result = job.decode();
+                } catch (RuntimeException e) {
+                    Log.e("spdt/textureloader", "unable to decode texture: " + e.getMessage());
+                }
+                ready.add(new Ready(job, result, submitted_generation));
+            }
+        });
+    }
+
+    /**
+     * Uploads decoded textures until the given time budget is used up. At least one texture is
+     * uploaded per call (if any are ready) so that loading always progresses. Call this once at the
+     * start of every frame, on the GL thread.
+     * @param budget how long (in ms) to spend uploading
+     */
+    public static void upload(float budget) {
+        long now = System.nanoTime();
+        if (loading) {
+            if (first_frame == 0) first_frame = now;
+            else longest_frame = Math.max(longest_frame, now - last_frame);
+            last_frame = now;
+        }
+
+        // Upload until the budget is used up
+        long deadline = now + (long)(budget * 1000000f);
+        boolean any = false;
+        Ready r;
+        while ((!any || System.nanoTime() < deadline) && (r = ready.poll()) != null) {
+            if (r.generation != generation) {
+                discard(r.result);
+                continue;
+            }
+            if (r.result != null) {
+                r.job.upload(r.result);
+                uploaded++;
+            }
+            pending--;
+            any = true;
+        }
+
+        // Report once everything has loaded
+        if (loading && pending == 0) {
+            loading = false;
+            finished = System.nanoTime();
+            log_metrics();
+        }
+    }
+
+    // Frees a result that will never be uploaded
+    private static void discard(Object result) {
+        if (result instanceof Bitmap) ((Bitmap)result).recycle();
+    }
+
+    // Logs how long loading took since the context was created
+    public static void log_metrics() {
+        Log.d("spdt/textureloader", uploaded + " textures loaded in " + get_startup_time() +
+                " ms (first frame after " + get_first_frame_time() + " ms, longest frame " +
+                get_longest_frame_time() + " ms)");
+    }
+
+    // Accessors for metrics (in ms). Times are 0 if they haven't happened yet.
+    public static float get_startup_time() { return finished == 0 ? 0f : (finished - start) / 1e6f; }
+    public static float get_first_frame_time() {
+        return first_frame == 0 ? 0f : (first_frame - start) / 1e6f;
+    }
+    public static float get_longest_frame_time() { return longest_frame / 1e6f; }
+    public static boolean is_loading() { return loading; }
+    public static int get_pending() { return pending; }
+
+    // A decoded result waiting to be uploaded
+    private static class Ready {
+        final Job job;
+        final Object result;
+        final int generation;
+        Ready(Job job, Object result, int generation) {
+            this.job = job;
+            this.result = result;
+            this.generation = generation;
+        }
+    }
+}
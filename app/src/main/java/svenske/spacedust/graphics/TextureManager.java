@@ -0,0 +1,275 @@
+package svenske.spacedust.graphics;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import svenske.spacedust.utils.Global;
+
+/**
+ * Shares GL textures between everything that uses them. Textures loaded from resources are keyed
+ * by resource ID and parameters, so that (for example) every JoyStick uses the same two textures
+ * instead of decoding and uploading its own copies. Textures are reference-counted: every
+ * acquire() (or register()) must be matched by a release(), and a texture's GL texture is deleted
+ * once nothing uses it anymore.
+ *
+ * Textures loaded from resources are decoded in the background (see TextureLoader), so they're
+ * transparent until their image is uploaded a few frames later (anything baking them into
+ * something else can watch their version for that). Their sizes are known right away.
+ * If a compressed version of an image exists that the context supports (see CompressedTexture),
+ * it's loaded instead.
+ *
+ * Every texture's estimated GPU memory is tracked for reporting (see log_memory()). Textures
+ * created elsewhere (i.e., generated or rendered ones) can be tracked as well through register().
+ *
+ * All textures are lost along with their context, so reset() must be called whenever a new context
+ * is created.
+ */
+public class TextureManager {
+
+    // Parameter flags for textures loaded from resources
+    public static final int DEFAULT = 0;      // Nearest filtering, repeat wrapping
+    public static final int LINEAR  = 1;      // Linear filtering instead of nearest
+    public static final int CLAMP   = 1 << 1; // Clamp-to-edge wrapping instead of repeat
+    public static final int MIPMAP  = 1 << 2; // Mipmaps (if the texture can have them)
+
+    // Textures in use by key, and the total estimated memory they take
+    private static Map<String, Texture> textures = new HashMap<>();
+    private static long bytes;
+    private static long peak_bytes;
+
+    // Regions of packed pages that resource images were packed into (see TexturePacker)
+    private static Map<Integer, Region> regions = new HashMap<>();
+
+    // Forgets all textures without deleting them. Call this whenever a new context is created.
+    public static void reset() {
+        textures.clear();
+        regions.clear();
+        bytes = peak_bytes = 0;
+    }
+
+    // Acquires a reference to the texture with the given resource ID and default parameters
+    public static Texture acquire(int resource_id) { return acquire(resource_id, DEFAULT); }
+
+    /**
+     * Acquires a reference to the texture with the given resource ID and parameters, loading it
+     * (asynchronously) if it isn't in use already
+     * @param flags a combination of the parameter flags above
+     */
+    public static Texture acquire(final int resource_id, final int flags) {
+        return acquire("res/" + resource_id + "/" + flags, new Loader() {
+            @Override
+            public Texture load(String key) {
+                int compressed_id = CompressedTexture.find_variant(resource_id);
+                if (compressed_id != 0) return load_compressed(key, compressed_id, flags);
+
+                // Mipmaps take a third more memory
+                int[] size = TextureAtlas.decode_bounds(resource_id);
+                final int texture_flags = can_mipmap(size[0], size[1]) ? flags : flags & ~MIPMAP;
+                int bytes = size[0] * size[1] * 4;
+                if ((texture_flags & MIPMAP) != 0) bytes = bytes * 4 / 3;
+
+                final Texture texture = new Texture(key, create_placeholder(texture_flags),
+                        size[0], size[1], bytes);
+                TextureLoader.submit(new TextureLoader.Job() {
+                    @Override
+                    public Object decode() { return TextureAtlas.decode_bitmap(resource_id); }
+
+                    @Override
+                    public void upload(Object result) {
+                        Bitmap bmp = (Bitmap)result;
+                        if (is_in_use(texture)) {
+                            GLState.bind_texture(0, texture.id);
+                            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bmp, 0);
+                            if ((texture_flags & MIPMAP) != 0)
+                                GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+                            texture.version++;
+                        }
+                        bmp.recycle();
+                    }
+                });
+                return texture;
+            }
+        });
+    }
+
+    /**
+     * Loads a compressed texture (see CompressedTexture). Compressed textures can't have mipmaps
+     * generated, so they only have mipmaps if their file does.
+     */
+    private static Texture load_compressed(String key, final int compressed_id, int flags) {
+        CompressedTexture info = CompressedTexture.read_info(compressed_id);
+        if (info.levels == 1) flags &= ~MIPMAP;
+        final Texture texture = new Texture(key, create_placeholder(flags), info.width,
+                info.height, info.get_bytes());
+        TextureLoader.submit(new TextureLoader.Job() {
+            @Override
+            public Object decode() { return CompressedTexture.read(compressed_id); }
+
+            @Override
+            public void upload(Object result) {
+                if (!is_in_use(texture)) return;
+                GLState.bind_texture(0, texture.id);
+                ((CompressedTexture)result).upload();
+                texture.version++;
+            }
+        });
+        return texture;
+    }
+
+    /**
+     * Returns whether a texture of the given size can have mipmaps. OpenGL ES 2.0 only allows
+     * mipmaps for textures whose sizes are powers of two.
+     */
+    public static boolean can_mipmap(int width, int height) {
+        return Global.NPOT_MIPMAPS_SUPPORTED ||
+                ((width & (width - 1)) == 0 && (height & (height - 1)) == 0);
+    }
+
+    /**
+     * Creates a GL texture with the given parameters holding a single transparent texel, to stand
+     * in until its actual image is loaded (see TextureLoader)
+     * @return the GL texture's ID
+     */
+    public static int create_placeholder(int flags) {
+        int[] id = new int[1];
+        GLES20.glGenTextures(1, id, 0);
+        GLState.bind_texture(0, id[0]);
+        set_parameters(flags);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 1, 1, 0, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, ByteBuffer.allocateDirect(4));
+        return id[0];
+    }
+
+    // Returns whether the given texture is still in use (i.e., a load for it should still upload)
+    public static boolean is_in_use(Texture texture) { return textures.get(texture.key) == texture; }
+
+    /**
+     * Acquires a reference to the texture with the given key, loading it with the given loader if
+     * it isn't in use already. This is for textures that are processed when loaded (i.e., a
+     * Font's distance field), which should be keyed by their source and processing.
+     */
+    public static Texture acquire(String key, Loader loader) {
+        Texture texture = textures.get(key);
+        if (texture == null) {
+            texture = loader.load(key);
+            textures.put(key, texture);
+            add_bytes(texture.bytes);
+        }
+        texture.refs++;
+        return texture;
+    }
+
+    // Acquires another reference to a texture that is already in use
+    public static Texture acquire(Texture texture) {
+        texture.refs++;
+        return texture;
+    }
+
+    // Records the region of a packed page the image with the given resource ID was packed into
+    static void put_region(int resource_id, Region region) { regions.put(resource_id, region); }
+
+    // Returns the region the image with the given resource ID was packed into, or null if none
+    public static Region get_region(int resource_id) { return regions.get(resource_id); }
+
+    /**
+     * Tracks a texture created elsewhere, taking a reference to it. It will be deleted once
+     * released.
+     * @param name a name to describe the texture by (made unique with its ID)
+     * @param bytes the estimated memory the texture takes
+     */
+    public static Texture register(String name, int id, int width, int height, int bytes) {
+        Texture texture = new Texture(name + "#" + id, id, width, height, bytes);
+        textures.put(texture.key, texture);
+        add_bytes(bytes);
+        texture.refs++;
+        return texture;
+    }
+
+    // Releases a reference to the given texture, deleting it if nothing else uses it
+    public static void release(Texture texture) {
+        if (texture.refs <= 0 || textures.get(texture.key) != texture) {
+            Log.e("spdt/texturemanager", "attempted to release an unused texture: " + texture.key);
+            return;
+        }
+        if (--texture.refs > 0) return;
+        textures.remove(texture.key);
+        bytes -= texture.bytes;
+        GLES20.glDeleteTextures(1, new int[] { texture.id }, 0);
+        GLState.on_texture_deleted(texture.id);
+    }
+
+    // Sets the parameters of the bound texture from the given flags
+    public static void set_parameters(int flags) {
+        boolean linear = (flags & LINEAR) != 0;
+        int filter = linear ? GLES20.GL_LINEAR : GLES20.GL_NEAREST;
+        int min_filter = filter;
+        if ((flags & MIPMAP) != 0) // Nearest texels still blend between mipmap levels
+            min_filter = linear ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_NEAREST_MIPMAP_LINEAR;
+        int wrap = (flags & CLAMP) != 0 ? GLES20.GL_CLAMP_TO_EDGE : GLES20.GL_REPEAT;
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, min_filter);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, wrap);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, wrap);
+    }
+
+    // Adds to the tracked memory
+    private static void add_bytes(long n) {
+        bytes += n;
+        peak_bytes = Math.max(peak_bytes, bytes);
+    }
+
+    // Logs the estimated GPU memory taken by textures, and each texture's share of it
+    public static void log_memory() {
+        Log.d("spdt/texturemanager", textures.size() + " textures using " + (bytes / 1024) +
+                " KB (peak " + (peak_bytes / 1024) + " KB)");
+        for (Texture texture : textures.values())
+            Log.d("spdt/texturemanager", "  " + texture.key + ": " + texture.width + "x" +
+                    texture.height + ", " + (texture.bytes / 1024) + " KB, " + texture.refs +
+                    " references");
+    }
+
+    // Accessors for memory info
+    public static long get_bytes() { return bytes; }
+    public static long get_peak_bytes() { return peak_bytes; }
+    public static int get_texture_count() { return textures.size(); }
+
+    // A region of a packed page (in pixels) that an image was packed into
+    public static class Region {
+        public final Texture page;
+        public final int x, y, width, height;
+        Region(Texture page, int x, int y, int width, int height) {
+            this.page = page;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    // Loads a texture that isn't in use yet (see acquire())
+    public interface Loader { Texture load(String key); }
+
+    // A shared GL texture
+    public static class Texture {
+        public final String key;
+        public final int id, width, height;
+        final int bytes; // Estimated GPU memory
+        int refs;
+        public int version; // Bumped whenever an image is uploaded into it (on the GL thread)
+
+        // Constructs the Texture. Loaders should create Textures with no references.
+        public Texture(String key, int id, int width, int height, int bytes) {
+            this.key = key;
+            this.id = id;
+            this.width = width;
+            this.height = height;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package svenske.spacedust.graphics;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Packs many small images into a few shared textures ("pages") at load time, so that Sprites
+ * using different images can still be drawn from the same texture without breaking up batches.
+ * Images are placed with a skyline bin-packer: each page keeps the outline of its filled area
+ * as horizontal segments, and every image goes wherever it sits lowest (then furthest left).
+ *
+ * Usage: add() the resource IDs of the images to pack, then pack(). From then on, any
+ * TextureAtlas created from one of those resource IDs is a view of its region of a page (see
+ * TextureManager.get_region()), so callers don't need to know about packing at all.
+ *
+ * Pages are shrunk to the smallest power-of-two size that fits what was packed into them, and
+ * live until the context is lost. Images are transparent until they're loaded. Images that need
+ * repeat wrapping, linear filtering or their own texture coordinate space (i.e., tiled
+ * backgrounds and fonts) shouldn't be packed.
+ */
+public class TexturePacker {
+
+    // Packing settings
+    private int page_size; // The largest width and height of a page
+    private int padding;   // Empty pixels left between images
+
+    // Images to pack
+    private List<Integer> resource_ids = new ArrayList<>();
+
+    /**
+     * Constructs the TexturePacker
+     * @param page_size the largest width and height of a page (i.e., 2048)
+     * @param padding empty pixels to leave between images so they don't bleed into each other
+     */
+    public TexturePacker(int page_size, int padding) {
+        this.page_size = page_size;
+        this.padding = padding;
+    }
+
+    // Adds the image with the given resource ID to be packed
+    public void add(int resource_id) { this.resource_ids.add(resource_id); }
+
+    /**
+     * Packs all added images, registering their regions with the TextureManager. Images are placed
+     * by their sizes alone, so the pages are created right away and the images themselves are
+     * decoded and uploaded into them in the background (see TextureLoader).
+     */
+    public void pack() {
+
+        // Read sizes and sort tallest first, which keeps skylines flat
+        final int[][] sizes = new int[this.resource_ids.size()][];
+        Integer[] order = new Integer[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = TextureAtlas.decode_bounds(this.resource_ids.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) { return sizes[b][1] - sizes[a][1]; }
+        });
+
+        // Place each image in the first page it fits in, adding pages as needed
+        List<Page> pages = new ArrayList<>();
+        int[] page_of = new int[sizes.length], xs = new int[sizes.length], ys = new int[sizes.length];
+        for (int i : order) {
+            int w = sizes[i][0] + this.padding, h = sizes[i][1] + this.padding;
+            page_of[i] = -1;
+            for (int p = 0; p <= pages.size() && page_of[i] == -1; p++) {
+                if (p == pages.size()) {
+                    if (w > this.page_size || h > this.page_size) break; // Will never fit
+                    pages.add(new Page(this.page_size));
+                }
+                int[] pos = pages.get(p).place(w, h);
+                if (pos != null) {
+                    page_of[i] = p;
+                    xs[i] = pos[0];
+                    ys[i] = pos[1];
+                }
+            }
+            if (page_of[i] == -1)
+                Log.e("spdt/texturepacker", "image " + this.resource_ids.get(i) + " (" +
+                        sizes[i][0] + "x" + sizes[i][1] + ") is too big to pack into a " +
+                        this.page_size + " page and will be loaded alone");
+        }
+
+        // Create each page and register the regions in it
+        for (int p = 0; p < pages.size(); p++) {
+            Page page = pages.get(p);
+            int width = pot(page.used_width - this.padding); // No padding needed past the edge
+            int height = pot(page.used_height - this.padding);
+            int[] id = new int[1];
+            GLES20.glGenTextures(1, id, 0);
+            GLState.bind_texture(0, id[0]);
+            TextureManager.set_parameters(TextureManager.CLAMP);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    ByteBuffer.allocateDirect(width * height * 4)); // Transparent padding
+            TextureManager.Texture texture = TextureManager.register("packed page " + p, id[0],
+                    width, height, width * height * 4);
+            int packed = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                if (page_of[i] != p) continue;
+                int resource_id = this.resource_ids.get(i);
+                TextureManager.put_region(resource_id, new TextureManager.Region(
+                        texture, xs[i], ys[i], sizes[i][0], sizes[i][1]));
+                TexturePacker.load_into(texture, resource_id, xs[i], ys[i]);
+                packed++;
+            }
+            Log.d("spdt/texturepacker", "packed " + packed + " images into a " + width + "x" +
+                    height + " page");
+        }
+        this.resource_ids.clear();
+    }
+
+    // Loads the image with the given resource ID into the given page at the given position
+    private static void load_into(final TextureManager.Texture page, final int resource_id,
+                                  final int x, final int y) {
+        TextureLoader.submit(new TextureLoader.Job() {
+            @Override
+            public Object decode() { return TextureAtlas.decode_bitmap(resource_id); }
+
+            @Override
+            public void upload(Object result) {
+                Bitmap bmp = (Bitmap)result;
+                if (TextureManager.is_in_use(page)) {
+                    GLState.bind_texture(0, page.id);
+                    GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, x, y, bmp);
+                    page.version++;
+                }
+                bmp.recycle();
+            }
+        });
+    }
+
+    // Returns the smallest power of two at least the given size
+    private static int pot(int n) {
+        int pot = 1;
+        while (pot < n) pot <<= 1;
+        return pot;
+    }
+
+    // A page being packed, described by its skyline
+    private static class Page {
+
+        // Skyline segments from left to right: [x, y, width] (y is the height filled to)
+        private List<int[]> skyline = new ArrayList<>();
+        private int size;
+        int used_width, used_height;
+
+        Page(int size) {
+            this.size = size;
+            this.skyline.add(new int[] { 0, 0, size });
+        }
+
+        /**
+         * Places a rectangle of the given size at the lowest (then leftmost) position it fits
+         * @return the position [x, y] of the rectangle, or null if it doesn't fit
+         */
+        int[] place(int w, int h) {
+
+            // Find the best segment to start at
+            int best = -1, best_x = 0, best_y = Integer.MAX_VALUE;
+            for (int i = 0; i < this.skyline.size(); i++) {
+                int x = this.skyline.get(i)[0];
+                if (x + w > this.size) break;
+
+                // The rectangle rests on the highest segment it spans
+                int y = 0, covered = 0;
+                for (int j = i; covered < w; j++) {
+                    int[] seg = this.skyline.get(j);
+                    y = Math.max(y, seg[1]);
+                    covered += seg[2];
+                }
+                if (y + h <= this.size && y < best_y) {
+                    best = i;
+                    best_x = x;
+                    best_y = y;
+                }
+            }
+            if (best == -1) return null;
+
+            // Raise the skyline under the rectangle, trimming the segments it covers
+            this.skyline.add(best, new int[] { best_x, best_y + h, w });
+            for (int i = best + 1; i < this.skyline.size(); ) {
+                int[] seg = this.skyline.get(i);
+                int overlap = best_x + w - seg[0];
+                if (overlap <= 0) break;
+                if (overlap < seg[2]) {
+                    seg[0] += overlap;
+                    seg[2] -= overlap;
+                    break;
+                }
+                this.skyline.remove(i);
+            }
+
+            // Merge neighboring segments of the same height
+            for (int i = 0; i < this.skyline.size() - 1; ) {
+                int[] a = this.skyline.get(i), b = this.skyline.get(i + 1);
+                if (a[1] == b[1]) {
+                    a[2] += b[2];
+                    this.skyline.remove(i + 1);
+                } else i++;
+            }
+            this.used_width = Math.max(this.used_width, best_x + w);
+            this.used_height = Math.max(this.used_height, best_y + h);
+            return new int[] { best_x, best_y };
+        }
+    }
+}
@@ -28,7 +28,9 @@ public interface Stage {
     boolean input(MotionEvent me);
 
     /**
-     * Called every loop before render().
+     * Called every loop before render(). This may be called on a simulation thread rather than the
+     * GL thread (see SimulationThread), so it must not make GL calls or change anything render()
+     * reads. Instead, it should publish what render() needs (i.e., a WorldSnapshot).
      * @param dt the amount of time since the last loop in seconds. Try to use this somehow in
      *           calculations to ensure smooth updates.
      */
@@ -37,8 +39,14 @@ public interface Stage {
     // Called if FPS logging is enabled and a new FPS is calculated
     void fps_update(float fps);
 
-    // Called every loop after update(). Use this method for rendering only
-    void render();
+    /**
+     * Called every loop after update() on the GL thread. Use this method for rendering only. If
+     * updates are on a simulation thread, each frame's update may still be running when it
+     * renders, so the same update may be rendered more than once, or an update may not be
+     * rendered at all.
+     * @param dt the amount of time since the last render in seconds
+     */
+    void render(float dt);
 
     /**
      * Called whenever the renderer has a new viewport size to share. The new width/height are
@@ -46,6 +54,13 @@ public interface Stage {
      */
     void resized();
 
+    /**
+     * Called on the GL thread before the OpenGL ES context is lost (i.e., when the app is paused),
+     * while it's still current. Release any GL resources the Stage holds here. The Stage won't be
+     * rendered again, but get_continuous_data() may still be called.
+     */
+    void release();
+
     /**
      * @return data to be passed into a new instantiation of this Stage if the OpenGL ES context
      *         gets destroyed and needs to be rebuilt. Specifically, the return from this method
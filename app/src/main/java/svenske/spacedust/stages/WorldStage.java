@@ -1,6 +1,7 @@
 package svenske.spacedust.stages;
 
 import android.opengl.GLES20;
+import android.util.Log;
 import android.view.MotionEvent;
 
 import java.util.ArrayList;
@@ -13,25 +14,45 @@ import svenske.spacedust.gameobject.HUD;
 import svenske.spacedust.gameobject.JoyStick;
 import svenske.spacedust.gameobject.Player;
 import svenske.spacedust.gameobject.World;
+import svenske.spacedust.gameobject.WorldSnapshot;
+import svenske.spacedust.graphics.Animator;
 import svenske.spacedust.graphics.BlendMode;
+import svenske.spacedust.graphics.DynamicResolution;
 import svenske.spacedust.graphics.Font;
+import svenske.spacedust.graphics.LightClusterer;
+import svenske.spacedust.graphics.NumericTextSprite;
 import svenske.spacedust.graphics.Sprite;
+import svenske.spacedust.graphics.TextCache;
 import svenske.spacedust.graphics.TextSprite;
 import svenske.spacedust.graphics.TextureAtlas;
+import svenske.spacedust.graphics.TextureManager;
+import svenske.spacedust.graphics.TexturePacker;
 import svenske.spacedust.utils.Global;
 import svenske.spacedust.utils.Node;
+import svenske.spacedust.utils.TripleBuffer;
 
 import static svenske.spacedust.gameobject.HUD.Alignment.LEFT;
 
 /**
  * This stage represents the actual game world. The WorldStage basically consists of a World and a
  * HUD, updated and rendered separately.
+ *
+ * Each update publishes a snapshot of the World (see WorldSnapshot) through a triple buffer, and
+ * rendering renders the newest one, so updates can run on a simulation thread while the GL thread
+ * renders. The HUD isn't part of the simulation: it's updated and rendered directly in render(),
+ * on the GL thread. Only input (i.e., a JoyStick's inner circle) changes it from another thread.
  */
 public class WorldStage implements Stage {
 
     // WorldStage attributes
     World world;
     HUD hud;
+    TripleBuffer<WorldSnapshot> snapshots; // Snapshots of the World from update() for render()
+    int shown_score;                       // The score shown on the HUD
+
+    // Dynamic resolution: the World is rendered at a scale kept to hold the target frame rate
+    public static final boolean DYNAMIC_RESOLUTION = true;
+    DynamicResolution dynamic_resolution; // Null if disabled
 
     // Important GameObjects
     Player player;                       // Reference to the game's player
@@ -43,19 +64,34 @@ public class WorldStage implements Stage {
     @Override
     public void init(Node previous_continuous_data) {
 
+        // Forget animations of any previous context's sprites
+        Animator.reset();
+
+        // Pack small images into shared pages so their sprites don't break batches
+        TexturePacker packer = new TexturePacker(2048, 2);
+        packer.add(R.drawable.texture_sheet);
+        packer.add(R.drawable.joystick_inner_circle);
+        packer.add(R.drawable.joystick_outer_circle);
+        packer.pack();
+
         // Initialize global texture atlases
-        Global.font = new Font(R.drawable.font, R.raw.font_info);
+        Global.font = new Font(R.drawable.font, R.raw.font_info, true);
         Global.ta = new TextureAtlas(R.drawable.texture_sheet, 16, 16);
+        Global.text_cache = new TextCache(Global.TEXT_CACHE_BUDGET);
 
         // Initialize world and HUD
         this.world = new World(previous_continuous_data);
         this.world.get_camera().set_zoom(0.25f);
+        this.snapshots = new TripleBuffer<>(this.world.create_snapshot(),
+                this.world.create_snapshot(), this.world.create_snapshot());
         this.hud = new HUD();
+        if (DYNAMIC_RESOLUTION) this.dynamic_resolution = new DynamicResolution(Global.TARGET_FPS);
 
         // Create objects
         this.create_player();
         this.create_joysticks();
         this.create_text();
+        TextureManager.log_memory();
     }
 
     // Creates the player and the player's health bar
@@ -72,7 +108,7 @@ public class WorldStage implements Stage {
                 0.1f);
 
         // Create player
-        this.player = new Player(Global.ta,0f, 0f, this.player_hp_bar, this.world);
+        this.player = new Player(Global.ta,0f, 0f, this.world);
         this.world.add_game_object(this.player);
     }
 
@@ -97,36 +133,32 @@ public class WorldStage implements Stage {
     // Creates text to put on the HUD
     private void create_text() {
 
-        // Create title
-        Sprite title_sprite = new TextSprite(Global.font, new float[] { 1f, 1f, 1f, 1f },
-                BlendMode.MULTIPLICATIVE, "Space Dust").solidify();
-        title_sprite.set_color(new float[] { 1f, 1f, 1f, 0.6f });
-        title_sprite.set_blend_mode(BlendMode.MULTIPLICATIVE);
+        // Create title (the font is a distance field, so text needn't be solidified to scale)
+        Sprite title_sprite = new TextSprite(Global.font, new float[] { 1f, 1f, 1f, 0.6f },
+                BlendMode.SDF, "Space Dust");
         GameObject title = new GameObject(title_sprite, 0f, 0f);
         title.set_scale(0.14f, 0.14f);
         this.hud.add_object(title, null, HUD.RelativePlacement.BELOW, LEFT, 0.05f);
 
         // Create version info
-        Sprite version_sprite = new TextSprite(Global.font, new float[] { 1f, 1f, 1f, 1f },
-                BlendMode.MULTIPLICATIVE, "(prototype 2)").solidify();
-        version_sprite.set_color(new float[] { 1f, 1f, 1f, 0.6f });
-        version_sprite.set_blend_mode(BlendMode.MULTIPLICATIVE);
+        Sprite version_sprite = new TextSprite(Global.font, new float[] { 1f, 1f, 1f, 0.6f },
+                BlendMode.SDF, "(prototype 2)");
         GameObject version_text = new GameObject(version_sprite, 0f, 0f);
         version_text.set_scale(0.05f, 0.05f);
         this.hud.add_object(version_text,
                 title, HUD.RelativePlacement.BELOW, LEFT, 0.03f);
 
         // Create FPS text
-        Sprite fps_text_sprite = new TextSprite(Global.font, new float[] { 1f, 1f, 1f, 0.6f },
-                BlendMode.MULTIPLICATIVE, "FPS: ");
+        Sprite fps_text_sprite = new NumericTextSprite(Global.font,
+                new float[] { 1f, 1f, 1f, 0.6f }, BlendMode.SDF, "FPS: ", 1);
         this.FPS_text = new GameObject(fps_text_sprite, 0f,0f);
         this.FPS_text.set_scale(0.07f, 0.07f);
         this.hud.add_object(FPS_text,
                 version_text, HUD.RelativePlacement.BELOW, LEFT, 0.05f);
 
         // Create kills text
-        Sprite score_text_sprite = new TextSprite(Global.font, new float[] { 0f, 1f, 0f, 0.8f },
-                BlendMode.MULTIPLICATIVE, "Score: 0");
+        Sprite score_text_sprite = new NumericTextSprite(Global.font,
+                new float[] { 0f, 1f, 0f, 0.8f }, BlendMode.SDF, "Score: ", 0);
         WorldStage.score_text = new GameObject(score_text_sprite, 0f, 0f);
         WorldStage.score_text.set_scale(0.06f, 0.06f);
         this.hud.add_object(WorldStage.score_text,
@@ -142,26 +174,60 @@ public class WorldStage implements Stage {
         return true;
     }
 
-    // Updates the objects in the world and the HUD, and ensures the camera's position is correct.
+    /**
+     * Updates the objects in the world, ensures the camera's position is correct, and publishes a
+     * snapshot of the world for render().
+     */
     @Override
     public void update(float dt) {
+        Animator.advance(dt);
         this.world.update(dt);
-        this.hud.update(dt);
         float[] player_pos = this.player.get_pos();
         this.world.get_camera().set_position(player_pos[0], player_pos[1]);
+        WorldSnapshot snapshot = this.snapshots.get_back();
+        this.world.capture(snapshot);
+        snapshot.set_player_health(this.player.get_hp() / this.player.get_max_hp());
+        this.snapshots.publish();
     }
 
-    // Responds to FPS updates by reflecting the new FPS via some text on the screen.
+    /**
+     * Responds to FPS updates by reflecting the new FPS via some text on the screen, and logging
+     * light clustering error if it's measured.
+     */
     @Override
     public void fps_update(float fps) {
-        ((TextSprite)this.FPS_text.get_sprite()).set_text("FPS: " + fps);
+        ((NumericTextSprite)this.FPS_text.get_sprite()).set_value(fps);
+        if (Global.MEASURE_LIGHT_CLUSTER_ERROR) {
+            LightClusterer lc = this.world.get_light_clusterer();
+            Log.d("spdt/worldstage", "light clustering: " + lc.get_input_count() + " -> " +
+                    lc.get_output_count() + " lights, mean/max error " + lc.get_mean_error() +
+                    "/" + lc.get_max_error() + " (" + (lc.get_relative_error() * 100f) + "%)");
+        }
     }
 
-    // Renders the world, then the HUD.
+    /**
+     * Renders the newest snapshot of the world (scaled, if dynamic resolution is enabled), then
+     * updates and renders the HUD with the snapshot's score and player health.
+     */
     @Override
-    public void render() {
+    public void render(float dt) {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        this.world.render();
+        if (this.dynamic_resolution != null) {
+            this.dynamic_resolution.set_target_fps(Global.TARGET_FPS); // May change with the cap
+            this.dynamic_resolution.update(dt);
+        }
+        WorldSnapshot snapshot = this.snapshots.acquire();
+        if (snapshot != null) { // Nothing to render before the first update
+            if (snapshot.get_score() != this.shown_score) {
+                this.shown_score = snapshot.get_score();
+                ((NumericTextSprite)WorldStage.score_text.get_sprite()).set_value(this.shown_score);
+            }
+            this.player_hp_bar.set_fill(snapshot.get_player_health());
+            if (this.dynamic_resolution != null) this.dynamic_resolution.begin();
+            this.world.render(snapshot);
+            if (this.dynamic_resolution != null) this.dynamic_resolution.end();
+        }
+        this.hud.update(dt);
         this.hud.render();
     }
 
@@ -172,6 +238,18 @@ public class WorldStage implements Stage {
         this.hud.resized();
     }
 
+    // Releases the World's, the HUD's and the global textures, and the dynamic resolution target
+    @Override
+    public void release() {
+        this.world.release();
+        this.hud.release();
+        Global.ta.release();
+        Global.font.release();
+        Global.ta = null;
+        Global.font = null;
+        if (this.dynamic_resolution != null) this.dynamic_resolution.release();
+    }
+
     @Override
     public Node get_continuous_data() {
         return this.world.get_continuous_data();
@@ -1,6 +1,7 @@
 package svenske.spacedust.utils;
 
 import svenske.spacedust.graphics.Font;
+import svenske.spacedust.graphics.TextCache;
 import svenske.spacedust.graphics.TextureAtlas;
 
 // A class to store global constants/other info
@@ -10,6 +11,29 @@ public class Global {
     public static Font font = null;
     public static TextureAtlas ta = null;
 
+    // Cache of text shared between identical labels (i.e., nameplates)
+    public static TextCache text_cache = null;
+    public static final int TEXT_CACHE_BUDGET = 1024 * 1024; // In bytes
+
+    // How long (in ms) to spend uploading loaded textures each frame (see TextureLoader)
+    public static final float TEXTURE_UPLOAD_BUDGET = 4f;
+
+    // Frame rate cap in frames per second (i.e., 30, 60, 90 or 120 to save battery), 0 for none
+    public static int FRAME_RATE_CAP = 0;
+
+    // The display's refresh rate and the resulting frame rate aimed for (detected by FramePacer)
+    public static volatile float REFRESH_RATE = 60f;
+    public static volatile float TARGET_FPS = 60f;
+
+    // Whether to update the Stage on its own thread on multi-core devices (see GameRenderer)
+    public static boolean SIMULATION_THREAD = false;
+
+    // Whether particle emitters marked for the GPU are simulated there (see ParticleSystem)
+    public static boolean GPU_PARTICLES = true;
+
+    // Whether to measure light clustering error and log it with each FPS update (for debugging)
+    public static boolean MEASURE_LIGHT_CLUSTER_ERROR = false;
+
     // Color to pass to glClearColor()
     public static final float[] CLEAR_COLOR = new float[] { 0.0f, 0.0f, 0.0f, 1.0f };
 
@@ -17,6 +41,14 @@ public class Global {
     public static int VIEWPORT_WIDTH = 0;
     public static int VIEWPORT_HEIGHT = 0;
 
+    // Whether instanced drawing is available (probed by GameRenderer when the surface is created)
+    public static boolean INSTANCING_SUPPORTED = false;
+
+    // Texture capabilities (also probed by GameRenderer)
+    public static boolean ETC1_SUPPORTED = false;         // ETC1 compressed textures
+    public static boolean ETC2_SUPPORTED = false;         // ETC2 compressed textures (ES 3.0)
+    public static boolean NPOT_MIPMAPS_SUPPORTED = false; // Non-power-of-two mipmaps (ES 3.0)
+
     /**
      * @return a length-2 float array where the first float is direction from pos1 to pos2 (in
      * radians), and the second float is the distance between the two points.
@@ -0,0 +1,57 @@
+package svenske.spacedust.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest of a stream of values (i.e., render snapshots) from one thread to another
+ * without either ever waiting on the other. There are three slots:
+ * - the back slot, which only the writer touches while it fills it in
+ * - the middle slot, the most recently published value
+ * - the front slot, which only the reader touches while it uses it
+ * publish() swaps the back slot with the middle one and acquire() swaps the middle slot with the
+ * front one (if something newer was published), each with a single atomic swap. The writer never
+ * blocks on a slow reader (unread values are simply replaced), and the reader always gets the
+ * newest complete value.
+ *
+ * Slots are reused rather than recreated, so a writer should overwrite every part of its back slot
+ * that the reader looks at.
+ */
+public class TripleBuffer<T> {
+
+    // The middle slot's index is packed with a flag for whether it's newer than the front slot
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH     = 0x4;
+
+    // Slots and which of them is which
+    private final Object[] slots;
+    private final AtomicInteger middle = new AtomicInteger(1); // Shared by both threads
+    private int back = 0;                                     // Writer thread only
+    private int front = 2;                                    // Reader thread only
+    private boolean acquired_any;                             // Reader thread only
+
+    // Constructs the TripleBuffer with its three slots
+    public TripleBuffer(T a, T b, T c) { this.slots = new Object[] { a, b, c }; }
+
+    // Returns the back slot for the writer to fill in before publishing
+    @SuppressWarnings("unchecked")
+    public T get_back() { return (T)this.slots[this.back]; }
+
+    // Publishes the back slot as the newest value, taking the old middle slot as the new back slot
+    public void publish() {
+        this.back = this.middle.getAndSet(this.back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * Takes the newest published value for the reader, if there is one newer than the last. The
+     * returned value is the reader's until the next call.
+     * @return the newest published value, or null if nothing has been published yet
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        if ((this.middle.get() & FRESH) != 0) {
+            this.front = this.middle.getAndSet(this.front) & INDEX_MASK;
+            this.acquired_any = true;
+        }
+        return this.acquired_any ? (T)this.slots[this.front] : null;
+    }
+}
@@ -13,6 +13,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import svenske.spacedust.GameActivity;
+import svenske.spacedust.graphics.GLState;
 
 import static android.opengl.GLES20.GL_COLOR_ATTACHMENT0;
 import static android.opengl.GLES20.GL_FRAMEBUFFER;
@@ -107,7 +108,7 @@ public class Utils {
         // Generate the final texture and attach it to the FBO
         int[] texture_id = new int[1];
         GLES20.glGenTextures(1, texture_id, 0);
-        GLES20.glBindTexture(GL_TEXTURE_2D, texture_id[0]); // bind
+        GLState.bind_texture(0, texture_id[0]); // bind
         GLES20.glTexImage2D(GL_TEXTURE_2D, 0, GLES20.GL_RGBA, tex_width,
                 tex_height, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
         GLES20.glTexParameteri(GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GL_NEAREST);
@@ -115,7 +116,7 @@ public class Utils {
         GLES20.glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture_id[0], 0);
 
         // Unbind and return
-        GLES20.glBindTexture(GL_TEXTURE_2D, 0);
+        GLState.bind_texture(0, 0);
         GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0);
         return new int[] { fbo[0], texture_id[0] };
     }
@@ -0,0 +1,41 @@
+
+/**
+ * Fragment shader program used for rendering background layers (see Background). The layer's
+ * texture is repeated across the world in tiles, using fract() rather than GL_REPEAT wrapping so
+ * that non-power-of-two textures can be tiled too. Background layers are never lit.
+ * Uses: - texture
+ *       - tile size
+ *       - layer offset (parallax)
+ *       - tint
+ *       - brightness
+ */
+
+// World positions are divided into small tiles, which needs more than mediump when available
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+precision highp float;
+#else
+precision mediump float;
+#endif
+
+// Layer uniforms
+uniform sampler2D texture_sampler;
+uniform vec2 tile_size;    // World size of one repetition of the texture
+uniform vec2 layer_offset; // World offset of the layer's tiles (this is how parallax scrolls)
+uniform vec4 tint;         // A color mixed into the texture
+uniform float tint_mix;    // How much of the tint to mix in (0.5 is the same as BlendMode.AVG)
+uniform float brightness;  // A multiplier applied to the final rgb
+
+// Variables from vertex shader
+varying vec2 world_pos_f;
+
+// Main function
+void main() {
+
+    // Find where in its tile this fragment is (the texture's top row is at the tile's top)
+    vec2 tile_pos = (world_pos_f - layer_offset) / tile_size + 0.5;
+    vec4 color = texture2D(texture_sampler, vec2(fract(tile_pos.x), 1.0 - fract(tile_pos.y)));
+
+    // Apply tint and brightness
+    color = mix(color, tint, tint_mix);
+    gl_FragColor = vec4(color.rgb * brightness, color.a);
+}
@@ -4,8 +4,16 @@
  * Uses: - color
  *       - texture
  *       - blend mode
+ *
+ * Defines (see ShaderVariants):
+ *  - BLEND_<MODE>: compile for just that blend mode instead of branching on blend_mode
  */
 
+// Screen-space derivatives let SDF edges (BlendMode.SDF) be anti-aliased by a pixel at any scale
+#ifdef GL_OES_standard_derivatives
+#extension GL_OES_standard_derivatives : enable
+#endif
+
 precision mediump float;
 
 // Uniforms
@@ -16,8 +24,35 @@ uniform int blend_mode; // enumerated in same order as Java BlendMode class
 // Variables from vertex shader
 varying vec2 tex_coords_f;
 
+// Gets the color of a signed distance field texture: the color inside the shape, smoothed at edges
+vec4 get_sdf_color(sampler2D texture_sampler, vec2 tex_coords_f, vec4 vertex_color) {
+    float distance = texture2D(texture_sampler, tex_coords_f).a;
+#ifdef GL_OES_standard_derivatives
+    float smoothing = 0.7 * fwidth(distance);
+#else
+    float smoothing = 0.05;
+#endif
+    return vec4(vertex_color.rgb,
+            vertex_color.a * smoothstep(0.5 - smoothing, 0.5 + smoothing, distance));
+}
+
 // Main function
 void main() {
+#if defined(BLEND_JUST_COLOR)
+    gl_FragColor = vertex_color;
+#elif defined(BLEND_JUST_TEXTURE)
+    gl_FragColor = texture2D(texture_sampler, tex_coords_f);
+#elif defined(BLEND_ADDITIVE)
+    gl_FragColor = vertex_color + texture2D(texture_sampler, tex_coords_f);
+#elif defined(BLEND_SUBTRACTIVE)
+    gl_FragColor = vertex_color - texture2D(texture_sampler, tex_coords_f);
+#elif defined(BLEND_MULTIPLICATIVE)
+    gl_FragColor = vertex_color * texture2D(texture_sampler, tex_coords_f);
+#elif defined(BLEND_AVG)
+    gl_FragColor = (vertex_color + texture2D(texture_sampler, tex_coords_f)) / 2.0;
+#elif defined(BLEND_SDF)
+    gl_FragColor = get_sdf_color(texture_sampler, tex_coords_f, vertex_color);
+#else
     if (blend_mode == 0) {        // JUST COLOR
         gl_FragColor = vertex_color;
     } else if (blend_mode == 1) { // JUST TEXTURE
@@ -29,8 +64,11 @@ void main() {
     } else if (blend_mode == 4) { // MULTIPLICATIVE
         gl_FragColor = vertex_color * texture2D(texture_sampler, tex_coords_f);
     } else if (blend_mode == 5) { // AVG
-        gl_FragColor = (vertex_color + texture2D(texture_sampler, tex_coords_f)) / 2.0f;
+        gl_FragColor = (vertex_color + texture2D(texture_sampler, tex_coords_f)) / 2.0;
+    } else if (blend_mode == 6) { // SDF
+        gl_FragColor = get_sdf_color(texture_sampler, tex_coords_f, vertex_color);
     } else { // ERROR
-        gl_FragColor = vec4(1.0f, 0.0f, 1.0f, 1.0f);
+        gl_FragColor = vec4(1.0, 0.0, 1.0, 1.0);
     }
-}
\ No newline at end of file
+#endif
+}
@@ -0,0 +1,20 @@
+
+/**
+ * Fragment shader program used for rendering particles, CPU-simulated (see ParticleSystem) or
+ * GPU-simulated (see GpuParticles). Particles are soft round dots, fading out towards their edge.
+ * They are never lit.
+ * Uses: - particle color
+ */
+
+precision mediump float;
+
+// Variables from vertex shader
+varying vec4 color_f;
+
+// Main function
+void main() {
+
+    // Fade out from halfway to the edge of the point
+    float d = length(gl_PointCoord - vec2(0.5)) * 2.0;
+    gl_FragColor = vec4(color_f.rgb, color_f.a * (1.0 - smoothstep(0.5, 1.0, d)));
+}
@@ -30,6 +30,9 @@ void main() {
         gl_FragColor = vertex_color * texture2D(texture_sampler, tex_coords_f);
     } else if (blend_mode == 5) { // AVG
         gl_FragColor = (vertex_color + texture2D(texture_sampler, tex_coords_f)) / 2.0f;
+    } else if (blend_mode == 6) { // SDF
+        gl_FragColor = vec4(vertex_color.rgb, vertex_color.a *
+                smoothstep(0.45, 0.55, texture2D(texture_sampler, tex_coords_f).a));
     } else { // ERROR
         gl_FragColor = vec4(1.0f, 0.0f, 1.0f, 1.0f);
     }
@@ -0,0 +1,19 @@
+
+/**
+ * Fragment shader program used for upscaling a scaled-down render onto the screen (see
+ * DynamicResolution). Linear filtering does the upscaling.
+ * Uses: - texture
+ */
+
+precision mediump float;
+
+// Uniforms
+uniform sampler2D texture_sampler;
+
+// Variables from vertex shader
+varying vec2 texture_coordinates_f;
+
+// Main function
+void main() {
+    gl_FragColor = texture2D(texture_sampler, texture_coordinates_f);
+}
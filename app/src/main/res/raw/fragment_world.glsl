@@ -5,36 +5,99 @@
  *       - texture
  *       - blend mode
  *       - lighting
+ *
+ * Defines (see ShaderVariants):
+ *  - BLEND_<MODE>: compile for just that blend mode instead of branching on blend_mode
+ *  - UNLIT: don't apply lighting at all
+ *  - TILED_LIGHTING: only apply the lights binned into this fragment's screen tile by LightGrid
+ *  - INSTANCED: take color per-instance from the vertex shader instead of from a uniform
  */
 
-// A struct describing a light source
-struct LightSource {
-    vec3 glow;
-    float reach;
-    float intensity;
-    float x;
-    float y;
-};
+// Screen-space derivatives let SDF edges (BlendMode.SDF) be anti-aliased by a pixel at any scale
+#ifdef GL_OES_standard_derivatives
+#extension GL_OES_standard_derivatives : enable
+#endif
 
+// Tiled light positions are decoded from 16 bits, which needs more than mediump when available
+#if defined(TILED_LIGHTING) && defined(GL_FRAGMENT_PRECISION_HIGH)
+precision highp float;
+#else
 precision mediump float;
+#endif
 
 // Object Uniforms
+#ifdef INSTANCED
+varying vec4 vertex_color_f;
+#define vertex_color vertex_color_f
+#else
 uniform vec4 vertex_color;
+#endif
 uniform sampler2D texture_sampler;
 uniform int blend_mode; // Enumerated in same order as Java BlendMode class
 
 // Lighting Uniforms/Attributes
-const int MAX_LIGHTS = 64;
 uniform float ambient_light;
 uniform float max_brightness;
+#ifdef TILED_LIGHTING
+const int MAX_LIGHTS_PER_TILE = 16; // This must be in-sync with LightGrid
+uniform sampler2D light_data;        // Encoded light data (see LightGrid)
+uniform sampler2D light_tiles;       // Per-tile light index lists (see LightGrid)
+uniform vec2 light_data_size;        // Size of light_data in texels
+uniform vec2 light_tiles_size;       // Size of light_tiles in texels
+uniform vec2 tile_counts;            // Amount of tile columns and rows
+uniform vec2 viewport_size;          // Size of the viewport in pixels
+uniform vec2 light_pos_origin;       // World position light positions are relative to
+uniform float light_pos_range;       // World distance light positions are normalized against
+uniform float light_reach_range;     // Reach light reaches are normalized against
+uniform float light_intensity_range; // Intensity light intensities are normalized against
+#else
+
+// A struct describing a light source
+struct LightSource {
+    vec3 glow;
+    float reach;
+    float intensity;
+    float x;
+    float y;
+};
+
+const int MAX_LIGHTS = 64;
 uniform LightSource lights[MAX_LIGHTS];
+#endif
 
 // Variables from vertex shader
 varying vec2 tex_coords_f;
 varying vec2 frag_world_pos;
 
+// Gets the color of a signed distance field texture: the color inside the shape, smoothed at edges
+vec4 get_sdf_color(sampler2D texture_sampler, vec2 tex_coords_f, vec4 vertex_color) {
+    float distance = texture2D(texture_sampler, tex_coords_f).a;
+#ifdef GL_OES_standard_derivatives
+    float smoothing = 0.7 * fwidth(distance);
+#else
+    float smoothing = 0.05;
+#endif
+    return vec4(vertex_color.rgb,
+            vertex_color.a * smoothstep(0.5 - smoothing, 0.5 + smoothing, distance));
+}
+
 // Gets the initial unlit color from the texture, color, and blend mode
 vec4 get_unlit_color(sampler2D texture_sampler, vec2 tex_coords_f, int blend_mode, vec4 vertex_color) {
+#if defined(BLEND_JUST_COLOR)
+    return vertex_color;
+#elif defined(BLEND_JUST_TEXTURE)
+    return texture2D(texture_sampler, tex_coords_f);
+#elif defined(BLEND_ADDITIVE)
+    return vertex_color + texture2D(texture_sampler, tex_coords_f);
+#elif defined(BLEND_SUBTRACTIVE)
+    return vertex_color - texture2D(texture_sampler, tex_coords_f);
+#elif defined(BLEND_MULTIPLICATIVE)
+    return vertex_color * texture2D(texture_sampler, tex_coords_f);
+#elif defined(BLEND_AVG)
+    return (vertex_color + texture2D(texture_sampler, tex_coords_f)) / 2.0;
+#elif defined(BLEND_SDF)
+    return get_sdf_color(texture_sampler, tex_coords_f, vertex_color);
+#else
     if (blend_mode == 0) {        // JUST COLOR
         return vertex_color;
     } else if (blend_mode == 1) { // JUST TEXTURE
@@ -46,12 +109,47 @@ vec4 get_unlit_color(sampler2D texture_sampler, vec2 tex_coords_f, int blend_mod
     } else if (blend_mode == 4) { // MULTIPLICATIVE
         return vertex_color * texture2D(texture_sampler, tex_coords_f);
     } else if (blend_mode == 5) { // AVG
-        return (vertex_color + texture2D(texture_sampler, tex_coords_f)) / 2.0f;
+        return (vertex_color + texture2D(texture_sampler, tex_coords_f)) / 2.0;
+    } else if (blend_mode == 6) { // SDF
+        return get_sdf_color(texture_sampler, tex_coords_f, vertex_color);
     } else { // ERROR
-        return vec4(1.0f, 0.0f, 1.0f, 1.0f);
+        return vec4(1.0, 0.0, 1.0, 1.0);
+    }
+#endif
+}
+
+#ifndef UNLIT
+
+// Adds a light's contribution to the cumulative brightness and glow if it reaches the fragment
+void accumulate_light(vec2 light_pos, float reach, float intensity, vec3 glow,
+                      inout float cum_brightness, inout vec3 cum_glow) {
+    float light_dist = distance(light_pos, frag_world_pos);
+    if (light_dist <= reach) { // If light close enough to affect fragment
+
+        // 0.0: center of light's reach; 1.0: just out of reach of light;
+        float farness = light_dist / reach;
+
+        // Add brightness from this light to cumulative brightness
+        cum_brightness += (1.0 - farness) * intensity;
+
+        // Multiply glow from this light to cumulative glow
+        cum_glow = cum_glow * (farness * vec3(1.0, 1.0, 1.0) + (1.0 - farness) * (glow + 1.0));
     }
 }
 
+#ifdef TILED_LIGHTING
+
+// Decodes a 16-bit value stored as two bytes (high byte first) back into [0, 1]
+float decode_16(float high, float low) {
+    return (high * 255.0 * 256.0 + low * 255.0) / 65535.0;
+}
+
+// Reads a one-byte integer out of the tile texture
+float read_tile_byte(float column, float v) {
+    return floor(texture2D(light_tiles, vec2((column + 0.5) / light_tiles_size.x, v)).r * 255.0 + 0.5);
+}
+#endif
+
 // Applies lighting to an unlit color
 vec4 apply_lighting(vec4 unlit_color) {
 
@@ -62,29 +160,45 @@ vec4 apply_lighting(vec4 unlit_color) {
     float cum_brightness = 1.0;
     vec3  cum_glow = vec3(1.0, 1.0, 1.0);
 
+#ifdef TILED_LIGHTING
+
+    // Find this fragment's tile and how many lights were binned into it
+    vec2 tile = clamp(floor(gl_FragCoord.xy / viewport_size * tile_counts), vec2(0.0), tile_counts - 1.0);
+    float tile_v = (tile.y * tile_counts.x + tile.x + 0.5) / light_tiles_size.y;
+    float light_count = read_tile_byte(0.0, tile_v);
+
+    // Loop through this tile's lights and apply each if within distance
+    for (int i = 0; i < MAX_LIGHTS_PER_TILE; i++) {
+        if (float(i) >= light_count) break;
+
+        // Fetch and decode the light
+        float u = (read_tile_byte(float(i) + 1.0, tile_v) + 0.5) / light_data_size.x;
+        vec4 pos_texel   = texture2D(light_data, vec2(u, 0.5 / light_data_size.y));
+        vec4 power_texel = texture2D(light_data, vec2(u, 1.5 / light_data_size.y));
+        vec4 glow_texel  = texture2D(light_data, vec2(u, 2.5 / light_data_size.y));
+        vec2 light_pos = light_pos_origin + light_pos_range *
+                vec2(decode_16(pos_texel.r, pos_texel.g), decode_16(pos_texel.b, pos_texel.a));
+        accumulate_light(light_pos,
+                decode_16(power_texel.r, power_texel.g) * light_reach_range,
+                decode_16(power_texel.b, power_texel.a) * light_intensity_range,
+                glow_texel.rgb * 2.0 - 1.0, cum_brightness, cum_glow);
+    }
+#else
+
     // Loop through all lights and apply each if within distance
     for (int i = 0; i < MAX_LIGHTS; i++) {
 
         // Use this check to weed out non-important lights, or end-of-array idx
-        if (lights[i].reach > 0.0) {
-            float light_dist = distance(vec2(lights[i].x, lights[i].y), frag_world_pos);
-            if (light_dist <= lights[i].reach) { // If light close enough to affect fragment
-
-                // 0.0: center of light's reach; 1.0: just out of reach of light;
-                float farness = light_dist / lights[i].reach;
-
-                // Add brightness from this light to cumulative brightness
-                cum_brightness += (1.0 - farness) * lights[i].intensity;
-
-                // Multiply glow from this light to cumulative glow
-                cum_glow = cum_glow * (farness * vec3(1.0, 1.0, 1.0) + (1.0 - farness) * (lights[i].glow + 1.0));
-            }
-        }
+        if (lights[i].reach > 0.0)
+            accumulate_light(vec2(lights[i].x, lights[i].y), lights[i].reach,
+                    lights[i].intensity, lights[i].glow, cum_brightness, cum_glow);
     }
+#endif
     working_color = working_color * min(max_brightness, cum_brightness);
     working_color = working_color * cum_glow;
     return vec4(working_color, unlit_color.w);
 }
+#endif
 
 // Main function
 void main() {
@@ -93,5 +207,9 @@ void main() {
     vec4 unlit_color = get_unlit_color(texture_sampler, tex_coords_f, blend_mode, vertex_color);
 
     // Apply lighting and set final color
+#ifdef UNLIT
+    gl_FragColor = unlit_color;
+#else
     gl_FragColor = apply_lighting(unlit_color);
-}
\ No newline at end of file
+#endif
+}
@@ -0,0 +1,25 @@
+
+/**
+ * Vertex shader program used for rendering background layers (see Background). A unit square is
+ * stretched over the whole render target and mapped onto a region of the world.
+ * Uses: - vertex position
+ *       - region center
+ *       - region size
+ */
+
+// Attributes
+attribute vec2 vertex_position;
+varying vec2 world_pos_f;
+
+// Uniforms
+uniform vec2 region_center; // World position shown at the center of the render target
+uniform vec2 region_size;   // World size shown across the render target (negative flips)
+
+void main() {
+
+    // Pass through the world position this corner of the render target shows
+    world_pos_f = region_center + vertex_position * region_size;
+
+    // Cover the whole render target
+    gl_Position = vec4(vertex_position * 2.0, 0.0, 1.0);
+}
@@ -0,0 +1,71 @@
+
+/**
+ * Vertex shader program used for rendering GPU-simulated particles (see GpuParticles). Particles
+ * are written once when emitted, and everything about them (position, size and color) is worked
+ * out here from their spawn parameters and the current time, so they cost the CPU nothing per
+ * frame. Particles that aren't alive at the current time are moved out of view. The motion matches
+ * that of CPU particles (see ParticleSystem): velocity decays with drag as they fly.
+ * Uses: - particle origin, velocity, spawn time, inverse lifetime and seed
+ *       - time
+ *       - emitter drag, sizes and colors
+ *       - camera position and zoom
+ *       - aspect ratio
+ *       - pixels per world unit
+ */
+
+// Attributes
+attribute vec2 particle_origin;
+attribute vec2 particle_velocity;
+attribute float particle_spawn_time;
+attribute float particle_inv_life; // 1 / lifetime
+attribute float particle_seed;     // A random number in [0, 1) to vary particles by
+varying vec4 color_f;
+
+// Emitter uniforms
+uniform float time;                // Seconds, on the same clock as spawn times
+uniform float drag;                // Portion of velocity lost per second
+uniform float start_size;
+uniform float end_size;
+uniform vec4 start_color;
+uniform vec4 end_color;
+
+// View uniforms
+uniform float cam_x;
+uniform float cam_y;
+uniform float cam_zoom;
+uniform float aspect_ratio;
+uniform float pixels_per_unit; // Pixels across one world unit at a zoom of 1
+
+void main() {
+
+    // Find how far through its life the particle is, and hide it if it's not alive
+    float age = time - particle_spawn_time;
+    float t = age * particle_inv_life;
+    if (t < 0.0 || t >= 1.0) {
+        color_f = vec4(0.0);
+        gl_Position = vec4(2.0, 2.0, 2.0, 1.0); // Outside the clip volume
+        gl_PointSize = 1.0;
+        return;
+    }
+
+    // Integrate velocity decaying exponentially with drag
+    float travel = drag > 0.0 ? (1.0 - exp(-drag * age)) / drag : age;
+    vec2 pos = particle_origin + particle_velocity * travel;
+
+    // Fade from the emitter's start look to its end look
+    color_f = mix(start_color, end_color, t);
+    float size = mix(start_size, end_size, t) * (0.75 + 0.5 * particle_seed);
+
+    // Apply camera pos and zoom
+    pos = (pos - vec2(cam_x, cam_y)) * cam_zoom;
+
+    // Apply aspect ratio
+    if  (aspect_ratio < 1.0)
+        pos.y *= aspect_ratio;
+    else
+        pos.x /= aspect_ratio;
+
+    // Set final position and size
+    gl_Position = vec4(pos.x, pos.y, 0.0, 1.0);
+    gl_PointSize = size * cam_zoom * pixels_per_unit;
+}
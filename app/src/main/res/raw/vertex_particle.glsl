@@ -0,0 +1,44 @@
+
+/**
+ * Vertex shader program used for rendering particles (see ParticleSystem). Each particle is a
+ * single point sprite, sized in world units and placed with the same camera and aspect ratio math
+ * as vertex_world.glsl.
+ * Uses: - particle position
+ *       - particle size
+ *       - particle color
+ *       - camera position and zoom
+ *       - aspect ratio
+ *       - pixels per world unit
+ */
+
+// Attributes
+attribute vec2 particle_position;
+attribute float particle_size;
+attribute vec4 particle_color;
+varying vec4 color_f;
+
+// Uniforms
+uniform float cam_x;
+uniform float cam_y;
+uniform float cam_zoom;
+uniform float aspect_ratio;
+uniform float pixels_per_unit; // Pixels across one world unit at a zoom of 1
+
+void main() {
+
+    // Pass through color
+    color_f = particle_color;
+
+    // Apply camera pos and zoom
+    vec2 pos = (particle_position - vec2(cam_x, cam_y)) * cam_zoom;
+
+    // Apply aspect ratio
+    if  (aspect_ratio < 1.0)
+        pos.y *= aspect_ratio;
+    else
+        pos.x /= aspect_ratio;
+
+    // Set final position and size
+    gl_Position = vec4(pos.x, pos.y, 0.0, 1.0);
+    gl_PointSize = particle_size * cam_zoom * pixels_per_unit;
+}
@@ -0,0 +1,23 @@
+
+/**
+ * Vertex shader program used for upscaling a scaled-down render onto the screen (see
+ * DynamicResolution). A unit square is stretched over the whole screen.
+ * Uses: - vertex position
+ *       - uv scale
+ */
+
+// Attributes
+attribute vec2 vertex_position;
+varying vec2 texture_coordinates_f;
+
+// Uniforms
+uniform vec2 uv_scale; // Portion of the texture the render covers
+
+void main() {
+
+    // Map the screen onto the rendered portion of the texture
+    texture_coordinates_f = (vertex_position + 0.5) * uv_scale;
+
+    // Cover the whole screen
+    gl_Position = vec4(vertex_position * 2.0, 0.0, 1.0);
+}
@@ -7,22 +7,38 @@
  *       - object position
  *       - camera (position and zoom)
  *       - aspect ratio
+ *
+ * Defines (see ShaderVariants):
+ *  - INSTANCED: take object position, scale, rotation, atlas frame and color from per-instance
+ *               attributes (see SpriteInstancer) instead of uniforms
  */
 
 // Attributes
 attribute vec2 vertex_position;
-attribute vec2 tex_coords;
 
 // Variables to pass to fragment shader
 varying vec2 tex_coords_f;
 varying vec2 frag_world_pos;
 
+#ifdef INSTANCED
+
+// Per-instance attributes
+attribute vec2 instance_pos;
+attribute vec2 instance_scale;
+attribute float instance_rot;
+attribute vec4 instance_frame; // Atlas frame texture coordinates: left, top, right, bottom
+attribute vec4 instance_color;
+varying vec4 vertex_color_f;
+#else
+attribute vec2 tex_coords;
+
 // Object uniforms
 uniform float obj_x;
 uniform float obj_y;
 uniform float obj_scale_x;
 uniform float obj_scale_y;
 uniform float obj_rot;
+#endif
 
 // Camera uniforms
 uniform float cam_x;
@@ -34,18 +50,34 @@ uniform float aspect_ratio;
 
 void main() {
 
+#ifdef INSTANCED
+
+    // Map the unit quad's corners onto the instance's atlas frame, and pass through color
+    vec2 corner = vertex_position + 0.5;
+    tex_coords_f = vec2(mix(instance_frame.x, instance_frame.z, corner.x),
+                        mix(instance_frame.w, instance_frame.y, corner.y));
+    vertex_color_f = instance_color;
+    vec2 obj_pos = instance_pos;
+    vec2 obj_scale = instance_scale;
+    float rot = instance_rot;
+#else
+
     // Pass through texture coordinates
     tex_coords_f = tex_coords;
+    vec2 obj_pos = vec2(obj_x, obj_y);
+    vec2 obj_scale = vec2(obj_scale_x, obj_scale_y);
+    float rot = obj_rot;
+#endif
 
     // Apply object scale, rotation, position
     // (model pos -> aspect pos)
-    vec2 pos = vec2(vertex_position.x * obj_scale_x, vertex_position.y * obj_scale_y); // scale
-    if (obj_rot != 0.0) { // rotation
-        float cos_rot = cos(obj_rot);
-        float sin_rot = sin(obj_rot);
+    vec2 pos = vertex_position * obj_scale; // scale
+    if (rot != 0.0) { // rotation
+        float cos_rot = cos(rot);
+        float sin_rot = sin(rot);
         pos = vec2(pos.x * cos_rot - pos.y * sin_rot, pos.y * cos_rot + pos.x * sin_rot);
     }
-    pos += vec2(obj_x, obj_y); // position
+    pos += obj_pos; // position
     frag_world_pos = pos;
 
     // Apply camera pos and zoom